@@ -17,19 +17,34 @@ import java.util.Collections;
 
 public class BM25 extends Similarity
 {
-    private static float k1;
-    private static float b;
+    private final float k1;
+    private final float b;
     
     public BM25()
     {
-	k1 = 1.2f;
-	b  = 0.75f;
+	this(1.2f, 0.75f);
     }
 
     public BM25(float k1, float b)
     {
-	k1 = k1;
-	b  = b;
+	this.k1 = k1;
+	this.b  = b;
+    }
+
+    public float getK1()
+    {
+	return k1;
+    }
+
+    public float getB()
+    {
+	return b;
+    }
+
+    @Override
+    public String toString()
+    {
+	return "BM25(k1=" + k1 + ", b=" + b + ")";
     }
 
     public float log(double x)
@@ -78,20 +93,24 @@ public class BM25 extends Similarity
 	throws IOException
     {
 	BM25Weight bw = (BM25Weight) sw;
-	return new BM25Scorer(bw, context.reader().getNormValues(bw.field));
+	return new BM25Scorer(bw, context.reader().getNormValues(bw.field),
+			      DocLengths.get(context.reader(), bw.field));
     }
 
     public class BM25Scorer extends SimScorer
     {
 	private final BM25Weight bw;
 	private final NumericDocValues norms;
+	private final DocLengths.Lengths lengths;
 
     
-	BM25Scorer(BM25Weight bw, NumericDocValues norms)
+	BM25Scorer(BM25Weight bw, NumericDocValues norms,
+		   DocLengths.Lengths lengths)
 	    throws IOException
 	{
-	    this.bw    = bw;
-	    this.norms = norms;
+	    this.bw      = bw;
+	    this.norms   = norms;
+	    this.lengths = lengths;
 	}
 
 	@Override
@@ -100,7 +119,9 @@ public class BM25 extends Similarity
 	    float idf, dl, adl, K, w;
 	    idf = bw.idf;
 	    adl = bw.adl;
-	    dl  = (float)norms.get(doc);
+	    // The exact length, if the index has a DocLengths store.
+	    dl  = lengths != null ? (float)lengths.length(doc)
+				  : (float)norms.get(doc);
 	    K   = k1 * (1.0f - b + b * (dl / adl));
 	    w   = ((k1 + 1.0f) * tf) / (K + tf) * idf;
 	    return w;
@@ -17,8 +17,8 @@ import java.util.Collections;
 
 public class BM25e extends Similarity
 {
-    private static float k1;
-    private static float b;
+    private final float k1;
+    private final float b;
     private static final float[] NORM = new float[256];
     static {
 	for (int i = 0; i < 256; i++) {
@@ -28,14 +28,29 @@ public class BM25e extends Similarity
     
     public BM25e()
     {
-	k1 = 1.2f;
-	b  = 0.75f;
+	this(1.2f, 0.75f);
     }
 
     public BM25e(float k1, float b)
     {
-	k1 = k1;
-	b  = b;
+	this.k1 = k1;
+	this.b  = b;
+    }
+
+    public float getK1()
+    {
+	return k1;
+    }
+
+    public float getB()
+    {
+	return b;
+    }
+
+    @Override
+    public String toString()
+    {
+	return "BM25e(k1=" + k1 + ", b=" + b + ")";
     }
 
     public float log(double x)
@@ -57,7 +72,8 @@ public class BM25e extends Similarity
     public final SimWeight computeWeight(CollectionStatistics collectionStats,
 					 TermStatistics... termStats)
     {
-	float N, n, idf, adl;
+	float N, n, idf, adl, dl;
+	float[] cache;
 
 	idf = 1.0f;
 	
@@ -76,7 +92,15 @@ public class BM25e extends Similarity
 	
 	adl = collectionStats.sumTotalTermFreq() / N;
 
-	return new BM25Weight(collectionStats.field(), idf, adl);
+	// K only depends on the norm byte, so it is worked out here once
+	// for each of the 256 bytes instead of for every posting scored.
+	cache = new float[256];
+	for (int i = 0; i < 256; i++) {
+	    dl = decodeNorm((byte)i);
+	    cache[i] = k1 * (1.0f - b + b * (dl / adl));
+	}
+
+	return new BM25Weight(collectionStats.field(), idf, adl, cache);
     }
 
     @Override
@@ -103,11 +127,9 @@ public class BM25e extends Similarity
 	@Override
 	public float score(int doc, float tf)
 	{
-	    float idf, dl, adl, K, w;
+	    float idf, K, w;
 	    idf = bw.idf;
-	    adl = bw.adl;
-	    dl  = decodeNorm((byte)((byte)norms.get(doc) & 0xFF));
-	    K   = k1 * (1.0f - b + b * (dl / adl));
+	    K   = bw.cache[(int)norms.get(doc) & 0xFF];
 	    w   = ((k1 + 1.0f) * tf) / (K + tf) * idf;
 	    return w;
 	}
@@ -130,12 +152,14 @@ public class BM25e extends Similarity
 	private final String field;
 	private final float idf;
 	private final float adl;
+	private final float[] cache;
 	
-	public BM25Weight(String field, float idf, float adl)
+	public BM25Weight(String field, float idf, float adl, float[] cache)
 	{
 	    this.field = field;
 	    this.idf   = idf;
 	    this.adl   = adl;
+	    this.cache = cache;
 	}
 
 	@Override
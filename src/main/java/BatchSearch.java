@@ -1,12 +1,26 @@
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Element;
@@ -14,7 +28,6 @@ import org.jsoup.nodes.Element;
 import org.apache.commons.io.FileUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.queryparser.simple.SimpleQueryParser;
@@ -23,21 +36,11 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.similarities.*;
-import org.apache.lucene.store.FSDirectory;
-
-// For highlighting.
-import java.lang.StringBuilder;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.search.highlight.TokenSources;
-import org.apache.lucene.search.highlight.SimpleHTMLFormatter;
-import org.apache.lucene.search.highlight.SimpleFragmenter;
-import org.apache.lucene.search.highlight.Highlighter;
-import org.apache.lucene.search.highlight.TextFragment;
-import org.apache.lucene.search.highlight.QueryScorer;
 
 public class BatchSearch
 {
     public static final int FRAGMENT_SIZE_CHARS = 15;
+    public static final int TOPICS_PER_THREAD = 4;
     private BatchSearch() {};
 
     public static void main(String[] args)
@@ -47,7 +50,17 @@ public class BatchSearch
         String usage = "Usage:\tjava BatchSearch"
             + "[-settings SETTINGS_FILE] [-index dir]\n"
             + "\t[-similarity similarity] [-field f] [-queries file]\n"
-            + "\t[-stop STOP_FILE] [-stem STEMMER_NAME]\n";
+            + "\t[-stop STOP_FILE] [-stem STEMMER_NAME]"
+            + " [-threads NUM_THREADS]\n"
+            + "\t[-segmentThreads NUM_THREADS] [-reportLatency true|false]\n"
+            + "\t[-modelsFile MODELS_FILE] [-runDirectory dir]\n"
+            + "\t[-sweepK1 K1_GRID] [-sweepB B_GRID]"
+            + " [-run RUN_FILE] [-gzipRun true|false]\n"
+            + "\t[-snippetEngine auto|postings|highlighter]"
+            + " [-snippetThreads NUM_THREADS]\n"
+            + "\t[-resultCache dir] [-resultCacheMB MB]"
+            + " [-engine lucene|taat|saat]\n"
+            + "\t[-postingsBudget N] [-slowTopics N] [-latencyFile JSON_FILE]\n";
                 
         if (args.length == 0 || (args.length > 0 && 
                 ("-h".equals(args[0]) || "-help".equals(args[0])))) {
@@ -84,7 +97,7 @@ public class BatchSearch
         // file entries.
         ltrSettings.parseCommandLineArguments(args);
 
-        if (ltrSettings.similarity == null) {
+        if (ltrSettings.similarity == null && ltrSettings.modelsFile == null) {
             System.out.println("BatchSearch: Similarity not specified\n");
             System.exit(0);
         }
@@ -95,7 +108,12 @@ public class BatchSearch
         }
 
         try {
-            processQueryFile(ltrSettings);
+            if (ltrSettings.modelsFile != null)
+                processQueryFileAllModels(ltrSettings);
+            else if (ltrSettings.sweepK1 != null || ltrSettings.sweepB != null)
+                processQueryFileSweep(ltrSettings);
+            else
+                processQueryFile(ltrSettings);
         } catch(Exception e){
             System.out.println("BatchSearch error: "+ e.getMessage() +"\n");
             e.printStackTrace();
@@ -162,26 +180,34 @@ public class BatchSearch
     /**
      * Extracts queries from the query file specified in the given settings.
      * Each query is run through the specified pre-processors if supplied,
-     * then to doBatchSearch.
+     * then to doBatchSearch. With the threads setting above 1, queries are
+     * run concurrently (see runTopicsInParallel()); the output is the same.
+     * With segmentThreads above 1, each query also searches the index's
+     * segments concurrently, on a pool of that many threads.
      *
      * @param settings The settings to use.
      */
     public static void processQueryFile(LTRSettings ltrSettings)
     throws Exception {
-        LTRSettings modifiedSettings;
-        Query query;
-        String str, qid, queryText;
-        QueryPreProcessor preProcessor;
-        Element preProcessorElm, postProcessorElm;
-        TrecAnalyzer originalAnalyzer, analyzer;
-        SimpleQueryParser originalParser, parser;
-        QueryPostProcessor postProcessor;
-
-        Similarity similarity = getSimilarityModel(ltrSettings.similarity);        
-        IndexReader reader = DirectoryReader.open(FSDirectory.open(
-            Paths.get(ltrSettings.indexPath)));
-        IndexSearcher searcher = new IndexSearcher(reader);
+        TrecAnalyzer originalAnalyzer;
+        SimpleQueryParser originalParser;
+        ExecutorService segmentPool = null;
+        QueryMetrics metrics;
+        ResultCache cache;
+
+        Similarity similarity = getSimilarityModel(ltrSettings,
+            ltrSettings.similarity);        
+        IndexReader reader = ShardedIndexer.openReader(
+            Paths.get(ltrSettings.indexPath));
+        if (ltrSettings.segmentThreads > 1)
+            segmentPool = Executors.newFixedThreadPool(
+                ltrSettings.segmentThreads);
+        IndexSearcher searcher = new IndexSearcher(reader, segmentPool);
         searcher.setSimilarity(similarity);
+        if ("saat".equals(ltrSettings.engine))
+            impacts(ltrSettings, reader, similarity);
+        metrics = QueryMetrics.open(ltrSettings);
+        cache = ResultCache.open(ltrSettings, reader);
 
         // The analyzer and query parser may change based on the query
         // preprocessor.
@@ -191,72 +217,517 @@ public class BatchSearch
                 
         // Parse the query file.
         org.jsoup.nodes.Document soup;
-        str = FileUtils.readFileToString(new File(ltrSettings.queryFile));
+        String str = FileUtils.readFileToString(
+            new File(ltrSettings.queryFile));
         soup = Jsoup.parse(str);
-        for (Element elm : soup.select("top")) {
-            qid = elm.select("num").first().text().trim();
-
-            analyzer = originalAnalyzer;
-            parser = originalParser;
-            postProcessor = null;
-
-            // Check if there is any preprocessing that needs to happen.
-            preProcessorElm = elm.select("preprocessor").first();
-            if(preProcessorElm != null && preProcessorElm.hasAttr("class")){
-                try{
-                    preProcessor =  (QueryPreProcessor) Class
-                        .forName(preProcessorElm.attr("class"))
-                        .getConstructor().newInstance();
-                } catch(Exception e){
-                    throw new Exception("Could not find query preprocessor "+
-                        "class: "+ preProcessorElm.attr("class"));
-                }
+        try (RunWriter run = RunWriter.open(ltrSettings)) {
+            if (ltrSettings.threads > 1) {
+                runTopicsInParallel(ltrSettings, searcher, soup.select("top"),
+                    originalAnalyzer, originalParser, run, metrics, cache);
+            } else {
+                for (Element elm : soup.select("top"))
+                    runTopic(ltrSettings, searcher, elm, originalAnalyzer,
+                        originalParser, run, metrics, cache);
+            }
+        } finally {
+            if (segmentPool != null)
+                segmentPool.shutdown();
+        }
+        reader.close();       
+        if (metrics != null) {
+            System.err.println(metrics.summary(null));
+            if (ltrSettings.latencyFile != null)
+                QueryMetrics.write(ltrSettings.latencyFile, metrics.toMap());
+        }
+        if (cache != null)
+            System.err.println(cache.summary());
+    }
 
-                // The preprocessor gets the entire query's XML.
-                preProcessor.initialize(elm.html(), ltrSettings);
+    /**
+     * Creates a Similarity instance from the given model string, as
+     * getSimilarityModel(model) does, except that "formula:NAME" names one
+     * of the formulas in the settings, compiled into a FormulaSimilarity.
+     *
+     * @param settings The global settings.
+     * @param model A Similarity implementation, or "formula:NAME".
+     * @return An instance of the specified model.
+     */
+    public static Similarity getSimilarityModel(LTRSettings settings,
+        String model)
+    throws Exception {
+        if (!model.startsWith("formula:"))
+            return getSimilarityModel(model);
 
-                // The preprocessor provides the query text for this query.
-                queryText = preProcessor.getQuery();
+        String name = model.substring("formula:".length());
+        if (settings.formulas == null || !settings.formulas.containsKey(name))
+            throw new Exception("Formula not found in settings: "+ name);
+        try {
+            return new FormulaSimilarity(name, settings.formulas.get(name));
+        } catch (IllegalArgumentException e) {
+            throw new Exception("Formula "+ name +": "+ e.getMessage());
+        }
+    }
+
+    /**
+     * Reads a models file: one model per line, a short name followed by the
+     * Similarity class (as for getSimilarityModel()), separated by
+     * whitespace. Blank lines and lines starting with '#' are skipped.
+     *
+     * @param modelsFile The file to read.
+     * @return The class of each model, keyed on short name, in file order.
+     */
+    public static Map<String, String> readModelsFile(String modelsFile)
+    throws IOException {
+        Map<String, String> models = new LinkedHashMap<String, String>();
+        for (String line : FileUtils.readLines(new File(modelsFile))) {
+            String[] columns = line.trim().split("\\s+");
+            if (columns[0].isEmpty() || columns[0].startsWith("#"))
+                continue;
+            if (columns.length < 2)
+                throw new IOException("No similarity for model "+
+                    columns[0] +" in "+ modelsFile);
+            models.put(columns[0], columns[1]);
+        }
+        return models;
+    }
+
+    /**
+     * Runs the query file against every model in the modelsFile setting
+     * (see runModels()). Each model's results are written to SHORT_NAME.run
+     * in the runDirectory setting, with the short name as the run tag;
+     * otherwise the run files are what processQueryFile() would print for
+     * each model.
+     *
+     * @param ltrSettings The settings to use.
+     */
+    public static void processQueryFileAllModels(LTRSettings ltrSettings)
+    throws Exception {
+        Map<String, Similarity> models = new LinkedHashMap<String, Similarity>();
+
+        // Fail on an unknown model before doing any work.
+        for (Map.Entry<String, String> model :
+                readModelsFile(ltrSettings.modelsFile).entrySet())
+            models.put(model.getKey(),
+                getSimilarityModel(ltrSettings, model.getValue()));
+        runModels(ltrSettings, models);
+    }
+
+    /**
+     * Runs the query file against the similarity setting (which must have a
+     * (float k1, float b) constructor, as BM25 and BM25e do) at every point
+     * of the grid given by the sweepK1 and sweepB settings. Each point's
+     * results are written to SIMILARITY-k1_K1-b_B.run in the runDirectory
+     * setting, with that name as the run tag.
+     *
+     * @param ltrSettings The settings to use.
+     */
+    public static void processQueryFileSweep(LTRSettings ltrSettings)
+    throws Exception {
+        Map<String, Similarity> models = new LinkedHashMap<String, Similarity>();
+        String model = ltrSettings.similarity;
+        String name = model.substring(model.lastIndexOf('.') + 1);
+        Class<?> similarityClass;
 
-                // Check if the preprocessor requires updating the LTR settings
-                // for this query. That will require initializing a new
-                // analyzer and searcher.
-                if(preProcessor.modifiesSettings()){
-                    modifiedSettings = preProcessor.getModifiedSettings();
-                    analyzer = new TrecAnalyzer(modifiedSettings);
-                    parser = new SimpleQueryParser(analyzer, 
-                        modifiedSettings.searchField);
+        try {
+            similarityClass = model.indexOf('.') < 0 &&
+                model.endsWith("Similarity") ?
+                Class.forName("org.apache.lucene.search.similarities."+ model) :
+                Class.forName(model);
+        } catch (ClassNotFoundException e) {
+            throw new Exception("Similarity class not found: "+ model);
+        }
+        for (String k1 : parseGrid(ltrSettings.sweepK1, "1.2"))
+            for (String b : parseGrid(ltrSettings.sweepB, "0.75"))
+                models.put(name +"-k1_"+ k1 +"-b_"+ b,
+                    (Similarity) similarityClass
+                        .getConstructor(float.class, float.class)
+                        .newInstance(Float.parseFloat(k1),
+                                     Float.parseFloat(b)));
+        runModels(ltrSettings, models);
+    }
+
+    /**
+     * Expands a grid setting: a comma separated list of values, and/or
+     * ranges written START:END:STEP (END included).
+     *
+     * @param grid The setting, or null to use the default.
+     * @param defaultValue The value to use if the setting is null.
+     * @return The values, written without trailing zeros (e.g., "0.7").
+     */
+    public static List<String> parseGrid(String grid, String defaultValue) {
+        List<String> values = new ArrayList<String>();
+
+        for (String part : (grid == null ? defaultValue : grid).split(",")) {
+            String[] range = part.trim().split(":");
+            if (range.length == 1) {
+                values.add(new BigDecimal(range[0]).stripTrailingZeros()
+                    .toPlainString());
+                continue;
+            }
+            if (range.length != 3)
+                throw new IllegalArgumentException("Bad grid range: "+ part);
+            BigDecimal end = new BigDecimal(range[1]);
+            BigDecimal step = new BigDecimal(range[2]);
+            if (step.signum() <= 0)
+                throw new IllegalArgumentException("Bad grid step: "+ part);
+            for (BigDecimal value = new BigDecimal(range[0]);
+                    value.compareTo(end) <= 0; value = value.add(step))
+                values.add(value.stripTrailingZeros().toPlainString());
+        }
+        return values;
+    }
+
+    /**
+     * Runs the query file against a number of similarities. The index is
+     * opened, and the query file parsed and preprocessed, only once; the
+     * models are then run on a pool of threads threads (one at a time by
+     * default, and never more than there are processors or models), each
+     * with its own IndexSearcher over the shared reader. Each model's
+     * results are written to NAME.run in the runDirectory setting, with its
+     * name as the run tag.
+     *
+     * @param ltrSettings The settings to use.
+     * @param models The similarities to run, keyed on name.
+     */
+    public static void runModels(final LTRSettings ltrSettings,
+        Map<String, Similarity> models)
+    throws Exception {
+        final List<Topic> topics = new ArrayList<Topic>();
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        Map<String, Object> latencySummaries =
+            new LinkedHashMap<String, Object>();
+        final Path runDirectory = Paths.get(ltrSettings.runDirectory);
+        final IndexReader reader;
+        final ExecutorService segmentPool;
+        final ResultCache cache;
+        ExecutorService modelPool;
+        TrecAnalyzer originalAnalyzer;
+        SimpleQueryParser originalParser;
+
+        // Parse and preprocess every topic once.
+        originalAnalyzer = new TrecAnalyzer(ltrSettings);
+        originalParser = new SimpleQueryParser(
+            originalAnalyzer, ltrSettings.searchField);
+        org.jsoup.nodes.Document soup = Jsoup.parse(
+            FileUtils.readFileToString(new File(ltrSettings.queryFile)));
+        for (Element elm : soup.select("top"))
+            topics.add(prepareTopic(ltrSettings, elm, originalAnalyzer,
+                originalParser, new QueryMetrics.Timer(null)));
+
+        Files.createDirectories(runDirectory);
+        reader = ShardedIndexer.openReader(Paths.get(ltrSettings.indexPath));
+        // Every model is checked before any run is written.
+        if ("saat".equals(ltrSettings.engine))
+            for (Similarity similarity : models.values())
+                impacts(ltrSettings, reader, similarity);
+        cache = ResultCache.open(ltrSettings, reader);
+        segmentPool = ltrSettings.segmentThreads > 1 ?
+            Executors.newFixedThreadPool(ltrSettings.segmentThreads) : null;
+        // Each running model holds a run writer and, with the taat or saat
+        // engine, per-thread accumulators, so a large sweep must not run
+        // all at once.
+        modelPool = Executors.newFixedThreadPool(Math.max(1, Math.min(
+            Math.min(ltrSettings.threads,
+                Runtime.getRuntime().availableProcessors()),
+            models.size())));
+
+        try {
+            for (final Map.Entry<String, Similarity> model :
+                    models.entrySet()) {
+                final QueryMetrics metrics = QueryMetrics.open(ltrSettings);
+                if (metrics != null)
+                    latencySummaries.put(model.getKey(), metrics);
+                futures.add(modelPool.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return runModel(ltrSettings, reader, segmentPool,
+                            cache, metrics, topics, model.getKey(),
+                            model.getValue(),
+                            runDirectory.resolve(model.getKey() +
+                                (ltrSettings.gzipRun ? ".run.gz" : ".run")));
+                    }
+                }));
+            }
+            for (Future<String> future : futures) {
+                try {
+                    System.err.println(future.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception)
+                        throw (Exception) e.getCause();
+                    throw e;
                 }
+            }
+        } finally {
+            modelPool.shutdownNow();
+            if (segmentPool != null)
+                segmentPool.shutdown();
+        }
+        reader.close();
+        if (cache != null)
+            System.err.println(cache.summary());
+        if (ltrSettings.latencyFile != null && !latencySummaries.isEmpty()) {
+            for (Map.Entry<String, Object> summary :
+                    latencySummaries.entrySet())
+                summary.setValue(((QueryMetrics) summary.getValue()).toMap());
+            QueryMetrics.write(ltrSettings.latencyFile, latencySummaries);
+        }
+    }
 
-            // Only extract the <text> field if no preprocessing is to occur.
-            } else {
-                queryText = elm.select("text").first().text();
+    /**
+     * Runs every topic against one model, writing the results to a run
+     * file.
+     *
+     * @return A line saying where the run was written and how long it took
+     *         (with the latency summary, if reportLatency is set).
+     */
+    private static String runModel(LTRSettings ltrSettings,
+        IndexReader reader, ExecutorService segmentPool, ResultCache cache,
+        QueryMetrics metrics, List<Topic> topics, String name,
+        Similarity similarity, Path runFile)
+    throws Exception {
+        IndexSearcher searcher = new IndexSearcher(reader, segmentPool);
+        long start = System.nanoTime();
+        String summary;
+
+        searcher.setSimilarity(similarity);
+        try (RunWriter out = RunWriter.open(runFile, ltrSettings.gzipRun)) {
+            for (Topic topic : topics) {
+                QueryMetrics.Timer timer =
+                    new QueryMetrics.Timer(metrics, topic.prepared);
+                doBatchSearch(ltrSettings, searcher, topic.qid, topic.query,
+                    name, topic.analyzer, topic.newPostProcessor(ltrSettings),
+                    out, timer, cache);
+                timer.done();
             }
+        }
+        summary = String.format("%-14s %-24s %d topics, %.1f s -> %s", name,
+            similarity, topics.size(), (System.nanoTime() - start) / 1e9,
+            runFile);
+        if (metrics != null)
+            summary += "\n"+ metrics.summary(name);
+        return summary;
+    }
 
+    /**
+     * Runs topics on a pool of settings.threads workers. Each topic's results
+     * are buffered and written to the run in the order of the query file,
+     * so the output is byte for byte what a sequential run prints. At most
+     * TOPICS_PER_THREAD topics per thread are queued or buffered at a time.
+     *
+     * @param settings The settings to use.
+     * @param searcher The searcher, which is shared by the workers.
+     * @param topics The &lt;top&gt; elements of the query file.
+     * @param originalAnalyzer The analyzer for queries that are not
+     *                         preprocessed.
+     * @param originalParser The parser for queries that are not
+     *                       preprocessed.
+     * @param run Where to write the results.
+     * @param metrics Where to record the time each topic takes, or null.
+     * @param cache The cache to serve results from, or null.
+     */
+    public static void runTopicsInParallel(final LTRSettings settings,
+        final IndexSearcher searcher, List<Element> topics,
+        final TrecAnalyzer originalAnalyzer,
+        final SimpleQueryParser originalParser, RunWriter run,
+        final QueryMetrics metrics, final ResultCache cache)
+    throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(settings.threads);
+        ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        Iterator<Element> topicIterator = topics.iterator();
+        int window = settings.threads * TOPICS_PER_THREAD;
+        byte[] output;
 
-            // Check if there is a post processor specified.
-            postProcessorElm = elm.select("postprocessor").first();
-            if(postProcessorElm != null && postProcessorElm.hasAttr("class")){
+        try {
+            while (topicIterator.hasNext() || !pending.isEmpty()) {
+                while (topicIterator.hasNext() && pending.size() < window) {
+                    final Element elm = topicIterator.next();
+                    pending.add(pool.submit(new Callable<byte[]>() {
+                        public byte[] call() throws Exception {
+                            ByteArrayOutputStream buffer =
+                                new ByteArrayOutputStream();
+                            RunWriter out = new RunWriter(buffer, false);
+                            runTopic(settings, searcher, elm,
+                                originalAnalyzer, originalParser, out,
+                                metrics, cache);
+                            out.close();
+                            return buffer.toByteArray();
+                        }
+                    }));
+                }
                 try {
-                    postProcessor = (QueryPostProcessor) Class
-                        .forName(postProcessorElm.attr("class"))
-                        .getConstructor().newInstance();
-                } catch(Exception e) {
-                    throw new Exception("Could not find query postprocessor "+
-                        "class: "+ postProcessorElm.attr("class"));
+                    output = pending.poll().get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception)
+                        throw (Exception) e.getCause();
+                    throw e;
                 }
-                postProcessor.initialize(elm.html(), ltrSettings, queryText);
+                run.write(output, 0, output.length);
             }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
-            // Parse and run the query.
-            query = parser.parse(queryText);
-            doBatchSearch(ltrSettings, searcher, qid, query, 
-                ltrSettings.similarity, analyzer, postProcessor);
+    /**
+     * Runs one topic of the query file: preprocesses it if it names a
+     * preprocessor, parses and runs the query, and prints the results.
+     *
+     * @param settings The settings to use.
+     * @param searcher The Lucene IndexSearcher to issue the query to.
+     * @param elm The topic's &lt;top&gt; element.
+     * @param originalAnalyzer The analyzer to use unless the preprocessor
+     *                         modifies the settings.
+     * @param originalParser The query parser to use unless the preprocessor
+     *                       modifies the settings.
+     * @param out Where to print the results.
+     * @param metrics Where to record the time the topic takes, or null.
+     * @param cache The cache to serve results from, or null.
+     */
+    public static void runTopic(LTRSettings ltrSettings,
+        IndexSearcher searcher, Element elm, TrecAnalyzer originalAnalyzer,
+        SimpleQueryParser originalParser, RunWriter out,
+        QueryMetrics metrics, ResultCache cache)
+    throws Exception {
+        QueryMetrics.Timer timer = new QueryMetrics.Timer(metrics);
+        Topic topic = prepareTopic(ltrSettings, elm, originalAnalyzer,
+            originalParser, timer);
+        doBatchSearch(ltrSettings, searcher, topic.qid, topic.query, 
+            ltrSettings.similarity, topic.analyzer,
+            topic.newPostProcessor(ltrSettings), out, timer, cache);
+        timer.done();
+    }
+
+    /**
+     * A topic from the query file, preprocessed and parsed, which can be run
+     * against any number of searchers.
+     */
+    public static class Topic {
+        public final String   qid;
+        public final Query    query;
+        public final Analyzer analyzer;
+        private final String  html;
+        private final String  queryText;
+        private final String  postProcessorClass;
+        // The time spent extracting, preprocessing and parsing the topic.
+        final QueryMetrics.Timer prepared;
+
+        Topic(String qid, Query query, Analyzer analyzer, String html,
+            String queryText, String postProcessorClass,
+            QueryMetrics.Timer prepared) {
+            this.qid = qid;
+            this.query = query;
+            this.analyzer = analyzer;
+            this.html = html;
+            this.queryText = queryText;
+            this.postProcessorClass = postProcessorClass;
+            this.prepared = prepared;
+        }
+
+        /**
+         * @param ltrSettings The settings to use.
+         * @return A new instance of the topic's post processor, initialized
+         *         for the topic, or null if it has none. Each run of the
+         *         topic gets its own, since post processors may keep state.
+         */
+        public QueryPostProcessor newPostProcessor(LTRSettings ltrSettings)
+        throws Exception {
+            QueryPostProcessor postProcessor;
+
+            if(postProcessorClass == null)
+                return null;
+            try {
+                postProcessor = (QueryPostProcessor) Class
+                    .forName(postProcessorClass)
+                    .getConstructor().newInstance();
+            } catch(Exception e) {
+                throw new Exception("Could not find query postprocessor "+
+                    "class: "+ postProcessorClass);
+            }
+            postProcessor.initialize(html, ltrSettings, queryText);
+            return postProcessor;
         }
-        reader.close();       
     }
 
-    
+    /**
+     * Preprocesses a topic of the query file if it names a preprocessor, and
+     * parses its query.
+     *
+     * @param settings The settings to use.
+     * @param elm The topic's &lt;top&gt; element.
+     * @param originalAnalyzer The analyzer to use unless the preprocessor
+     *                         modifies the settings.
+     * @param originalParser The query parser to use unless the preprocessor
+     *                       modifies the settings.
+     * @param timer Where to add the time of each stage.
+     * @return The topic, ready to run.
+     */
+    public static Topic prepareTopic(LTRSettings ltrSettings, Element elm,
+        TrecAnalyzer originalAnalyzer, SimpleQueryParser originalParser,
+        QueryMetrics.Timer timer)
+    throws Exception {
+        LTRSettings modifiedSettings;
+        String qid, queryText, postProcessorClass = null;
+        QueryPreProcessor preProcessor;
+        Element preProcessorElm, postProcessorElm;
+        TrecAnalyzer analyzer;
+        SimpleQueryParser parser;
+        Query query;
+
+        qid = elm.select("num").first().text().trim();
+        timer.qid(qid);
+
+        analyzer = originalAnalyzer;
+        parser = originalParser;
+
+        // Check if there is any preprocessing that needs to happen.
+        preProcessorElm = elm.select("preprocessor").first();
+        if(preProcessorElm != null && preProcessorElm.hasAttr("class")){
+            timer.lap(QueryMetrics.EXTRACT);
+            try{
+                preProcessor =  (QueryPreProcessor) Class
+                    .forName(preProcessorElm.attr("class"))
+                    .getConstructor().newInstance();
+            } catch(Exception e){
+                throw new Exception("Could not find query preprocessor "+
+                    "class: "+ preProcessorElm.attr("class"));
+            }
+
+            // The preprocessor gets the entire query's XML.
+            preProcessor.initialize(elm.html(), ltrSettings);
+
+            // The preprocessor provides the query text for this query.
+            queryText = preProcessor.getQuery();
+
+            // Check if the preprocessor requires updating the LTR settings
+            // for this query. That will require initializing a new
+            // analyzer and searcher.
+            if(preProcessor.modifiesSettings()){
+                modifiedSettings = preProcessor.getModifiedSettings();
+                analyzer = new TrecAnalyzer(modifiedSettings);
+                parser = new SimpleQueryParser(analyzer, 
+                    modifiedSettings.searchField);
+            }
+            timer.lap(QueryMetrics.PREPROCESS);
+
+        // Only extract the <text> field if no preprocessing is to occur.
+        } else {
+            queryText = elm.select("text").first().text();
+        }
+
+
+        // Check if there is a post processor specified.
+        postProcessorElm = elm.select("postprocessor").first();
+        if(postProcessorElm != null && postProcessorElm.hasAttr("class"))
+            postProcessorClass = postProcessorElm.attr("class");
+        timer.lap(QueryMetrics.EXTRACT);
+
+        // Parse the query.
+        query = parser.parse(queryText);
+        timer.lap(QueryMetrics.PARSE);
+        return new Topic(qid, query, analyzer,
+            postProcessorClass == null ? null : elm.html(), queryText,
+            postProcessorClass, timer);
+    }
+
     /**
      * Runs a query and displays the restults in TREC format.
      *
@@ -275,68 +746,142 @@ public class BatchSearch
             IndexSearcher searcher, String qid, Query query, String runtag, 
             Analyzer analyzer, QueryPostProcessor postProcessor) 
             throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        RunWriter out = new RunWriter(buffer, false);
+
+        doBatchSearch(settings, searcher, qid, query, runtag, analyzer,
+            postProcessor, out, null, null);
+        out.close();
+        buffer.writeTo(System.out);
+        System.out.flush();
+    }
+
+    /**
+     * Runs a query as above, writing the results to the given run.
+     *
+     * @param out Where to write the results.
+     * @param timer Where to add the time of each stage from the search on,
+     *              or null.
+     * @param cache The cache to serve the first-stage results from (and to
+     *              add them to), or null.
+     */
+    public static void doBatchSearch(LTRSettings settings, 
+            IndexSearcher searcher, String qid, Query query, String runtag, 
+            Analyzer analyzer, QueryPostProcessor postProcessor,
+            RunWriter out, QueryMetrics.Timer timer, ResultCache cache) 
+            throws Exception {
 
         ScoreDoc[] hits;
-        HashSet<String> seen;
+        DocnoLookup.Seen seen;
         int numTotalHits, start, end;
 
-        TopDocs results = searcher.search(query, settings.returnedResultCount);
+        if(timer == null)
+            timer = new QueryMetrics.Timer(null);
+        timer.mark();
+        TopDocs results = cache == null ?
+            search(settings, searcher, query, settings.returnedResultCount) :
+            cache.search(settings, searcher, query,
+                settings.returnedResultCount);
+        timer.lap(QueryMetrics.SEARCH);
 
         // Run results trhough the preprocessor if necessary.
-        if(postProcessor != null)
+        if(postProcessor != null){
             results = postProcessor.getResults(searcher, results);
+            timer.lap(QueryMetrics.POSTPROCESS);
+        }
 
         hits = results.scoreDocs;
-        seen = new HashSet<String>(settings.returnedResultCount);
+        seen = DocnoLookup.forReader(searcher.getIndexReader())
+            .newSeenSet(settings.returnedResultCount);
         numTotalHits = results.totalHits;
         start = 0;
         end = numTotalHits < settings.returnedResultCount ? 
             numTotalHits : settings.returnedResultCount;
 
+        // There are duplicate document numbers in the FR collection, so
+        // only output a given docno once.
+        String[] docnos = new String[end - start];
+        int[] ranks = new int[end - start];
+        int[] docids = new int[end - start];
+        int kept = 0;
         for (int i = start; i < end; i++) {
-            Document doc = searcher.doc(hits[i].doc);
-            String docno = doc.get("docno");
-            // There are duplicate document numbers in the
-            // FR collection, so only output a given docno
-            // once.
-            if (seen.contains(docno))
+            String docno = seen.add(hits[i].doc);
+            if (docno == null)
                 continue;
-            seen.add(docno);
-            System.out.println(qid + " " + "Q0" + " " + docno
-                                   + " " + i    + " " + hits[i].score
-                                   + " " + runtag);
-
-            // Extract and display a snippet for each result if asked to
-            // do so.
-            if(settings.includeSnippets){
-                try {
-                    String textToHighlight = 
-                        concatenateFieldValues(doc, settings.searchField);
-                    SimpleHTMLFormatter htmlFormatter = 
-                        new SimpleHTMLFormatter();
-                    Highlighter highlighter = new Highlighter(htmlFormatter, 
-                        new QueryScorer(query));
-                    highlighter.setTextFragmenter(new SimpleFragmenter(
-                        FRAGMENT_SIZE_CHARS));
-
-                    TokenStream tokenStream = TokenSources.getTokenStream(
-                        settings.searchField, null, textToHighlight,
-                        analyzer, -1);
-
-                    String fragment = highlighter.getBestFragments(
-                        tokenStream,
-                        textToHighlight,
-                        settings.maxSnippetFragments, "...") +"...";
-                    if(!Character.isUpperCase(fragment.charAt(0)))
-                        fragment = "..."+ fragment;
-                    System.out.println(fragment);
-                    
-                } catch(Exception e) {
-                    System.err.println("Problem extracting snippet: "+
-                        e.getMessage());
-                }
-            }
+            docnos[kept] = docno;
+            ranks[kept] = i;
+            docids[kept++] = hits[i].doc;
         }
+        timer.lap(QueryMetrics.DOCNO);
+
+        // Extract a snippet for each result if asked to do so.
+        String[] snippets = null;
+        if(settings.includeSnippets){
+            snippets = new SnippetGenerator(settings, searcher).snippets(
+                query, analyzer, Arrays.copyOf(docids, kept));
+            timer.lap(QueryMetrics.SNIPPET);
+        }
+
+        for (int k = 0; k < kept; k++) {
+            int i = ranks[k];
+            out.result(qid, docnos[k], i, hits[i].score, runtag);
+            if(snippets != null && snippets[k] != null)
+                out.println(snippets[k]);
+        }
+        timer.lap(QueryMetrics.OUTPUT);
+    }
+
+    /**
+     * Finds the top n hits for a query with the engine setting: Lucene's
+     * IndexSearcher.search(), or with "taat", the TermAtATime engine (which
+     * gives the same results), or with "saat", the ScoreAtATime engine over
+     * the index's impacts (see ImpactIndex), within the postingsBudget.
+     *
+     * @param settings The settings to use.
+     * @param searcher The searcher to search.
+     * @param query The query.
+     * @param n The number of hits to return.
+     * @return The hits.
+     */
+    public static TopDocs search(LTRSettings settings, IndexSearcher searcher,
+        Query query, int n)
+    throws IOException {
+        if ("taat".equals(settings.engine))
+            return TermAtATime.search(searcher, query, n);
+        if ("saat".equals(settings.engine))
+            return ScoreAtATime.search(impacts(settings,
+                searcher.getIndexReader(), searcher.getSimilarity(true)),
+                searcher, query, n, settings.postingsBudget);
+        return searcher.search(query, n);
+    }
+
+    /**
+     * Returns the impacts the "saat" engine searches an index with, if they
+     * score as the similarity would: it must be BM25, with the k1 and b the
+     * impacts were built with. Otherwise a run would be written under the
+     * similarity's name but scored with the impacts' BM25.
+     *
+     * @param settings The settings to use.
+     * @param reader The index.
+     * @param similarity The similarity of the run.
+     * @return The impacts.
+     * @throws IllegalArgumentException If the similarity is another.
+     */
+    public static ImpactIndex impacts(LTRSettings settings, IndexReader reader,
+        Similarity similarity)
+    throws IOException {
+        ImpactIndex impacts = ImpactIndex.forReader(reader,
+            Paths.get(settings.indexPath), settings.searchField);
+
+        if (similarity.getClass() != BM25.class ||
+                ((BM25) similarity).getK1() != impacts.k1 ||
+                ((BM25) similarity).getB() != impacts.b)
+            throw new IllegalArgumentException("The saat engine scores with"
+                +" the impacts of "+ settings.indexPath +", which are BM25"
+                +" with k1 "+ impacts.k1 +" and b "+ impacts.b +", not "+
+                ResultCache.similarityKey(similarity) +"; search with that"
+                +" BM25, or rebuild the impacts with ImpactIndex -k1 and -b");
+        return impacts;
     }
 
     /**
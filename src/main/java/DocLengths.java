@@ -0,0 +1,426 @@
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.packed.PackedInts;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The exact length (number of tokens) and number of unique terms of every
+ * document, for each field, stored beside the index. Lucene keeps one norm
+ * per document and field, and IndexTREC writes those with Lucene's default
+ * similarity, so they hold an encoded 1/sqrt(length) byte rather than a
+ * length. BM25 and TMPL read their lengths from here instead, whenever the
+ * index has them.
+ *
+ * The docLengths setting has IndexTREC write the store once the index is
+ * built. Each segment gets its own file, named doclengths-SEGMENT. The file
+ * holds the lengths and unique term counts of every field, each packed with
+ * PackedInts into as few bits as its largest value needs, and loaded
+ * entirely onto the heap. The file doclengths.fields lists the fields an
+ * index has lengths for. Because the files are not named like Lucene's own,
+ * IndexWriter leaves them alone.
+ *
+ * A segment is loaded the first time it is scored, and is then shared by
+ * every similarity and query until the segment is closed. A segment of an
+ * index that has a store but no file of its own (e.g., one added by
+ * SearchServer's near-real-time indexing, or by a merge) has its lengths
+ * worked out from its postings instead, which gives the same values.
+ */
+public class DocLengths {
+    public static final String FIELDS_FILE = "doclengths.fields";
+    static final String PREFIX = "doclengths-";
+    private static final String CODEC = "DocLengths";
+    private static final int VERSION = 0;
+
+    // The loaded segments, by core cache key.
+    private static final Map<Object, Map<String, Lengths>> segments =
+        new HashMap<Object, Map<String, Lengths>>();
+
+    private DocLengths() {}
+
+    /**
+     * The lengths and unique term counts of one field of one segment.
+     */
+    public static class Lengths {
+        private final PackedInts.Reader lengths;
+        private final PackedInts.Reader uniqueTerms;
+        private final int lengthBits;
+        private final int uniqueTermBits;
+
+        Lengths(PackedInts.Reader lengths, int lengthBits,
+            PackedInts.Reader uniqueTerms, int uniqueTermBits) {
+            this.lengths = lengths;
+            this.lengthBits = lengthBits;
+            this.uniqueTerms = uniqueTerms;
+            this.uniqueTermBits = uniqueTermBits;
+        }
+
+        /**
+         * @return The number of tokens in the document's field.
+         */
+        public long length(int doc) {
+            return lengths.get(doc);
+        }
+
+        /**
+         * @return The number of distinct terms in the document's field.
+         */
+        public long uniqueTerms(int doc) {
+            return uniqueTerms.get(doc);
+        }
+
+        /**
+         * @return The bits a length is packed into.
+         */
+        public int bitsPerLength() {
+            return lengthBits;
+        }
+
+        /**
+         * @return The heap used by the lengths and unique term counts.
+         */
+        public long ramBytesUsed() {
+            return lengths.ramBytesUsed() + uniqueTerms.ramBytesUsed();
+        }
+    }
+
+    /**
+     * Returns the lengths of a field of a segment, loading the segment if it
+     * has not been yet.
+     *
+     * @param reader The segment, as given to Similarity.simScorer().
+     * @param field The field.
+     * @return The lengths, or null if the index has none for the field.
+     */
+    public static Lengths get(LeafReader reader, String field)
+    throws IOException {
+        Object key = reader.getCoreCacheKey();
+        Map<String, Lengths> fields;
+
+        synchronized (segments) {
+            fields = segments.get(key);
+        }
+        if (fields == null) {
+            fields = load(reader);
+            synchronized (segments) {
+                if (segments.containsKey(key))
+                    fields = segments.get(key);
+                else {
+                    segments.put(key, fields);
+                    reader.addCoreClosedListener(
+                        new LeafReader.CoreClosedListener() {
+                            public void onClose(Object ownerCoreCacheKey) {
+                                synchronized (segments) {
+                                    segments.remove(ownerCoreCacheKey);
+                                }
+                            }
+                        });
+                }
+            }
+        }
+        return fields.get(field);
+    }
+
+    /**
+     * @return The lengths of each field the segment's index has a store
+     *         for; empty if it has none.
+     */
+    private static Map<String, Lengths> load(LeafReader reader)
+    throws IOException {
+        LeafReader unwrapped = FilterLeafReader.unwrap(reader);
+        if (!(unwrapped instanceof SegmentReader))
+            return Collections.emptyMap();
+        SegmentReader segment = (SegmentReader) unwrapped;
+        Directory dir = segment.getSegmentInfo().info.dir;
+        List<String> fields = readFields(dir);
+
+        if (fields.isEmpty())
+            return Collections.emptyMap();
+        try {
+            return read(dir, segment);
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            return compute(segment, fields);
+        } catch (CorruptIndexException e) {
+            // Left behind by an earlier index with the same segment names.
+            return compute(segment, fields);
+        }
+    }
+
+    /**
+     * @return The fields listed in an index's FIELDS_FILE, or none if it
+     *         has no store.
+     */
+    static List<String> readFields(Directory dir) throws IOException {
+        List<String> fields = new ArrayList<String>();
+
+        try (IndexInput in = dir.openInput(FIELDS_FILE, IOContext.READONCE)) {
+            CodecUtil.checkHeader(in, CODEC, VERSION, VERSION);
+            for (int i = in.readVInt(); i > 0; i--)
+                fields.add(in.readString());
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            // No store.
+        }
+        return fields;
+    }
+
+    /**
+     * Works out the lengths and unique term counts of some fields of a
+     * segment from its postings: a document's length is the sum of the
+     * frequencies of its terms.
+     */
+    static Map<String, Lengths> compute(LeafReader reader,
+        List<String> fields) throws IOException {
+        Map<String, Lengths> lengths = new LinkedHashMap<String, Lengths>();
+        int maxDoc = reader.maxDoc();
+
+        for (String field : fields) {
+            long[] length = new long[maxDoc];
+            long[] unique = new long[maxDoc];
+            Terms terms = reader.terms(field);
+            if (terms != null) {
+                TermsEnum termsEnum = terms.iterator();
+                PostingsEnum postings = null;
+                while (termsEnum.next() != null) {
+                    postings = termsEnum.postings(postings, PostingsEnum.FREQS);
+                    for (int doc = postings.nextDoc();
+                         doc != DocIdSetIterator.NO_MORE_DOCS;
+                         doc = postings.nextDoc()) {
+                        length[doc] += postings.freq();
+                        unique[doc]++;
+                    }
+                }
+            }
+            PackedInts.Mutable packedLength = pack(length);
+            PackedInts.Mutable packedUnique = pack(unique);
+            lengths.put(field, new Lengths(packedLength,
+                packedLength.getBitsPerValue(), packedUnique,
+                packedUnique.getBitsPerValue()));
+        }
+        return lengths;
+    }
+
+    /**
+     * @return The values, packed into as few bits as the largest needs.
+     */
+    private static PackedInts.Mutable pack(long[] values) {
+        long max = 0;
+        for (long value : values)
+            max = Math.max(max, value);
+        PackedInts.Mutable packed = PackedInts.getMutable(values.length,
+            PackedInts.bitsRequired(max), PackedInts.COMPACT);
+        for (int i = 0; i < values.length; i++)
+            packed.set(i, values[i]);
+        return packed;
+    }
+
+    private static Map<String, Lengths> read(Directory dir,
+        SegmentReader segment) throws IOException {
+        Map<String, Lengths> lengths = new LinkedHashMap<String, Lengths>();
+        String name = PREFIX + segment.getSegmentName();
+
+        try (ChecksumIndexInput in =
+                dir.openChecksumInput(name, IOContext.READONCE)) {
+            CodecUtil.checkIndexHeader(in, CODEC, VERSION, VERSION,
+                segment.getSegmentInfo().info.getId(), "");
+            if (in.readVInt() != segment.maxDoc())
+                throw new CorruptIndexException("Wrong number of documents",
+                    in);
+            for (int i = in.readVInt(); i > 0; i--) {
+                String field = in.readString();
+                int lengthBits = in.readVInt();
+                PackedInts.Reader length = read(in, segment.maxDoc(),
+                    lengthBits);
+                int uniqueTermBits = in.readVInt();
+                PackedInts.Reader unique = read(in, segment.maxDoc(),
+                    uniqueTermBits);
+                lengths.put(field, new Lengths(length, lengthBits, unique,
+                    uniqueTermBits));
+            }
+            CodecUtil.checkFooter(in);
+        }
+        return lengths;
+    }
+
+    private static void write(Directory dir, SegmentReader segment,
+        Map<String, Lengths> lengths) throws IOException {
+        String name = PREFIX + segment.getSegmentName();
+
+        try (IndexOutput out = dir.createOutput(name, IOContext.DEFAULT)) {
+            CodecUtil.writeIndexHeader(out, CODEC, VERSION,
+                segment.getSegmentInfo().info.getId(), "");
+            out.writeVInt(segment.maxDoc());
+            out.writeVInt(lengths.size());
+            for (Map.Entry<String, Lengths> entry : lengths.entrySet()) {
+                out.writeString(entry.getKey());
+                write(out, entry.getValue().lengths,
+                    entry.getValue().lengthBits);
+                write(out, entry.getValue().uniqueTerms,
+                    entry.getValue().uniqueTermBits);
+            }
+            CodecUtil.writeFooter(out);
+        }
+    }
+
+    private static PackedInts.Reader read(IndexInput in, int count, int bits)
+    throws IOException {
+        return PackedInts.getReaderNoHeader(in, PackedInts.Format.PACKED,
+            PackedInts.VERSION_CURRENT, count, bits);
+    }
+
+    private static void write(IndexOutput out, PackedInts.Reader values,
+        int bits) throws IOException {
+        out.writeVInt(bits);
+        PackedInts.Writer writer = PackedInts.getWriterNoHeader(out,
+            PackedInts.Format.PACKED, values.size(), bits,
+            PackedInts.DEFAULT_BUFFER_SIZE);
+        for (int i = 0; i < values.size(); i++)
+            writer.add(values.get(i));
+        writer.finish();
+    }
+
+    /**
+     * Writes the store of an index (or of each of its shards, if it was
+     * built with keepShards): a file for each segment with the lengths of
+     * every field indexed with frequencies, and the list of those fields.
+     * Files of segments that are no longer in the index are deleted.
+     *
+     * @param indexPath The index directory.
+     */
+    public static void write(Path indexPath) throws IOException {
+        List<Path> paths = ShardedIndexer.shardPaths(indexPath);
+        if (paths.isEmpty())
+            paths = Collections.singletonList(indexPath);
+
+        for (Path path : paths) {
+            try (Directory dir = FSDirectory.open(path);
+                 DirectoryReader reader = DirectoryReader.open(dir)) {
+                Set<String> fields = new HashSet<String>();
+                Set<String> files = new HashSet<String>();
+                for (LeafReaderContext leaf : reader.leaves())
+                    for (FieldInfo info : leaf.reader().getFieldInfos())
+                        if (info.getIndexOptions().compareTo(
+                                IndexOptions.DOCS_AND_FREQS) >= 0)
+                            fields.add(info.name);
+                List<String> sorted = new ArrayList<String>(fields);
+                Collections.sort(sorted);
+
+                for (LeafReaderContext leaf : reader.leaves()) {
+                    SegmentReader segment = (SegmentReader) leaf.reader();
+                    write(dir, segment, compute(segment, sorted));
+                    files.add(PREFIX + segment.getSegmentName());
+                }
+                for (String file : dir.listAll())
+                    if (file.startsWith(PREFIX) && !files.contains(file))
+                        dir.deleteFile(file);
+
+                try (IndexOutput out =
+                        dir.createOutput(FIELDS_FILE, IOContext.DEFAULT)) {
+                    CodecUtil.writeHeader(out, CODEC, VERSION);
+                    out.writeVInt(sorted.size());
+                    for (String field : sorted)
+                        out.writeString(field);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the store of an index, e.g., when the index is rebuilt
+     * without one.
+     *
+     * @param indexPath The index directory.
+     */
+    public static void delete(Path indexPath) throws IOException {
+        try (Directory dir = FSDirectory.open(indexPath)) {
+            for (String file : dir.listAll())
+                if (file.startsWith(PREFIX) || file.equals(FIELDS_FILE))
+                    dir.deleteFile(file);
+        }
+    }
+
+    /**
+     * Adds a store to an existing index, replacing any it had, and prints
+     * the size of each field's lengths next to that of Lucene's norms.
+     *
+     * Usage: java DocLengths -index INDEX_PATH
+     */
+    public static void main(String[] args) throws IOException {
+        String index = null;
+
+        for (int i = 0; i < args.length; i++)
+            if ("-index".equals(args[i]) || "-indexPath".equals(args[i]))
+                index = args[i+1];
+        if (index == null) {
+            System.err.println("Usage: java DocLengths -index INDEX_PATH");
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        write(Paths.get(index));
+        System.out.printf("wrote %s in %.1f s\n", index,
+            (System.nanoTime() - start) / 1e9);
+        for (Path path : ShardedIndexer.shardPaths(Paths.get(index)).isEmpty()
+                ? Arrays.asList(Paths.get(index))
+                : ShardedIndexer.shardPaths(Paths.get(index)))
+            report(path);
+    }
+
+    /**
+     * Prints, for each field, the heap used by its lengths and unique term
+     * counts, and the bytes of a one-byte norm per document.
+     */
+    private static void report(Path path) throws IOException {
+        try (DirectoryReader reader =
+                DirectoryReader.open(FSDirectory.open(path))) {
+            Map<String, long[]> fields = new LinkedHashMap<String, long[]>();
+            for (String field : readFields(reader.directory()))
+                fields.put(field, new long[3]);
+            for (LeafReaderContext leaf : reader.leaves()) {
+                for (Map.Entry<String, long[]> field : fields.entrySet()) {
+                    Lengths lengths = get(leaf.reader(), field.getKey());
+                    field.getValue()[0] += lengths.lengths.ramBytesUsed();
+                    field.getValue()[1] += lengths.uniqueTerms.ramBytesUsed();
+                    field.getValue()[2] = Math.max(field.getValue()[2],
+                        lengths.bitsPerLength());
+                }
+            }
+            for (Map.Entry<String, long[]> field : fields.entrySet())
+                System.out.printf("%s %s: %d docs; lengths %.2f MB (up to %d"
+                    +" bits each), unique terms %.2f MB; a byte norm per doc"
+                    +" %.2f MB\n", path, field.getKey(), reader.maxDoc(),
+                    field.getValue()[0] / 1048576.0, field.getValue()[2],
+                    field.getValue()[1] / 1048576.0,
+                    reader.maxDoc() / 1048576.0);
+        }
+    }
+}
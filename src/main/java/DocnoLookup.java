@@ -0,0 +1,204 @@
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.util.SentinelIntSet;
+import org.apache.lucene.util.packed.PackedInts;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Looks up the docnos of search results. FileParser indexes each docno as a
+ * SortedDocValues field as well as a stored field, so a docno can be read
+ * from the doc values without loading (and decompressing) the document's
+ * stored fields. Each distinct docno also has an ordinal across the whole
+ * index, so duplicate docnos (as in the FR collection) can be skipped by
+ * comparing ints rather than strings.
+ *
+ * Indexes built before docnos had doc values are still supported: docnos
+ * are then read from the stored fields, as they used to be.
+ *
+ * There is one lookup per reader (see forReader()); it may be shared by
+ * threads searching the same reader.
+ */
+public class DocnoLookup {
+    public static final String FIELD = "docno";
+
+    private static final Map<IndexReader, DocnoLookup> lookups =
+        new HashMap<IndexReader, DocnoLookup>();
+
+    private final IndexReader reader;
+    private final List<LeafReaderContext> leaves;
+    private final boolean docValues;
+    private final MultiDocValues.OrdinalMap ordinals;
+
+    // The doc values instances of a segment are not thread-safe, so each
+    // thread gets its own.
+    private final ThreadLocal<SortedDocValues[]> values =
+        new ThreadLocal<SortedDocValues[]>() {
+            @Override
+            protected SortedDocValues[] initialValue() {
+                try {
+                    return leafValues();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+    /**
+     * @param reader An index reader.
+     * @return The lookup for the reader, created the first time it is asked
+     *         for and dropped when the reader is closed.
+     */
+    public static DocnoLookup forReader(IndexReader reader)
+    throws IOException {
+        synchronized(lookups){
+            DocnoLookup lookup = lookups.get(reader);
+            if(lookup == null){
+                lookup = new DocnoLookup(reader);
+                lookups.put(reader, lookup);
+                reader.addReaderClosedListener(
+                    new IndexReader.ReaderClosedListener() {
+                        public void onClose(IndexReader closed) {
+                            synchronized(lookups){
+                                lookups.remove(closed);
+                            }
+                        }
+                    });
+            }
+            return lookup;
+        }
+    }
+
+    /**
+     * Builds the mapping from each segment's docno ordinals to ordinals
+     * across the whole index, if every segment has docno doc values.
+     */
+    private DocnoLookup(IndexReader reader) throws IOException {
+        MultiDocValues.OrdinalMap map = null;
+
+        this.reader = reader;
+        this.leaves = reader.leaves();
+        this.docValues = hasDocValues();
+        if(docValues){
+            SortedDocValues[] leafValues = leafValues();
+            if(leafValues.length > 1)
+                map = MultiDocValues.OrdinalMap.build(
+                    reader.getCoreCacheKey(), leafValues, PackedInts.DEFAULT);
+        }
+        this.ordinals = map;
+    }
+
+    private boolean hasDocValues() {
+        for(LeafReaderContext leaf : leaves){
+            FieldInfo info = leaf.reader().getFieldInfos().fieldInfo(FIELD);
+            if(info == null || info.getDocValuesType() != DocValuesType.SORTED)
+                return false;
+        }
+        return !leaves.isEmpty();
+    }
+
+    private SortedDocValues[] leafValues() throws IOException {
+        if(!docValues)
+            return null;
+        SortedDocValues[] leafValues = new SortedDocValues[leaves.size()];
+        for(int i = 0; i < leafValues.length; i++)
+            leafValues[i] = leaves.get(i).reader().getSortedDocValues(FIELD);
+        return leafValues;
+    }
+
+    /**
+     * @return True if docnos are read from doc values rather than stored
+     *         fields.
+     */
+    public boolean hasOrdinals() {
+        return docValues;
+    }
+
+    /**
+     * @param docid A document's id in the reader.
+     * @return The document's docno.
+     */
+    public String docno(int docid) throws IOException {
+        SortedDocValues[] leafValues = values.get();
+        if(leafValues == null)
+            return reader.document(docid).get(FIELD);
+
+        int leaf = ReaderUtil.subIndex(docid, leaves);
+        SortedDocValues docnos = leafValues[leaf];
+        int ord = docnos.getOrd(docid - leaves.get(leaf).docBase);
+        return ord < 0 ? null : docnos.lookupOrd(ord).utf8ToString();
+    }
+
+    /**
+     * @param docid A document's id in the reader.
+     * @return The ordinal of the document's docno among all of the docnos
+     *         in the index, or -1 if the index has no docno doc values.
+     */
+    public int ordinal(int docid) {
+        SortedDocValues[] leafValues = values.get();
+        if(leafValues == null)
+            return -1;
+
+        int leaf = ReaderUtil.subIndex(docid, leaves);
+        int ord = leafValues[leaf].getOrd(docid - leaves.get(leaf).docBase);
+        if(ordinals == null || ord < 0)
+            return ord;
+        return (int) ordinals.getGlobalOrds(leaf).get(ord);
+    }
+
+    /**
+     * @param expected The number of results expected.
+     * @return A new set for skipping results whose docno has already been
+     *         seen.
+     */
+    public Seen newSeenSet(int expected) {
+        return new Seen(expected);
+    }
+
+    /**
+     * The docnos seen so far in one result list.
+     */
+    public class Seen {
+        private final SentinelIntSet ordinals;
+        private final HashSet<String> docnos;
+
+        private Seen(int expected) {
+            if(hasOrdinals()){
+                ordinals = new SentinelIntSet(Math.max(expected, 16), -1);
+                docnos = null;
+            } else {
+                ordinals = null;
+                docnos = new HashSet<String>(expected);
+            }
+        }
+
+        /**
+         * Marks the docno of a document as seen.
+         *
+         * @param docid A document's id in the reader.
+         * @return The document's docno, or null if it had already been seen.
+         */
+        public String add(int docid) throws IOException {
+            String docno;
+            if(ordinals != null){
+                int ord = ordinal(docid);
+                if(ord >= 0 && ordinals.exists(ord))
+                    return null;
+                if(ord >= 0)
+                    ordinals.put(ord);
+                return docno(docid);
+            }
+            docno = docno(docid);
+            return docnos.add(docno) ? docno : null;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+
+import java.io.IOException;
+
+/**
+ * Where the parsers in FileParser send the documents they build. A plain sink
+ * adds each document to the index. A sink for a source file (as used for
+ * incremental indexing) tags each document with the file it came from in the
+ * "source" field and replaces any document already in the index with the
+ * same docno, so that re-indexing a file does not leave duplicates behind.
+ * During a checkpointed build, documents are tagged with their source but
+ * simply added, since the index cannot already hold them.
+ */
+public class DocumentSink {
+    public static final String SOURCE_FIELD = "source";
+
+    private final IndexWriter writer;
+    private final String source;
+    private final boolean replace;
+    private final IndexMetrics metrics;
+
+    /**
+     * @param writer The index to add documents to.
+     */
+    public DocumentSink(IndexWriter writer) {
+        this(writer, null);
+    }
+
+    /**
+     * @param writer The index to add documents to.
+     * @param source The name of the file the documents come from, or null to
+     *               add documents as they are.
+     */
+    public DocumentSink(IndexWriter writer, String source) {
+        this(writer, source, true);
+    }
+
+    /**
+     * @param writer The index to add documents to.
+     * @param source The name of the file the documents come from, or null to
+     *               add documents as they are.
+     * @param replace Whether documents already in the index with the same
+     *                docno should be replaced.
+     */
+    public DocumentSink(IndexWriter writer, String source, boolean replace) {
+        this.writer = writer;
+        this.source = source;
+        this.replace = replace;
+        this.metrics = IndexMetrics.forWriter(writer);
+    }
+
+    /**
+     * @return The metrics of the run the documents are indexed in.
+     */
+    public IndexMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Adds a document to the index; with a source (and unless replace is
+     * false), any existing document with the same docno is replaced.
+     *
+     * @param doc The document, which must have a docno field.
+     */
+    public void add(Document doc) throws IOException {
+        long start = System.nanoTime();
+
+        if(source == null){
+            writer.addDocument(doc);
+        } else {
+            doc.add(new StringField(SOURCE_FIELD, source, Field.Store.NO));
+            if(replace)
+                writer.updateDocument(
+                    new Term("docno", doc.get("docno")), doc);
+            else
+                writer.addDocument(doc);
+        }
+        metrics.indexed(System.nanoTime() - start);
+    }
+
+    /**
+     * Deletes the documents in the index that came from this sink's source.
+     * This is done before re-indexing a changed file, so that documents
+     * which are no longer in the file are removed.
+     */
+    public void deleteSource() throws IOException {
+        if(source != null)
+            writer.deleteDocuments(new Term(SOURCE_FIELD, source));
+    }
+}
@@ -10,7 +10,6 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.QueryParser;
@@ -22,7 +21,6 @@ import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.similarities.*;
-import org.apache.lucene.store.FSDirectory;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -190,8 +188,8 @@ public class ExplicitFeedbackM1PreProcessor implements QueryPreProcessor {
         this.globalSettings.tokenizer = "ClassicTokenizer";
 
         // Initialize the index reader, etc.
-        IndexReader reader = DirectoryReader.open(FSDirectory.open(
-            Paths.get(globalSettings.indexPath)));
+        IndexReader reader = ShardedIndexer.openReader(
+            Paths.get(globalSettings.indexPath));
         searcher = new IndexSearcher(reader);
         analyzer = new TrecAnalyzer(globalSettings);
         relevantDocs = new ArrayList<FeedbackDocument>();
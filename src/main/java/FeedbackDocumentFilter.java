@@ -70,6 +70,7 @@ public class FeedbackDocumentFilter implements QueryPostProcessor {
             throws Exception {
         ArrayList<ScoreDoc> filteredDocs = new ArrayList<ScoreDoc>();
         float maxScore = Float.MIN_VALUE;
+        DocnoLookup docnos;
         String docno;
 
         // Make sure this post processor was initialized.
@@ -78,9 +79,10 @@ public class FeedbackDocumentFilter implements QueryPostProcessor {
                 "post processor.");
 
         // Filter the results, only keeping docs with a docno that isn't part
-        // of the feedback set.
-        for(int i = 0; i < results.totalHits; i++) {
-            docno = searcher.doc(results.scoreDocs[i].doc).get("docno");
+        // of the feedback set. (totalHits may be more than were returned.)
+        docnos = DocnoLookup.forReader(searcher.getIndexReader());
+        for(int i = 0; i < results.scoreDocs.length; i++) {
+            docno = docnos.docno(results.scoreDocs[i].doc);
             if(!feedbackDocnos.contains(docno)) {
                 filteredDocs.add(results.scoreDocs[i]);
 
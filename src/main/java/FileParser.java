@@ -1,8 +1,12 @@
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.util.BytesRef;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.FileUtils;
@@ -10,12 +14,14 @@ import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 
 import java.util.zip.GZIPInputStream;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import java.io.IOException;
 import java.io.File;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.lang.StringBuilder;
 
@@ -68,64 +74,232 @@ public class FileParser {
      *      - .warc: WARC
      *      - anything else: TREC
      *
+     * Uncompressed TREC files are memory mapped (see MappedTrecReader) unless
+     * the memoryMapFiles setting is false.
+     *
      * @param settings The global settings (used by some parsers to determine
      *                 fields to index, etc.)
      * @param writer The index to write extracted documents to.
      * @param file The file to process.
-     * @param extension The extension of the file.
+     * @return The number of documents added to the index.
      */
-    public static void processFile(LTRSettings settings, IndexWriter writer, 
+    public static int processFile(LTRSettings settings, IndexWriter writer, 
         File file)
     throws IOException {
-        String extension = FilenameUtils.getExtension(file.getName());
+        return processFile(settings, new DocumentSink(writer), file);
+    }
+
+    /**
+     * Processes the content of a file as above, sending the extracted
+     * documents to the given sink.
+     *
+     * @param settings The global settings.
+     * @param writer Where to send the extracted documents.
+     * @param file The file to process.
+     * @return The number of documents extracted.
+     */
+    public static int processFile(LTRSettings settings, DocumentSink writer, 
+        File file)
+    throws IOException {
+        String format = documentFormat(settings, file);
+        IndexMetrics metrics = writer.metrics();
+        long start = System.nanoTime(), before = metrics.threadNanos();
+        InputStream inputStream;
+        int docCount;
+
+        // Uncompressed TREC files can be read without a stream.
+        if(!format.equals("warc") && !format.equals("simple") &&
+           settings.memoryMapFiles && !isCompressed(file) &&
+           MappedTrecReader.isSupported()){
+            docCount = parseTRECFile(settings, writer, file);
+            metrics.fileDone(System.nanoTime() - start, before);
+            return docCount;
+        }
+
+        inputStream = metrics.timed(openInputStream(settings, file));
+
+        // Closed even if parsing fails, which also stops any read-ahead or
+        // decompression threads behind the stream.
+        try {
+            switch(format){
+                case "warc":
+                    //System.err.println("Found WARC document!");
+                    docCount = parseWARCFile(settings, writer, inputStream);
+                    break;
+
+                // Simple means that the docno is the filename and the
+                // contents are not processed as fields.
+                case "simple":
+                    docCount = parseSimpleFile(
+                        settings, writer, inputStream, file.getName());
+                    break;
+
+                default:
+                    //System.err.println("Found TREC document!");
+                    docCount = parseTRECFile(settings, writer, inputStream);
+            }
+        } finally {
+            inputStream.close();
+        }
+        metrics.fileDone(System.nanoTime() - start, before);
+        return docCount;
+    } 
+
+    /**
+     * Opens a file for reading, uncompressing it if its extension is one of
+     * the compression extensions (.gzip / .gz, .bzip2 / .bz2).
+     *
+     * @param file The file to open.
+     * @return A stream of the (uncompressed) file contents.
+     */
+    public static InputStream openInputStream(File file)
+    throws IOException {
+        return openInputStream(file, 0);
+    }
+
+    /**
+     * Opens a file for reading as above, decompressing it on other threads
+     * according to the decompressThreads setting.
+     *
+     * @param settings The global settings.
+     * @param file The file to open.
+     * @return A stream of the (uncompressed) file contents.
+     */
+    public static InputStream openInputStream(LTRSettings settings, File file)
+    throws IOException {
+        return openInputStream(file, settings.decompressThreads);
+    }
+
+    /**
+     * Opens a file for reading, uncompressing it if its extension is one of
+     * the compression extensions. With one or more decompression threads, a
+     * compressed file is decompressed on a read-ahead thread, ahead of the
+     * caller; with two or more, the blocks of a bzip2 file are also decoded
+     * in parallel on that many threads.
+     *
+     * @param file The file to open.
+     * @param threads The number of decompression threads; 0 decompresses on
+     *                the calling thread.
+     * @return A stream of the (uncompressed) file contents.
+     */
+    public static InputStream openInputStream(File file, int threads)
+    throws IOException {
         InputStream inputStream = FileUtils.openInputStream(file);
-        boolean removePrevExtension = false;
 
-        // Check for compression extensions.
-        switch(extension){
+        // Check for compression extensions. BZip2CompressorInputStream reads
+        // its input a byte at a time, so it needs a buffer underneath.
+        switch(FilenameUtils.getExtension(file.getName())){
             case "gz":
             case "gzip":
                 // Handle gzip files.
-                inputStream = new GZIPInputStream(inputStream);
-                removePrevExtension = true;
+                inputStream = new GZIPInputStream(inputStream, 1 << 16);
                 break;
             case "bzip2":
             case "bz2":
                 // Handle bzip2 files...
-                inputStream = new BZip2CompressorInputStream(inputStream);
-                removePrevExtension = true;
+                if(threads > 1)
+                    inputStream =
+                        new ParallelBZip2InputStream(inputStream, threads);
+                else
+                    inputStream = new BZip2CompressorInputStream(
+                        new BufferedInputStream(inputStream, 1 << 16));
                 break;
+            default:
+                return inputStream;
         }
+        if(threads > 0)
+            inputStream = new ReadAheadInputStream(inputStream);
+        return inputStream;
+    }
 
-        // Get rid of any compression extensions and get the next extension.
-        if(removePrevExtension)
-            extension = FilenameUtils.getExtension(
-                removeExtension(file.getName(), "."+extension));
+    /**
+     * @param file The file to check.
+     * @return True if the file's extension is a compression extension.
+     */
+    public static boolean isCompressed(File file) {
+        switch(FilenameUtils.getExtension(file.getName())){
+            case "gz":
+            case "gzip":
+            case "bzip2":
+            case "bz2":
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Determines the document format of a file: the parser setting, if it is
+     * not "auto", or else the file's extension once any compression
+     * extension has been removed.
+     *
+     * @param settings The global settings.
+     * @param file The file to check.
+     * @return The format, e.g., "warc" or "simple"; anything else is TREC.
+     */
+    public static String documentFormat(LTRSettings settings, File file) {
+        String extension = FilenameUtils.getExtension(file.getName());
 
         // If the user specified a parser, use that; if not, use the default.
         if(!settings.parser.equals("auto"))
-            extension = settings.parser;
+            return settings.parser;
 
-        // Check
+        // Get rid of any compression extensions and get the next extension.
         switch(extension){
-            case "warc":
-                //System.err.println("Found WARC document!");
-                parseWARCFile(settings, writer, inputStream);
-                break;
+            case "gz":
+            case "gzip":
+            case "bzip2":
+            case "bz2":
+                extension = FilenameUtils.getExtension(
+                    removeExtension(file.getName(), "."+extension));
+        }
+        return extension;
+    }
 
-            // Simple means that the docno is the filename and the contents
-            // are not processed as fields.
-            case "simple":
-                parseSimpleFile(settings, writer, inputStream, file.getName());
-                break;
+    /**
+     * Adds the docno field to a document: indexed and stored, as well as
+     * a SortedDocValues field so that it can be read at search time without
+     * loading the stored fields (see DocnoLookup).
+     *
+     * @param doc The document.
+     * @param docno The document's id.
+     */
+    public static void addDocno(Document doc, String docno) {
+        doc.add(new StringField("docno", docno, Field.Store.YES));
+        doc.add(new SortedDocValuesField("docno", new BytesRef(docno)));
+    }
 
-            default:
-                //System.err.println("Found TREC document!");
-                parseTRECFile(settings, writer, inputStream);
-        } 
+    private static final FieldType TEXT_WITH_OFFSETS_STORED =
+        textWithOffsets(TextField.TYPE_STORED);
+    private static final FieldType TEXT_WITH_OFFSETS_NOT_STORED =
+        textWithOffsets(TextField.TYPE_NOT_STORED);
+
+    private static FieldType textWithOffsets(FieldType textType) {
+        FieldType type = new FieldType(textType);
+        type.setIndexOptions(
+            IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        type.freeze();
+        return type;
+    }
 
-        inputStream.close();
-    } 
+    /**
+     * Creates a text field. With the indexOffsets setting, the postings of
+     * the field also record each term's character offsets, so that snippets
+     * can be built from the postings (see SnippetGenerator) rather than by
+     * re-analyzing the stored text.
+     *
+     * @param settings The global settings.
+     * @param name The field's name.
+     * @param value The field's text.
+     * @param store Whether to store the field.
+     * @return The field.
+     */
+    public static Field textField(LTRSettings settings, String name,
+        String value, Field.Store store) {
+        if(!settings.indexOffsets)
+            return new TextField(name, value, store);
+        return new Field(name, value, store == Field.Store.YES ?
+            TEXT_WITH_OFFSETS_STORED : TEXT_WITH_OFFSETS_NOT_STORED);
+    }
 
     /**
      * Treats the given file as a stand alone document (the entire contents of
@@ -133,11 +307,12 @@ public class FileParser {
      * filename.
      *
      * @param settings The global settings.
-     * @param writer The index to write the document to.
+     * @param writer Where to send the document.
      * @param input  The input stream to parse.
      * @param filename The name of the file.
+     * @return The number of documents added to the index (always 1).
      */
-    public static void parseSimpleFile(LTRSettings settings, IndexWriter writer,
+    public static int parseSimpleFile(LTRSettings settings, DocumentSink writer,
         InputStream input, String filename)
     throws IOException {
         String docno = FilenameUtils.getBaseName(filename);
@@ -155,75 +330,212 @@ public class FileParser {
             documentContent.append(line);
 
         Document doc = new Document();
-        doc.add(new StringField("docno", docno, Field.Store.YES));
+        addDocno(doc, docno);
 
         // Unlike other parsers, we always index the contents of simple files.
-        doc.add(new TextField("contents", 
+        doc.add(textField(settings, "contents", 
             documentContent.toString(), storeField));
 
-        writer.addDocument(doc);
+        writer.add(doc);
+        return 1;
     }
  
     /**
      * Parses a TREC styled file (with &lt;DOC&gt; tags) and adds each document
-     * to the given index.
+     * to the given index. Each document is read into a buffer that is reused
+     * for the whole file and, unless the trecParser setting is "jsoup",
+     * handed to a TrecDocScanner; documents the scanner cannot handle are
+     * parsed with Jsoup.
      *
      * @param settings The global settings.
-     * @param writer The index to write the document to.
+     * @param writer Where to send the document.
      * @param input  The input stream to parse.
+     * @return The number of documents added to the index.
      */
-    public static void parseTRECFile(LTRSettings settings, IndexWriter writer,
+    public static int parseTRECFile(LTRSettings settings, DocumentSink writer,
         InputStream input) 
     throws IOException {
-        org.jsoup.nodes.Document soup;
-        String docno, txt;        
         Field.Store storeField = Field.Store.NO;
-        boolean addContentsField = settings.trecFieldsToIndex.size() == 0;
-        StringBuilder documentContent = null;
+        TrecDocScanner scanner = null;
+        char[] buffer = new char[1 << 16];
+        int length = -1;
         BufferedReader reader = new BufferedReader(
             new InputStreamReader(input));
         String line;
+        int docCount = 0;
 
         // Determine whether non-id fields should be stored.
         if(settings.storeFields)
             storeField = Field.Store.YES;
 
+        if(!settings.trecParser.equals("jsoup"))
+            scanner = new TrecDocScanner(settings.trecFieldsToIndex);
+
         while((line = reader.readLine()) != null){
             // Found the start of a new document.
-            if(line.equals("<DOC>") && documentContent == null ){
-                documentContent = new StringBuilder();
-                documentContent.append(line+"\n");
+            if(line.equals("<DOC>") && length < 0){
+                length = 0;
+                buffer = append(buffer, length, line, true);
+                length += line.length() + 1;
 
             // Found the end of the current document.
-            } else if(line.equals("</DOC>") && documentContent != null) {
-                documentContent.append(line);
-                soup = Jsoup.parse(documentContent.toString());
-                docno = soup.getElementsByTag("DOCNO").first().text().trim();
-                Document doc = new Document();
-                doc.add(new StringField("docno", docno, Field.Store.YES));
-
-                // Get all of the requested fields.
-                for(String field : settings.trecFieldsToIndex)
-                    if(field.equals("contents"))
-                        addContentsField = true;
-                    else
-                        for(Element elm : soup.getElementsByTag(field))
-                            doc.add(new TextField(field, elm.text(), 
-                                storeField));
-    
-                // If no field is specified, index the whole thing.
-                if(addContentsField)
-                    doc.add(new TextField("contents", 
-                        soup.text(), storeField));
-    
-                writer.addDocument(doc);
-                documentContent = null;
+            } else if(line.equals("</DOC>") && length >= 0) {
+                buffer = append(buffer, length, line, false);
+                length += line.length();
+                writer.add(parseTRECDocument(
+                    settings, scanner, buffer, length, storeField));
+                docCount++;
+                length = -1;
 
             // Found the next line of the document.
-            } else if(documentContent != null) {
-                documentContent.append(line+"\n");
+            } else if(length >= 0) {
+                buffer = append(buffer, length, line, true);
+                length += line.length() + 1;
             }
         }
+        return docCount;
+    }
+
+    /**
+     * Parses an uncompressed TREC file through a memory mapping and adds each
+     * document to the given index. This finds and indexes the same documents
+     * as the stream version above, but skips the bytes between documents
+     * without decoding them and decodes each document straight into a reused
+     * buffer rather than building a String per line.
+     *
+     * @param settings The global settings.
+     * @param writer Where to send the documents.
+     * @param file The TREC file to parse.
+     * @return The number of documents added to the index.
+     */
+    public static int parseTRECFile(LTRSettings settings, DocumentSink writer,
+        File file) 
+    throws IOException {
+        Field.Store storeField = Field.Store.NO;
+        TrecDocScanner scanner = null;
+        MappedTrecReader reader = new MappedTrecReader(file);
+        IndexMetrics metrics = writer.metrics();
+        long start, position = 0;
+        int length, docCount = 0;
+
+        // Determine whether non-id fields should be stored.
+        if(settings.storeFields)
+            storeField = Field.Store.YES;
+
+        if(!settings.trecParser.equals("jsoup"))
+            scanner = new TrecDocScanner(settings.trecFieldsToIndex);
+
+        try {
+            while(true){
+                start = System.nanoTime();
+                length = reader.next();
+                metrics.countRead(System.nanoTime() - start,
+                    reader.position() - position);
+                position = reader.position();
+                if(length < 0)
+                    break;
+                writer.add(parseTRECDocument(
+                    settings, scanner, reader.buffer(), length, storeField));
+                docCount++;
+            }
+        } finally {
+            reader.close();
+        }
+        return docCount;
+    }
+
+    /**
+     * Copies a line into a document buffer, growing the buffer if needed.
+     *
+     * @param buffer The buffer to append to.
+     * @param length The number of characters already in buffer.
+     * @param line The line to append.
+     * @param newline Whether to follow the line with a '\n'.
+     * @return The buffer, or a larger copy of it.
+     */
+    static char[] append(char[] buffer, int length, String line,
+        boolean newline) {
+        int needed = length + line.length() + 1;
+        if(needed > buffer.length)
+            buffer = Arrays.copyOf(buffer,
+                Math.max(needed, buffer.length * 2));
+        line.getChars(0, line.length(), buffer, length);
+        if(newline)
+            buffer[length + line.length()] = '\n';
+        return buffer;
+    }
+
+    /**
+     * Builds the Lucene document for one TREC &lt;DOC&gt;: the docno plus
+     * the fields listed in trecFieldsToIndex (or "contents", the whole text,
+     * if none are listed).
+     *
+     * @param settings The global settings.
+     * @param scanner The scanner to extract the fields with, or null to use
+     *                Jsoup.
+     * @param buffer The buffer holding the document.
+     * @param length The length of the document.
+     * @param storeField Whether to store the non-id fields.
+     * @return The document to index.
+     */
+    public static Document parseTRECDocument(LTRSettings settings,
+        TrecDocScanner scanner, char[] buffer, int length,
+        Field.Store storeField) {
+        boolean addContentsField = settings.trecFieldsToIndex.size() == 0;
+        Document doc;
+
+        if(scanner == null || !scanner.scan(buffer, 0, length))
+            return parseTRECDocument(
+                settings, new String(buffer, 0, length), storeField);
+
+        doc = new Document();
+        addDocno(doc, scanner.docno());
+
+        // Get all of the requested fields.
+        for(String field : settings.trecFieldsToIndex)
+            if(field.equals("contents"))
+                addContentsField = true;
+            else
+                for(String value : scanner.values(field))
+                    doc.add(textField(settings, field, value, storeField));
+
+        // If no field is specified, index the whole thing.
+        if(addContentsField)
+            doc.add(textField(settings, "contents", scanner.contents(),
+                storeField));
+
+        return doc;
+    }
+
+    /**
+     * Builds the Lucene document for one TREC &lt;DOC&gt; with Jsoup.
+     *
+     * @param settings The global settings.
+     * @param text The document, from &lt;DOC&gt; to &lt;/DOC&gt;.
+     * @param storeField Whether to store the non-id fields.
+     * @return The document to index.
+     */
+    public static Document parseTRECDocument(LTRSettings settings,
+        String text, Field.Store storeField) {
+        boolean addContentsField = settings.trecFieldsToIndex.size() == 0;
+        org.jsoup.nodes.Document soup = Jsoup.parse(text);
+        String docno = soup.getElementsByTag("DOCNO").first().text().trim();
+        Document doc = new Document();
+        addDocno(doc, docno);
+
+        // Get all of the requested fields.
+        for(String field : settings.trecFieldsToIndex)
+            if(field.equals("contents"))
+                addContentsField = true;
+            else
+                for(Element elm : soup.getElementsByTag(field))
+                    doc.add(textField(settings, field, elm.text(), storeField));
+
+        // If no field is specified, index the whole thing.
+        if(addContentsField)
+            doc.add(textField(settings, "contents", soup.text(), storeField));
+
+        return doc;
     }
 
     /**
@@ -236,13 +548,18 @@ public class FileParser {
      *  includeSnippets   -- if true, then all fields will be stored in addition
      *                       to being indexed; if false, only the docno field
      *                       is stored.
+     *  htmlExtractor     -- "jsoup" or "streaming"; see parseWARCRecord.
+     *  indexVisibleTextOnly
+     *                    -- if true, contents holds the visible text of the
+     *                       page rather than its markup.
      *
      * @param settings The global settings. This includes what fields should
      *                 be indexed and stored.
-     * @param writer The index to write the document to.
+     * @param writer Where to send the document.
      * @param input  The input stream to parse.
+     * @return The number of documents added to the index.
      */
-    public static void parseWARCFile(LTRSettings settings, IndexWriter writer, 
+    public static int parseWARCFile(LTRSettings settings, DocumentSink writer, 
         InputStream input) 
     throws IOException {
         // WarcReader will iterate through each WARC document in the given
@@ -252,14 +569,16 @@ public class FileParser {
         Iterator<WarcRecord> records = warcReader.iterator();
         WarcRecord record;
         HeaderLine typeHeader, trecIDHeader;
-        Document doc;
         Field.Store storeField = Field.Store.NO;
-        org.jsoup.nodes.Document soup;
-        boolean addContentsField = settings.warcFieldsToIndex.size() == 0;
+        HtmlTextExtractor extractor = null;
+        int docCount = 0;
 
         // Determine whether non-id fields should be stored.
         if(settings.storeFields)
             storeField = Field.Store.YES;
+
+        if(settings.htmlExtractor.equals("streaming"))
+            extractor = new HtmlTextExtractor(settings.warcFieldsToIndex);
         
         while(records.hasNext()){
             record = records.next();
@@ -275,31 +594,70 @@ public class FileParser {
             if(trecIDHeader == null)
                 continue;
 
-            doc = new Document();
-            doc.add(new StringField("docno", trecIDHeader.value, 
-                Field.Store.YES));
-
-            // Process the document content. This allows us to extract fields
-            // and get rid of things like JavaScript.
-            soup = Jsoup.parse(IOUtils.toString(
-                record.getPayloadContent(), (String) null));
-
-            // Get all of the requested fields.
-            for(String field : settings.warcFieldsToIndex)
-                if(field.equals("contents"))
-                    addContentsField = true;
-                else
-                    for(Element elm : soup.getElementsByTag(field))
-                        doc.add(new TextField(field, elm.text(), storeField));
-
-
-            // If no field is specified, index the whole thing.
-            if(addContentsField)
-                doc.add(new TextField("contents", soup.outerHtml(), 
-                    storeField));
+            writer.add(parseWARCRecord(settings, extractor,
+                trecIDHeader.value, record.getPayloadContent(), storeField));
+            docCount++;
+        }
+        return docCount;
+    }
 
-            writer.addDocument(doc);
+    /**
+     * Builds the document for the payload of one WARC response record. With
+     * no extractor, the payload is parsed into a Jsoup DOM and, unless
+     * indexVisibleTextOnly is set, contents holds Jsoup's re-serialized
+     * markup. With a HtmlTextExtractor, fields are extracted in one pass
+     * without a DOM and, unless indexVisibleTextOnly is set, contents holds
+     * the markup as it appears in the payload.
+     *
+     * @param settings The global settings.
+     * @param extractor The streaming extractor to use, or null for Jsoup.
+     * @param docno The document's id (WARC-TREC-ID).
+     * @param payload The record's payload.
+     * @param storeField Whether fields other than docno should be stored.
+     * @return The document.
+     */
+    public static Document parseWARCRecord(LTRSettings settings,
+        HtmlTextExtractor extractor, String docno, InputStream payload,
+        Field.Store storeField)
+    throws IOException {
+        Document doc = new Document();
+        org.jsoup.nodes.Document soup = null;
+        boolean addContentsField = settings.warcFieldsToIndex.size() == 0 ||
+            settings.warcFieldsToIndex.contains("contents");
+
+        addDocno(doc, docno);
+
+        // Process the document content. This allows us to extract fields
+        // and get rid of things like JavaScript.
+        if(extractor == null)
+            soup = Jsoup.parse(IOUtils.toString(payload, (String) null));
+        else
+            extractor.extract(payload);
+
+        // Get all of the requested fields.
+        for(String field : settings.warcFieldsToIndex)
+            if(field.equals("contents"))
+                continue;
+            else if(extractor != null)
+                for(String value : extractor.values(field))
+                    doc.add(textField(settings, field, value, storeField));
+            else
+                for(Element elm : soup.getElementsByTag(field))
+                    doc.add(textField(settings, field, elm.text(), storeField));
+
+        // If no field is specified, index the whole thing.
+        if(addContentsField){
+            String contents;
+            if(extractor != null)
+                contents = settings.indexVisibleTextOnly ?
+                    extractor.text() : extractor.html();
+            else
+                contents = settings.indexVisibleTextOnly ?
+                    soup.text() : soup.outerHtml();
+            doc.add(textField(settings, "contents", contents, storeField));
         }
+
+        return doc;
     }
 
 }
@@ -0,0 +1,399 @@
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles the expressions of a FormulaSimilarity to bytecode. Each
+ * expression becomes a method of a new subclass of Formula, which the JIT
+ * can then inline into the scorer as it would hand-written code. Arithmetic
+ * is done in float, as the hand-written similarities do it, so that a
+ * formula written in the same order as one of them gives the same scores to
+ * the last bit.
+ *
+ * An expression is arithmetic over numbers, variables and constants:
+ *
+ *   + - * /      the usual, with the usual precedence;
+ *   ^            power (right associative, binding tighter than unary -);
+ *   ( )          grouping;
+ *   log(x)       the logarithm to base 2, as BM25 and TMPL's log();
+ *   ln(x), log10(x), exp(x), sqrt(x), abs(x), pow(x, y), min(x, y),
+ *   max(x, y)    as in java.lang.Math.
+ *
+ * The variables are tf (the term's frequency in the document), dl (the
+ * document's length), adl (the average document length), N (the number of
+ * documents) and n (the number of documents with the term), and, in the tf
+ * expression only, K (the value of the lengthNorm expression). Not every
+ * variable is known to every expression: idf may only use adl, N and n, and
+ * lengthNorm may not use tf or K. Constants are named numbers (e.g., k1 and
+ * b) that are compiled into the code.
+ */
+public class FormulaCompiler {
+    private static final String[] VARIABLES =
+        {"tf", "dl", "adl", "N", "n", "K"};
+    private static final List<String> IDF_VARIABLES =
+        Arrays.asList("adl", "N", "n");
+    private static final List<String> LENGTH_NORM_VARIABLES =
+        Arrays.asList("dl", "adl", "N", "n");
+    private static final List<String> TF_VARIABLES =
+        Arrays.asList(VARIABLES);
+    private static final String DESCRIPTOR = "(FFFFFF)F";
+    private static final AtomicInteger classes = new AtomicInteger();
+
+    private FormulaCompiler() {}
+
+    /**
+     * The compiled expressions of a formula. Every method is given all the
+     * variables, whether its expression uses them or not.
+     */
+    public abstract static class Formula {
+        public Formula() {}
+
+        /**
+         * @return The value of the idf expression.
+         */
+        public abstract float idf(float tf, float dl, float adl, float N,
+            float n, float K);
+
+        /**
+         * @return The value of the tf expression, K being the value of the
+         *         lengthNorm expression (the K given is ignored). The two
+         *         are compiled into one method to keep the scorer's code
+         *         small enough to be inlined.
+         */
+        public abstract float tf(float tf, float dl, float adl, float N,
+            float n, float K);
+    }
+
+    /**
+     * @return The logarithm of x to base 2, as BM25 and TMPL's log().
+     */
+    public static float log(float x) {
+        return (float)(Math.log(x) / Math.log(2.0D));
+    }
+
+    /**
+     * Compiles a formula.
+     *
+     * @param idf The idf expression.
+     * @param lengthNorm The lengthNorm expression.
+     * @param tf The tf expression.
+     * @param constants The constants the expressions may use, or null.
+     * @return The compiled formula.
+     * @throws IllegalArgumentException If an expression does not parse, or
+     *         uses a variable it may not.
+     */
+    public static Formula compile(String idf, String lengthNorm, String tf,
+        Map<String, Double> constants) {
+        String name = "Formula$"+ classes.incrementAndGet();
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS |
+            ClassWriter.COMPUTE_FRAMES);
+        String superName = Type.getInternalName(Formula.class);
+
+        if (constants == null)
+            constants = Collections.emptyMap();
+        for (String variable : VARIABLES)
+            if (constants.containsKey(variable))
+                throw new IllegalArgumentException("Constant "+ variable +
+                    " has the name of a variable");
+
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL |
+            Opcodes.ACC_SUPER, name, null, superName, null);
+        MethodVisitor init = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>",
+            "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>",
+            "()V", false);
+        init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        MethodVisitor mv = method(cw, "idf");
+        expression(mv, "idf", idf, IDF_VARIABLES, constants);
+        end(mv);
+        mv = method(cw, "tf");
+        expression(mv, "lengthNorm", lengthNorm, LENGTH_NORM_VARIABLES,
+            constants);
+        mv.visitVarInsn(Opcodes.FSTORE, 1 + TF_VARIABLES.indexOf("K"));
+        expression(mv, "tf", tf, TF_VARIABLES, constants);
+        end(mv);
+        cw.visitEnd();
+
+        try {
+            return (Formula) new Loader(Formula.class.getClassLoader())
+                .define(name, cw.toByteArray()).getConstructor()
+                .newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodVisitor method(ClassWriter cw, String method) {
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, method,
+            DESCRIPTOR, null, null);
+        mv.visitCode();
+        return mv;
+    }
+
+    private static void end(MethodVisitor mv) {
+        mv.visitInsn(Opcodes.FRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * Writes the code of an expression, which leaves its value on the
+     * stack.
+     */
+    private static void expression(MethodVisitor mv, String name,
+        String expression, List<String> variables,
+        Map<String, Double> constants) {
+        if (expression == null)
+            throw new IllegalArgumentException("No "+ name +" expression");
+        try {
+            new Parser(expression, variables, constants, mv).parse();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(name +": "+ e.getMessage());
+        }
+    }
+
+    /**
+     * A recursive descent parser that writes the code of an expression as
+     * it goes; the code leaves the expression's value on the stack.
+     */
+    private static class Parser {
+        private final String text;
+        private final List<String> variables;
+        private final Map<String, Double> constants;
+        private final MethodVisitor mv;
+        private int pos = 0;
+
+        Parser(String text, List<String> variables,
+            Map<String, Double> constants, MethodVisitor mv) {
+            this.text = text;
+            this.variables = variables;
+            this.constants = constants;
+            this.mv = mv;
+        }
+
+        void parse() {
+            expression();
+            skipSpace();
+            if (pos < text.length())
+                throw error("Unexpected '"+ text.charAt(pos) +"'");
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message +" at "+ pos +
+                " in \""+ text +"\"");
+        }
+
+        private void skipSpace() {
+            while (pos < text.length() &&
+                   Character.isWhitespace(text.charAt(pos)))
+                pos++;
+        }
+
+        private boolean accept(char c) {
+            skipSpace();
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!accept(c))
+                throw error("Expected '"+ c +"'");
+        }
+
+        // expression := term (('+' | '-') term)*
+        private void expression() {
+            term();
+            while (true) {
+                if (accept('+')) {
+                    term();
+                    mv.visitInsn(Opcodes.FADD);
+                } else if (accept('-')) {
+                    term();
+                    mv.visitInsn(Opcodes.FSUB);
+                } else
+                    return;
+            }
+        }
+
+        // term := unary (('*' | '/') unary)*
+        private void term() {
+            unary();
+            while (true) {
+                if (accept('*')) {
+                    unary();
+                    mv.visitInsn(Opcodes.FMUL);
+                } else if (accept('/')) {
+                    unary();
+                    mv.visitInsn(Opcodes.FDIV);
+                } else
+                    return;
+            }
+        }
+
+        // unary := '-' unary | power
+        private void unary() {
+            if (accept('-')) {
+                unary();
+                mv.visitInsn(Opcodes.FNEG);
+            } else
+                power();
+        }
+
+        // power := primary ('^' unary)?
+        private void power() {
+            primary();
+            if (accept('^')) {
+                unary();
+                math("pow", 2);
+            }
+        }
+
+        // primary := number | name | name '(' arguments ')' | '(' expression ')'
+        private void primary() {
+            skipSpace();
+            if (accept('(')) {
+                expression();
+                expect(')');
+                return;
+            }
+            if (pos >= text.length())
+                throw error("Unexpected end");
+
+            int start = pos;
+            char c = text.charAt(pos);
+            if (Character.isDigit(c) || c == '.') {
+                while (pos < text.length() &&
+                       (Character.isDigit(text.charAt(pos)) ||
+                        text.charAt(pos) == '.'))
+                    pos++;
+                if (pos < text.length() &&
+                    (text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+                    pos++;
+                    if (pos < text.length() &&
+                        (text.charAt(pos) == '+' || text.charAt(pos) == '-'))
+                        pos++;
+                    while (pos < text.length() &&
+                           Character.isDigit(text.charAt(pos)))
+                        pos++;
+                }
+                try {
+                    mv.visitLdcInsn(Float.parseFloat(
+                        text.substring(start, pos)));
+                } catch (NumberFormatException e) {
+                    pos = start;
+                    throw error("Bad number");
+                }
+                return;
+            }
+            if (!Character.isJavaIdentifierStart(c))
+                throw error("Unexpected '"+ c +"'");
+            while (pos < text.length() &&
+                   Character.isJavaIdentifierPart(text.charAt(pos)))
+                pos++;
+            String name = text.substring(start, pos);
+
+            if (accept('(')) {
+                function(name, start);
+                return;
+            }
+            int variable = Arrays.asList(VARIABLES).indexOf(name);
+            if (variable >= 0) {
+                if (!variables.contains(name)) {
+                    pos = start;
+                    throw error(name +" cannot be used here");
+                }
+                mv.visitVarInsn(Opcodes.FLOAD, 1 + variable);
+            } else if (constants.containsKey(name)) {
+                mv.visitLdcInsn(constants.get(name).floatValue());
+            } else {
+                pos = start;
+                throw error("Unknown variable or constant "+ name);
+            }
+        }
+
+        private void function(String name, int start) {
+            int arguments = 0;
+            if (!accept(')')) {
+                do {
+                    expression();
+                    arguments++;
+                } while (accept(','));
+                expect(')');
+            }
+
+            int arity = name.equals("pow") || name.equals("min") ||
+                name.equals("max") ? 2 : 1;
+            if (!Arrays.asList("log", "ln", "log10", "exp", "sqrt", "abs",
+                    "pow", "min", "max").contains(name)) {
+                pos = start;
+                throw error("Unknown function "+ name);
+            }
+            if (arguments != arity) {
+                pos = start;
+                throw error(name +" takes "+ arity +" argument"+
+                    (arity == 1 ? "" : "s"));
+            }
+            if (name.equals("log"))
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                    Type.getInternalName(FormulaCompiler.class), "log",
+                    "(F)F", false);
+            else if (name.equals("abs") || name.equals("min") ||
+                     name.equals("max"))
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Math",
+                    name, arity == 1 ? "(F)F" : "(FF)F", false);
+            else
+                math(name.equals("ln") ? "log" : name, arity);
+        }
+
+        /**
+         * Calls a double function of java.lang.Math on the float arguments
+         * on the stack, leaving a float.
+         */
+        private void math(String method, int arity) {
+            if (arity == 1) {
+                mv.visitInsn(Opcodes.F2D);
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Math",
+                    method, "(D)D", false);
+            } else {
+                // x y -> (double) x, (double) y
+                mv.visitInsn(Opcodes.F2D);
+                mv.visitInsn(Opcodes.DUP2_X1);
+                mv.visitInsn(Opcodes.POP2);
+                mv.visitInsn(Opcodes.F2D);
+                mv.visitInsn(Opcodes.DUP2_X2);
+                mv.visitInsn(Opcodes.POP2);
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Math",
+                    method, "(DD)D", false);
+            }
+            mv.visitInsn(Opcodes.D2F);
+        }
+    }
+
+    /**
+     * Defines the classes of compiled formulas.
+     */
+    private static class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
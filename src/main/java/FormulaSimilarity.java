@@ -0,0 +1,186 @@
+import org.apache.lucene.index.FieldInvertState;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.util.BytesRef;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A similarity of the form TF * IDF whose pieces are given as expressions in
+ * the settings (see the formulas setting) rather than written in Java:
+ *
+ *   idf        -- of N, n and adl; worked out once per term and query;
+ *   lengthNorm -- K, of dl, adl, N and n;
+ *   tf         -- of tf, K, dl, adl, N and n.
+ *
+ * The score of a term in a document is tf * idf. The expressions are
+ * compiled to bytecode by FormulaCompiler, so a formula scores as fast as
+ * the same model written by hand. BM25, for instance, is
+ *
+ *   constants:  {k1: 1.2, b: 0.75}
+ *   idf:        log(1 + (N - n + 0.5) / (n + 0.5))
+ *   lengthNorm: k1 * (1 - b + b * (dl / adl))
+ *   tf:         (k1 + 1) * tf / (K + tf)
+ *
+ * As in BM25 and TMPL, dl comes from the index's DocLengths store if it has
+ * one, and from the norm otherwise.
+ */
+public class FormulaSimilarity extends Similarity
+{
+    private final String name;
+    private final Definition definition;
+    private final FormulaCompiler.Formula formula;
+
+    /**
+     * A formula, as given in the settings.
+     */
+    public static class Definition
+    {
+	public Map<String, Double> constants;
+	public String idf;
+	public String lengthNorm;
+	public String tf;
+    }
+
+    /**
+     * @param name The name of the formula.
+     * @param definition Its expressions and constants.
+     * @throws IllegalArgumentException If the formula does not compile.
+     */
+    public FormulaSimilarity(String name, Definition definition)
+    {
+	this.name       = name;
+	this.definition = definition;
+	this.formula    = FormulaCompiler.compile(definition.idf,
+			      definition.lengthNorm, definition.tf,
+			      definition.constants);
+    }
+
+    @Override
+    public String toString()
+    {
+	return "Formula " + name + "(idf=" + definition.idf +
+	    ", lengthNorm=" + definition.lengthNorm + ", tf=" + definition.tf +
+	    ", constants=" + definition.constants + ")";
+    }
+
+    public float coord(int overlap, int maxOverlap)
+    {
+	return 1f;
+    }
+
+    public float queryNorm(float valueForNormalization)
+    {
+	return 1f;
+    }
+
+    @Override
+    public final SimWeight computeWeight(CollectionStatistics collectionStats,
+					 TermStatistics... termStats)
+    {
+	float N, n, idf, adl;
+
+	idf = 1.0f;
+	
+	N = collectionStats.maxDoc();
+	adl = collectionStats.sumTotalTermFreq() / N;
+	n = termStats[0].docFreq();
+
+	if (termStats.length == 1) {
+	    idf = formula.idf(0, 0, adl, N, n, 0);
+	}
+	else {
+	    for (final TermStatistics stat : termStats) {
+		idf += formula.idf(0, 0, adl, N, stat.docFreq(), 0);
+	    }
+	}
+
+	return new FormulaWeight(collectionStats.field(), idf, adl, N, n);
+    }
+
+    @Override
+    public final SimScorer simScorer(SimWeight sw, LeafReaderContext context)
+	throws IOException
+    {
+	FormulaWeight fw = (FormulaWeight) sw;
+	return new FormulaScorer(fw, context.reader().getNormValues(fw.field),
+				 DocLengths.get(context.reader(), fw.field));
+    }
+
+    public class FormulaScorer extends SimScorer
+    {
+	private final FormulaWeight fw;
+	private final NumericDocValues norms;
+	private final DocLengths.Lengths lengths;
+	private final FormulaCompiler.Formula formula;
+
+	FormulaScorer(FormulaWeight fw, NumericDocValues norms,
+		      DocLengths.Lengths lengths)
+	    throws IOException
+	{
+	    this.fw      = fw;
+	    this.norms   = norms;
+	    this.lengths = lengths;
+	    this.formula = FormulaSimilarity.this.formula;
+	}
+
+	@Override
+	public float score(int doc, float tf)
+	{
+	    float dl, w;
+	    dl = lengths != null ? (float)lengths.length(doc)
+				 : (float)norms.get(doc);
+	    w  = formula.tf(tf, dl, fw.adl, fw.N, fw.n, 0) * fw.idf;
+	    return w;
+	}
+
+	@Override
+	public float computeSlopFactor(int distance)
+	{
+	    return 1.0f / (distance + 1);
+	}
+
+	@Override
+	public float computePayloadFactor(int doc, int start, int end, BytesRef payload)
+	{
+	    return 1.0f;
+	}
+    }
+  
+    public static class FormulaWeight extends SimWeight
+    {
+	private final String field;
+	private final float idf;
+	private final float adl;
+	private final float N;
+	private final float n;
+	
+	public FormulaWeight(String field, float idf, float adl, float N,
+			     float n)
+	{
+	    this.field = field;
+	    this.idf   = idf;
+	    this.adl   = adl;
+	    this.N     = N;
+	    this.n     = n;
+	}
+
+	@Override
+	public float getValueForNormalization()
+	{
+	    return 1.0f;
+	}
+
+	@Override
+	public void normalize(float queryNorm, float boost) {}
+    }    
+
+    @Override
+    public final long computeNorm(FieldInvertState state)
+    {
+	return state.getLength();
+    }
+}
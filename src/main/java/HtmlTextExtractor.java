@@ -0,0 +1,695 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jsoup.helper.StringUtil;
+import org.jsoup.nodes.Entities;
+
+/**
+ * A streaming HTML-to-text extractor for web pages (e.g., WARC response
+ * payloads). It decodes a page into a reused char buffer and makes one pass
+ * over it, collecting the visible text of the page and the text of the
+ * requested elements (e.g., title, body, and a for anchor text) without
+ * building a DOM.
+ *
+ * Script, style and similar raw-text elements are skipped along with
+ * comments, doctypes and processing instructions; entities are decoded and
+ * whitespace is collapsed as in Jsoup's Element.text(), with a space at the
+ * start and end of block-level elements and at line breaks. Unlike
+ * TrecDocScanner, this does not try to match Jsoup exactly on malformed
+ * markup: a requested element's text runs from its start tag to its matching
+ * end tag (or to the end of the page), and elements that cannot nest (a, p,
+ * li, ...) are closed by the next start tag of the same name unless a list or
+ * table lies in between. Elements that are not tagged in the page (e.g., a
+ * missing body tag) are not reported.
+ *
+ * An instance reuses its buffers from one page to the next and is not
+ * thread-safe.
+ */
+public class HtmlTextExtractor {
+    // How a tag affects the text.
+    private static final int INLINE = 0;
+    private static final int BLOCK  = 1;
+    private static final int VOID   = 2;
+    private static final int RAW    = 3;
+    private static final int RCDATA = 4;
+
+    private static final String[] BLOCK_TAGS = {
+        "address", "article", "aside", "blockquote", "body", "caption",
+        "center", "dd", "div", "dl", "dt", "fieldset", "figcaption", "figure",
+        "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "head", "header",
+        "html", "legend", "li", "main", "nav", "ol", "p", "pre", "section",
+        "table", "tbody", "td", "tfoot", "th", "thead", "tr", "ul"
+    };
+    private static final String[] VOID_TAGS = {
+        "area", "base", "br", "col", "embed", "hr", "img", "input", "keygen",
+        "link", "meta", "param", "source", "track", "wbr"
+    };
+    private static final String[] RAW_TAGS = {
+        "iframe", "noembed", "noframes", "script", "style", "template", "xmp"
+    };
+    private static final String[] RCDATA_TAGS = {"textarea", "title"};
+    // Web pages are full of made-up tag names; past this many, new names
+    // all share one (inline, uncaptured) entry.
+    private static final int MAX_NAMES = 256;
+
+    // Unclosed inline tags can pile up without bound on bad pages.
+    private static final int MAX_DEPTH = 256;
+
+    private static final String[] NON_NESTING_TAGS = {
+        "a", "dd", "dt", "li", "option", "p", "td", "th", "tr"
+    };
+    private static final String[] SCOPE_TAGS = {
+        "button", "dl", "ol", "select", "table", "ul"
+    };
+
+    // Tag names seen so far, interned without allocating a String per tag:
+    // table is an open-addressed hash of (index + 1) into the other arrays.
+    private final int[]     table = new int[4 * MAX_NAMES];
+    private final String[]  names = new String[MAX_NAMES + 64];
+    private final int[]     kinds = new int[MAX_NAMES + 64];
+    private final boolean[] captured = new boolean[MAX_NAMES + 64];
+    private final boolean[] nonNesting = new boolean[MAX_NAMES + 64];
+    private final boolean[] scopeBoundary = new boolean[MAX_NAMES + 64];
+    private final boolean[] separating = new boolean[MAX_NAMES + 64];
+    private int       nameCount = 0;
+    private final int otherName;
+
+    // The stack of open elements (up to MAX_DEPTH, past which only captured
+    // elements are pushed): the name of each, and the number of open
+    // captures below it.
+    private int[] stackName = new int[64];
+    private int[] stackOpen = new int[64];
+    private int   depth;
+
+    // The captures of the open elements whose text is being collected.
+    private int[] openCapture = new int[16];
+    private int   openCount;
+
+    // Text of the captured elements, in document order.
+    private StringBuilder[] captures = new StringBuilder[16];
+    private int[] captureName = new int[16];
+    private int   captureCount;
+
+    private final StringBuilder text = new StringBuilder();
+
+    // The decoded page.
+    private final CharsetDecoder decoder;
+    private byte[] bytes = new byte[1 << 16];
+    private char[] buf = new char[1 << 16];
+    private char[] scratch = new char[1024];
+    private int    end;
+
+    /**
+     * @param fields The elements to extract (e.g., warcFieldsToIndex). The
+     *               reserved name "contents" is ignored; the visible text of
+     *               the page is always collected.
+     */
+    public HtmlTextExtractor(List<String> fields) {
+        decoder = Charset.defaultCharset().newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        otherName = intern("");
+        for(String[] tags : new String[][]{BLOCK_TAGS, VOID_TAGS, RAW_TAGS,
+                RCDATA_TAGS, NON_NESTING_TAGS, SCOPE_TAGS})
+            for(String tag : tags)
+                intern(tag);
+        for(String field : fields)
+            if(!field.equals("contents"))
+                captured[intern(field.toLowerCase().trim())] = true;
+    }
+
+    /**
+     * Reads a page in the platform's default charset (as IOUtils.toString
+     * does) and extracts its text.
+     *
+     * @param input The page; it is read to the end but not closed.
+     */
+    public void extract(InputStream input) throws IOException {
+        CharBuffer out = CharBuffer.wrap(buf);
+        int length = 0, n;
+
+        while((n = input.read(bytes, length, bytes.length - length)) != -1){
+            length += n;
+            if(length == bytes.length)
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(bytes, 0, length);
+        decoder.reset();
+        while(decoder.decode(in, out, true).isOverflow())
+            out = grow(out);
+        while(decoder.flush(out).isOverflow())
+            out = grow(out);
+
+        end = out.position();
+        scan();
+    }
+
+    /**
+     * @return The markup of the last page extracted, as a String.
+     */
+    public String html() {
+        return new String(buf, 0, end);
+    }
+
+    /**
+     * @return The visible text of the last page extracted.
+     */
+    public String text() {
+        return trimmed(text);
+    }
+
+    /**
+     * Gets the text of every element with the given name in the last page
+     * extracted, in document order.
+     *
+     * @param field The field (tag) name.
+     * @return The text of each matching element.
+     */
+    public List<String> values(String field) {
+        String name = field.toLowerCase().trim();
+        List<String> values = new ArrayList<String>();
+
+        for(int i = 0; i < captureCount; i++)
+            if(names[captureName[i]].equals(name))
+                values.add(trimmed(captures[i]));
+        return values;
+    }
+
+    // ---------------------------------------------------------------------
+    // Decoding.
+
+    private CharBuffer grow(CharBuffer out) {
+        int position = out.position();
+        buf = Arrays.copyOf(buf, buf.length * 2);
+        out = CharBuffer.wrap(buf);
+        out.position(position);
+        return out;
+    }
+
+    // ---------------------------------------------------------------------
+    // Tokenizing.
+
+    private void scan() {
+        int pos = 0, textStart = 0;
+        boolean hasEntity = false;
+        char c;
+
+        depth = 0;
+        openCount = 0;
+        captureCount = 0;
+        text.setLength(0);
+
+        while(pos < end){
+            c = buf[pos];
+            if(c == '&'){
+                hasEntity = true;
+                pos++;
+                continue;
+            }
+            if(c != '<' || pos + 1 >= end){
+                pos++;
+                continue;
+            }
+
+            c = buf[pos+1];
+            if(isLetter(c)){
+                appendText(textStart, pos, hasEntity);
+                pos = startTag(pos + 1);
+            } else if(c == '/'){
+                appendText(textStart, pos, hasEntity);
+                if(pos + 2 < end && isLetter(buf[pos+2]))
+                    pos = endTag(pos + 2);
+                else
+                    pos = skipPast('>', pos + 2);
+            } else if(c == '!'){
+                appendText(textStart, pos, hasEntity);
+                if(pos + 3 < end && buf[pos+2] == '-' && buf[pos+3] == '-')
+                    pos = skipComment(pos + 4);
+                else
+                    pos = skipPast('>', pos + 2);
+            } else if(c == '?'){
+                appendText(textStart, pos, hasEntity);
+                pos = skipPast('>', pos + 2);
+            } else {
+                // Not markup; the '<' is part of the text.
+                pos++;
+                continue;
+            }
+            textStart = pos;
+            hasEntity = false;
+        }
+        appendText(textStart, end, hasEntity);
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * @return The position after the next occurrence of c, or the end of the
+     *         page if there is none.
+     */
+    private int skipPast(char c, int pos) {
+        while(pos < end && buf[pos] != c)
+            pos++;
+        return pos < end ? pos + 1 : end;
+    }
+
+    /**
+     * Skips a comment, starting just after "<!--".
+     */
+    private int skipComment(int pos) {
+        if(pos < end && buf[pos] == '>')
+            return pos + 1;
+        if(pos + 1 < end && buf[pos] == '-' && buf[pos+1] == '>')
+            return pos + 2;
+        while(pos + 2 < end){
+            if(buf[pos] == '-' && buf[pos+1] == '-' && buf[pos+2] == '>')
+                return pos + 3;
+            pos++;
+        }
+        return end;
+    }
+
+    /**
+     * Reads a tag name starting at pos.
+     *
+     * @return The position after the name.
+     */
+    private int tagName(int pos) {
+        while(pos < end && !isSpace(buf[pos]) && buf[pos] != '/' &&
+              buf[pos] != '>')
+            pos++;
+        return pos;
+    }
+
+    /**
+     * Skips the attributes of a tag, minding quoted values, through the
+     * closing '>'.
+     *
+     * @return The position after the tag, negated if the tag is
+     *         self-closing ("/&gt;").
+     */
+    private int skipAttributes(int pos) {
+        boolean afterEquals = false, slash = false;
+        char c;
+
+        while(pos < end){
+            c = buf[pos++];
+            if(c == '>')
+                return slash ? -pos : pos;
+            if(c == '='){
+                afterEquals = true;
+                slash = false;
+            } else if((c == '"' || c == '\'') && afterEquals) {
+                pos = skipPast(c, pos);
+                afterEquals = false;
+            } else if(!isSpace(c)) {
+                afterEquals = false;
+                slash = c == '/';
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Reads a start tag, from the first letter of its name through the
+     * closing '>', along with the content of raw text elements.
+     *
+     * @return The position after the tag (and content).
+     */
+    private int startTag(int pos) {
+        int stop = tagName(pos), name = lookup(pos, stop);
+        int kind = kinds[name], closing;
+        boolean selfClosing;
+
+        pos = skipAttributes(stop);
+        selfClosing = pos < 0;
+        pos = Math.abs(pos);
+
+        if(separating[name])
+            separate();
+        if(nonNesting[name])
+            closeInScope(name);
+        open(name, kind != VOID && !selfClosing);
+        if(selfClosing || (kind != RAW && kind != RCDATA))
+            return pos;
+
+        // Raw text runs to the matching end tag; RCDATA (e.g., the title)
+        // is text, with entities but without markup.
+        closing = findEndTag(name, pos);
+        if(kind == RCDATA){
+            appendText(pos, closing, hasEntity(pos, closing));
+            separate();
+        }
+        close(name);
+        return closing < end ? skipPast('>', closing) : end;
+    }
+
+    /**
+     * Reads an end tag, from the first letter of its name through the
+     * closing '>'.
+     *
+     * @return The position after the tag.
+     */
+    private int endTag(int pos) {
+        int stop = tagName(pos), name = lookup(pos, stop);
+
+        if(separating[name])
+            separate();
+        close(name);
+        return Math.abs(skipAttributes(stop));
+    }
+
+    private boolean hasEntity(int start, int stop) {
+        for(int i = start; i < stop; i++)
+            if(buf[i] == '&')
+                return true;
+        return false;
+    }
+
+    /**
+     * @return The position of the "&lt;/" of the end tag for the given name,
+     *         or the end of the page if there is none.
+     */
+    private int findEndTag(int name, int pos) {
+        String s = names[name];
+        int i, stop;
+
+        for(; pos + 1 < end; pos++){
+            if(buf[pos] != '<' || buf[pos+1] != '/')
+                continue;
+            stop = pos + 2 + s.length();
+            if(stop > end)
+                break;
+            for(i = 0; i < s.length(); i++)
+                if(Character.toLowerCase(buf[pos+2+i]) != s.charAt(i))
+                    break;
+            if(i == s.length() && (stop == end || isSpace(buf[stop]) ||
+                buf[stop] == '/' || buf[stop] == '>'))
+                return pos;
+        }
+        return end;
+    }
+
+    // ---------------------------------------------------------------------
+    // Captured elements.
+
+    /**
+     * Opens an element: starts a capture for it if it was requested and, if
+     * it has content, pushes it on the stack of open elements.
+     */
+    private void open(int name, boolean hasContent) {
+        int before = openCount;
+
+        if(captured[name]){
+            if(captureCount == captures.length){
+                captures = Arrays.copyOf(captures, captureCount * 2);
+                captureName = Arrays.copyOf(captureName, captureCount * 2);
+            }
+            if(captures[captureCount] == null)
+                captures[captureCount] = new StringBuilder();
+            captures[captureCount].setLength(0);
+            captureName[captureCount] = name;
+
+            if(hasContent){
+                if(openCount == openCapture.length)
+                    openCapture = Arrays.copyOf(openCapture, openCount * 2);
+                openCapture[openCount++] = captureCount;
+            }
+            captureCount++;
+        } else if(depth >= MAX_DEPTH) {
+            return;
+        }
+
+        if(hasContent){
+            if(depth == stackName.length){
+                stackName = Arrays.copyOf(stackName, depth * 2);
+                stackOpen = Arrays.copyOf(stackOpen, depth * 2);
+            }
+            stackName[depth] = name;
+            stackOpen[depth] = before;
+            depth++;
+        }
+    }
+
+    /**
+     * Closes the innermost open element with the given name, along with any
+     * elements opened inside it.
+     */
+    private void close(int name) {
+        for(int i = depth - 1; i >= 0; i--)
+            if(stackName[i] == name){
+                pop(i);
+                return;
+            }
+    }
+
+    /**
+     * Closes an element that cannot contain itself (e.g., an li left open
+     * when the next li starts), unless a list or table lies in between.
+     */
+    private void closeInScope(int name) {
+        for(int i = depth - 1; i >= 0; i--){
+            if(stackName[i] == name){
+                pop(i);
+                return;
+            }
+            if(scopeBoundary[stackName[i]])
+                return;
+        }
+    }
+
+    private void pop(int i) {
+        openCount = stackOpen[i];
+        depth = i;
+    }
+
+    // ---------------------------------------------------------------------
+    // Text.
+
+    private void separate() {
+        separate(text);
+        for(int i = 0; i < openCount; i++)
+            separate(captures[openCapture[i]]);
+    }
+
+    private static void separate(StringBuilder sb) {
+        if(sb.length() > 0 && sb.charAt(sb.length()-1) != ' ')
+            sb.append(' ');
+    }
+
+    private void appendText(int start, int stop, boolean hasEntity) {
+        char[] chars = buf;
+        if(start >= stop)
+            return;
+        if(hasEntity){
+            stop = unescapeEntities(start, stop);
+            start = 0;
+            chars = scratch;
+        }
+
+        appendNormalised(text, chars, start, stop);
+        for(int i = 0; i < openCount; i++)
+            appendNormalised(captures[openCapture[i]], chars, start, stop);
+    }
+
+    /**
+     * Decodes the character references in buf[start, stop) into scratch,
+     * following the rules of Jsoup's Parser.unescapeEntities() for text,
+     * without the tokeniser it allocates for each call.
+     *
+     * @return The length of the decoded text.
+     */
+    private int unescapeEntities(int start, int stop) {
+        int length = 0, pos = start, nameStart, nameStop, codePoint;
+        Character c;
+
+        if(scratch.length < stop - start)
+            scratch = new char[stop - start];
+
+        while(pos < stop){
+            if(buf[pos] != '&' || pos + 1 >= stop){
+                scratch[length++] = buf[pos++];
+                continue;
+            }
+
+            if(buf[pos+1] == '#'){
+                boolean hex = pos + 2 < stop &&
+                    (buf[pos+2] == 'x' || buf[pos+2] == 'X');
+                nameStart = pos + (hex ? 3 : 2);
+                nameStop = nameStart;
+                codePoint = 0;
+                while(nameStop < stop && digit(buf[nameStop], hex) >= 0){
+                    if(codePoint <= 0x10FFFF)
+                        codePoint = codePoint * (hex ? 16 : 10) +
+                            digit(buf[nameStop], hex);
+                    nameStop++;
+                }
+                if(nameStop == nameStart){
+                    scratch[length++] = buf[pos++];
+                    continue;
+                }
+                if(codePoint > 0x10FFFF ||
+                   (codePoint >= 0xD800 && codePoint <= 0xDFFF))
+                    codePoint = 0xFFFD;
+                length += Character.toChars(codePoint, scratch, length);
+                pos = nameStop < stop && buf[nameStop] == ';' ?
+                    nameStop + 1 : nameStop;
+                continue;
+            }
+
+            // A named reference: letters then digits, and a ';' unless it is
+            // one of the base entities (e.g., "&amp" or "&nbsp").
+            nameStart = nameStop = pos + 1;
+            while(nameStop < stop && isLetter(buf[nameStop]))
+                nameStop++;
+            while(nameStop < stop && buf[nameStop] >= '0' &&
+                  buf[nameStop] <= '9')
+                nameStop++;
+            c = null;
+            if(nameStop > nameStart){
+                String name = new String(buf, nameStart, nameStop - nameStart);
+                boolean semicolon = nameStop < stop && buf[nameStop] == ';';
+                if(Entities.isBaseNamedEntity(name) ||
+                   (semicolon && Entities.isNamedEntity(name)))
+                    c = Entities.getCharacterByName(name);
+                if(c != null && semicolon)
+                    nameStop++;
+            }
+            if(c == null){
+                scratch[length++] = buf[pos++];
+                continue;
+            }
+            scratch[length++] = c;
+            pos = nameStop;
+        }
+        return length;
+    }
+
+    private static int digit(char c, boolean hex) {
+        if(c >= '0' && c <= '9')
+            return c - '0';
+        if(hex && c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if(hex && c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     * Same as Jsoup's StringUtil.appendNormalisedWhitespace(), stripping
+     * leading whitespace if the text so far ends in a space. Runs of
+     * non-whitespace are copied in bulk.
+     */
+    private static void appendNormalised(StringBuilder sb, char[] chars,
+        int start, int stop) {
+        boolean stripLeading = sb.length() != 0 &&
+            sb.charAt(sb.length()-1) == ' ';
+        boolean lastWasWhite = false, reachedNonWhite = false;
+        int i = start, run;
+
+        while(i < stop){
+            if(StringUtil.isWhitespace(chars[i])){
+                if(!((stripLeading && !reachedNonWhite) || lastWasWhite)){
+                    sb.append(' ');
+                    lastWasWhite = true;
+                }
+                i++;
+            } else {
+                run = i;
+                while(i < stop && !StringUtil.isWhitespace(chars[i]))
+                    i++;
+                sb.append(chars, run, i - run);
+                lastWasWhite = false;
+                reachedNonWhite = true;
+            }
+        }
+    }
+
+    private static String trimmed(StringBuilder sb) {
+        int start = 0, stop = sb.length();
+        while(start < stop && sb.charAt(start) <= ' ')
+            start++;
+        while(stop > start && sb.charAt(stop-1) <= ' ')
+            stop--;
+        return sb.substring(start, stop);
+    }
+
+    // ---------------------------------------------------------------------
+    // Tag names.
+
+    private static int kindOf(String name) {
+        if(Arrays.asList(BLOCK_TAGS).contains(name))
+            return BLOCK;
+        if(Arrays.asList(VOID_TAGS).contains(name))
+            return VOID;
+        if(Arrays.asList(RAW_TAGS).contains(name))
+            return RAW;
+        if(Arrays.asList(RCDATA_TAGS).contains(name))
+            return RCDATA;
+        return INLINE;
+    }
+
+    private static int hash(char c, int h) {
+        return 31 * h + Character.toLowerCase(c);
+    }
+
+    /**
+     * Finds (or adds) the lower-cased tag name held in buf[start, stop).
+     */
+    private int lookup(int start, int stop) {
+        int h = 0, slot, i, j;
+        String name;
+
+        for(i = start; i < stop; i++)
+            h = hash(buf[i], h);
+        for(slot = h & (table.length - 1); table[slot] != 0;
+            slot = (slot + 1) & (table.length - 1)){
+            i = table[slot] - 1;
+            name = names[i];
+            if(name.length() != stop - start || name.hashCode() != h)
+                continue;
+            j = 0;
+            while(j < name.length() &&
+                  name.charAt(j) == Character.toLowerCase(buf[start+j]))
+                j++;
+            if(j == name.length())
+                return i;
+        }
+        if(nameCount >= MAX_NAMES)
+            return otherName;
+        return intern(new String(buf, start, stop - start).toLowerCase());
+    }
+
+    private int intern(String name) {
+        int slot;
+        for(slot = name.hashCode() & (table.length - 1); table[slot] != 0;
+            slot = (slot + 1) & (table.length - 1))
+            if(names[table[slot] - 1].equals(name))
+                return table[slot] - 1;
+
+        table[slot] = nameCount + 1;
+        names[nameCount] = name;
+        kinds[nameCount] = kindOf(name);
+        nonNesting[nameCount] = Arrays.asList(NON_NESTING_TAGS).contains(name);
+        scopeBoundary[nameCount] = Arrays.asList(SCOPE_TAGS).contains(name);
+        separating[nameCount] = kinds[nameCount] == BLOCK ||
+            kinds[nameCount] == RCDATA || name.equals("br") ||
+            name.equals("hr");
+        return nameCount++;
+    }
+}
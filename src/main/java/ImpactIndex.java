@@ -0,0 +1,506 @@
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMOutputStream;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BM25 scores precomputed for every posting of a field, quantized and
+ * ordered by impact, stored beside an index for ScoreAtATime to search.
+ * It is built from an existing index (java ImpactIndex -index INDEX_PATH).
+ *
+ * Each posting is scored with this package's BM25 (with the index's
+ * DocLengths store if it has one, and its norms otherwise) for the k1 and b
+ * given, and the score is quantized into an impact from 1 to 2^bits - 1:
+ * the range from 0 to the highest score of any posting is cut into that
+ * many equal steps, and a score is given the step it falls in (rounding
+ * up). A term's postings are then split into segments, one per impact,
+ * highest first, each holding its docids in increasing order as vInt
+ * deltas. A query's score for a document is the sum of its terms' impacts,
+ * which scale() turns back into (roughly) BM25's scale.
+ *
+ * The file, impacts-FIELD in the index directory, holds the whole index (or
+ * all its shards) with docids as an IndexSearcher over the index numbers
+ * them. It lists the segments it was built from, so it is refused once the
+ * index has changed (deleted documents aside, which are skipped when
+ * searching); it must then be built again. The postings are read from the
+ * file through a memory map; the term dictionary is loaded onto the heap.
+ */
+public class ImpactIndex {
+    public static final String PREFIX = "impacts-";
+    private static final String CODEC = "ImpactIndex";
+    private static final int VERSION = 0;
+
+    // The impacts opened for each reader, by field.
+    private static final Map<IndexReader, Map<String, ImpactIndex>> opened =
+        new HashMap<IndexReader, Map<String, ImpactIndex>>();
+
+    public final String field;
+    public final float k1;
+    public final float b;
+    public final int bits;
+    public final float maxScore;
+    // The file's footer checksum, which tells one build from another.
+    public final long checksum;
+    private final IndexInput in;
+    private final BytesRefHash terms;
+    private final long[] pointers;
+    private final long postings;
+
+    /**
+     * The impact segments of one term, highest impact first.
+     */
+    public static class TermImpacts {
+        public final int[] impacts;
+        public final int[] counts;
+        private final long[] pointers;
+        private final IndexInput in;
+
+        TermImpacts(int[] impacts, int[] counts, long[] pointers,
+            IndexInput in) {
+            this.impacts = impacts;
+            this.counts = counts;
+            this.pointers = pointers;
+            this.in = in;
+        }
+
+        /**
+         * @return An input positioned at the first docid delta of a
+         *         segment; counts[segment] vInts follow.
+         */
+        public IndexInput docs(int segment) throws IOException {
+            in.seek(pointers[segment]);
+            return in;
+        }
+    }
+
+    private ImpactIndex(IndexInput in, IndexReader reader, String name)
+    throws IOException {
+        List<LeafReaderContext> leaves = reader.leaves();
+
+        this.in = in;
+        CodecUtil.checkHeader(in, CODEC, VERSION, VERSION);
+        field = in.readString();
+        k1 = Float.intBitsToFloat(in.readInt());
+        b = Float.intBitsToFloat(in.readInt());
+        bits = in.readVInt();
+        maxScore = Float.intBitsToFloat(in.readInt());
+        postings = in.readVLong();
+        if (in.readVInt() != leaves.size())
+            throw new CorruptIndexException(name +" was built for another"
+                +" version of the index; rebuild it with ImpactIndex", in);
+        for (LeafReaderContext leaf : leaves) {
+            byte[] id = new byte[in.readVInt()];
+            in.readBytes(id, 0, id.length);
+            int maxDoc = in.readVInt();
+            if (!Arrays.equals(id, segmentId(leaf.reader())) ||
+                    maxDoc != leaf.reader().maxDoc())
+                throw new CorruptIndexException(name +" was built for another"
+                    +" version of the index; rebuild it with ImpactIndex", in);
+        }
+
+        checksum = CodecUtil.retrieveChecksum(in);
+        in.seek(in.length() - CodecUtil.footerLength() - 8);
+        in.seek(in.readLong());
+        int count = in.readVInt();
+        BytesRef term = new BytesRef();
+        long pointer = 0;
+        terms = new BytesRefHash();
+        pointers = new long[count];
+        for (int i = 0; i < count; i++) {
+            term.length = in.readVInt();
+            term.bytes = new byte[term.length];
+            in.readBytes(term.bytes, 0, term.length);
+            pointer += in.readVLong();
+            pointers[terms.add(term)] = pointer;
+        }
+    }
+
+    /**
+     * Returns the impacts of a field of an index, opening them the first
+     * time they are asked for; they are closed with the reader.
+     *
+     * @param reader A reader over the whole index, as opened by
+     *               ShardedIndexer.openReader().
+     * @param indexPath The index directory.
+     * @param field The field.
+     * @return The impacts.
+     * @throws FileNotFoundException If the index has no impacts for the
+     *                               field.
+     * @throws CorruptIndexException If they were built for another version
+     *                               of the index.
+     */
+    public static ImpactIndex forReader(IndexReader reader, Path indexPath,
+        String field) throws IOException {
+        synchronized (opened) {
+            Map<String, ImpactIndex> fields = opened.get(reader);
+            if (fields != null && fields.containsKey(field))
+                return fields.get(field);
+
+            Path file = indexPath.resolve(PREFIX + field);
+            if (!Files.exists(file))
+                throw new FileNotFoundException("No impacts for field "+
+                    field +" in "+ indexPath +"; build them with: java "
+                    +"ImpactIndex -index "+ indexPath +" -field "+ field);
+            ImpactIndex impacts;
+            try (Directory dir = FSDirectory.open(indexPath)) {
+                IndexInput in = dir.openInput(PREFIX + field,
+                    IOContext.READ);
+                try {
+                    impacts = new ImpactIndex(in, reader, file.toString());
+                } catch (IOException | RuntimeException e) {
+                    in.close();
+                    throw e;
+                }
+            }
+
+            if (fields == null) {
+                fields = new HashMap<String, ImpactIndex>();
+                opened.put(reader, fields);
+                reader.addReaderClosedListener(
+                    new IndexReader.ReaderClosedListener() {
+                        public void onClose(IndexReader closed) {
+                            synchronized (opened) {
+                                for (ImpactIndex index :
+                                        opened.remove(closed).values()) {
+                                    try {
+                                        index.in.close();
+                                    } catch (IOException e) {
+                                        // Nothing more to do with it.
+                                    }
+                                }
+                            }
+                        }
+                    });
+            }
+            fields.put(field, impacts);
+            return impacts;
+        }
+    }
+
+    /**
+     * @return The highest impact, 2^bits - 1.
+     */
+    public int levels() {
+        return (1 << bits) - 1;
+    }
+
+    /**
+     * @return What to multiply a sum of impacts by for a score on BM25's
+     *         scale.
+     */
+    public float scale() {
+        return maxScore / levels();
+    }
+
+    /**
+     * @return The number of postings in the file.
+     */
+    public long postings() {
+        return postings;
+    }
+
+    /**
+     * @param term A term of the field.
+     * @return The term's impact segments, read through an input of their
+     *         own (so each thread must ask for its own), or null if the
+     *         field has no such term.
+     */
+    public TermImpacts impacts(BytesRef term) throws IOException {
+        int id;
+        synchronized (terms) {
+            id = terms.find(term);
+        }
+        if (id < 0)
+            return null;
+
+        IndexInput input = in.clone();
+        input.seek(pointers[id]);
+        int count = input.readVInt();
+        int[] impacts = new int[count], counts = new int[count];
+        long[] starts = new long[count];
+        long pointer = 0;
+        for (int i = 0; i < count; i++) {
+            impacts[i] = input.readVInt();
+            counts[i] = input.readVInt();
+            starts[i] = pointer;
+            pointer += input.readVLong();
+        }
+        for (int i = 0; i < count; i++)
+            starts[i] += input.getFilePointer();
+        return new TermImpacts(impacts, counts, starts, input);
+    }
+
+    private static byte[] segmentId(LeafReader reader) {
+        LeafReader unwrapped = FilterLeafReader.unwrap(reader);
+        if (!(unwrapped instanceof SegmentReader))
+            return new byte[0];
+        return ((SegmentReader) unwrapped).getSegmentInfo().info.getId();
+    }
+
+    /**
+     * Scores every posting of a term with a similarity.
+     *
+     * @param docs Where to put the docids of the postings, in order.
+     * @param scores Where to put their scores.
+     * @return The number of postings.
+     */
+    private static int score(IndexSearcher searcher, Similarity similarity,
+        CollectionStatistics stats, Term term, int[] docs, float[] scores)
+    throws IOException {
+        TermContext context = TermContext.build(searcher.getTopReaderContext(),
+            term);
+        Similarity.SimWeight weight = similarity.computeWeight(stats,
+            searcher.termStatistics(term, context));
+        int count = 0;
+
+        weight.normalize(1.0f, 1.0f);
+        for (LeafReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+            TermState state = context.get(leaf.ord);
+            if (state == null)
+                continue;
+            TermsEnum termsEnum = leaf.reader().terms(term.field()).iterator();
+            termsEnum.seekExact(term.bytes(), state);
+            PostingsEnum postings = termsEnum.postings(null,
+                PostingsEnum.FREQS);
+            Similarity.SimScorer scorer = similarity.simScorer(weight, leaf);
+            for (int doc = postings.nextDoc();
+                 doc != DocIdSetIterator.NO_MORE_DOCS;
+                 doc = postings.nextDoc()) {
+                docs[count] = leaf.docBase + doc;
+                scores[count++] = scorer.score(doc, postings.freq());
+            }
+        }
+        return count;
+    }
+
+    private static int vIntBytes(int value) {
+        return (38 - Integer.numberOfLeadingZeros(value | 1)) / 7;
+    }
+
+    /**
+     * Builds the impacts of a field of an index, replacing any it had.
+     *
+     * @param indexPath The index directory.
+     * @param field The field; it must be indexed with frequencies.
+     * @param k1 BM25's k1.
+     * @param b BM25's b.
+     * @param bits The bits of an impact, from 1 to 16.
+     */
+    public static void write(Path indexPath, String field, float k1, float b,
+        int bits) throws IOException {
+        if (bits < 1 || bits > 16)
+            throw new IllegalArgumentException("bits must be from 1 to 16");
+
+        try (IndexReader reader = ShardedIndexer.openReader(indexPath);
+             Directory dir = FSDirectory.open(indexPath)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            BM25 bm25 = new BM25(k1, b);
+            CollectionStatistics stats = searcher.collectionStatistics(field);
+            Terms fieldTerms = MultiFields.getTerms(reader, field);
+            int[] docs = new int[reader.maxDoc()];
+            float[] scores = new float[reader.maxDoc()];
+            int levels = (1 << bits) - 1;
+            float maxScore = 0;
+            long postings = 0;
+            TermsEnum termsEnum;
+            BytesRef bytes;
+
+            if (fieldTerms == null || !fieldTerms.hasFreqs())
+                throw new IllegalArgumentException("The field "+ field +
+                    " is not indexed with frequencies");
+
+            // The highest score of any posting sets the scale.
+            termsEnum = fieldTerms.iterator();
+            while ((bytes = termsEnum.next()) != null) {
+                Term term = new Term(field, BytesRef.deepCopyOf(bytes));
+                int count = score(searcher, bm25, stats, term, docs, scores);
+                for (int i = 0; i < count; i++)
+                    maxScore = Math.max(maxScore, scores[i]);
+                postings += count;
+            }
+
+            try (IndexOutput out = dir.createOutput(PREFIX + field,
+                    IOContext.DEFAULT)) {
+                RAMOutputStream dictionary = new RAMOutputStream();
+                int[] impacts = new int[reader.maxDoc()];
+                int[] counts = new int[levels + 1];
+                int[] lastDoc = new int[levels + 1];
+                int[] sorted = new int[reader.maxDoc()];
+                long[] segmentBytes = new long[levels + 1];
+                long previous = 0, terms = 0;
+
+                CodecUtil.writeHeader(out, CODEC, VERSION);
+                out.writeString(field);
+                out.writeInt(Float.floatToIntBits(k1));
+                out.writeInt(Float.floatToIntBits(b));
+                out.writeVInt(bits);
+                out.writeInt(Float.floatToIntBits(maxScore));
+                out.writeVLong(postings);
+                out.writeVInt(reader.leaves().size());
+                for (LeafReaderContext leaf : reader.leaves()) {
+                    byte[] id = segmentId(leaf.reader());
+                    out.writeVInt(id.length);
+                    out.writeBytes(id, id.length);
+                    out.writeVInt(leaf.reader().maxDoc());
+                }
+
+                termsEnum = fieldTerms.iterator();
+                while ((bytes = termsEnum.next()) != null) {
+                    Term term = new Term(field, BytesRef.deepCopyOf(bytes));
+                    int count = score(searcher, bm25, stats, term, docs,
+                        scores);
+                    int segments = 0;
+
+                    // Quantize, and sort the postings by impact with a
+                    // counting sort, which keeps each impact's docids in
+                    // order.
+                    Arrays.fill(counts, 0);
+                    Arrays.fill(segmentBytes, 0);
+                    Arrays.fill(lastDoc, 0);
+                    for (int i = 0; i < count; i++) {
+                        int impact = (int) Math.ceil(scores[i] / maxScore *
+                            levels);
+                        impact = Math.max(1, Math.min(levels, impact));
+                        impacts[i] = impact;
+                        if (counts[impact]++ == 0)
+                            segments++;
+                        segmentBytes[impact] +=
+                            vIntBytes(docs[i] - lastDoc[impact]);
+                        lastDoc[impact] = docs[i];
+                    }
+                    int[] starts = new int[levels + 2];
+                    for (int impact = levels; impact >= 1; impact--)
+                        starts[impact - 1] = starts[impact] + counts[impact];
+                    for (int i = 0; i < count; i++)
+                        sorted[starts[impacts[i]]++] = docs[i];
+
+                    dictionary.writeVInt(bytes.length);
+                    dictionary.writeBytes(bytes.bytes, bytes.offset,
+                        bytes.length);
+                    dictionary.writeVLong(out.getFilePointer() - previous);
+                    previous = out.getFilePointer();
+                    terms++;
+
+                    out.writeVInt(segments);
+                    for (int impact = levels; impact >= 1; impact--) {
+                        if (counts[impact] == 0)
+                            continue;
+                        out.writeVInt(impact);
+                        out.writeVInt(counts[impact]);
+                        out.writeVLong(segmentBytes[impact]);
+                    }
+                    for (int impact = levels, i = 0; impact >= 1; impact--) {
+                        int doc = 0;
+                        for (int end = i + counts[impact]; i < end; i++) {
+                            out.writeVInt(sorted[i] - doc);
+                            doc = sorted[i];
+                        }
+                    }
+                }
+
+                long dictionaryPointer = out.getFilePointer();
+                out.writeVInt((int) terms);
+                dictionary.writeTo(out);
+                out.writeLong(dictionaryPointer);
+                CodecUtil.writeFooter(out);
+            }
+        }
+    }
+
+    /**
+     * Builds the impacts of a field of an existing index, and prints their
+     * size next to that of Lucene's postings (the .doc files).
+     *
+     * Usage: java ImpactIndex -index INDEX_PATH [-field f] [-k1 K1] [-b B]
+     *            [-bits BITS]
+     */
+    public static void main(String[] args) throws IOException {
+        String index = null, field = LTRSettings.DEFAULT_SEARCH_FIELD;
+        float k1 = 1.2f, b = 0.75f;
+        int bits = 8;
+
+        for (int i = 0; i < args.length - 1; i++) {
+            if ("-index".equals(args[i]) || "-indexPath".equals(args[i]))
+                index = args[i+1];
+            else if ("-field".equals(args[i]))
+                field = args[i+1];
+            else if ("-k1".equals(args[i]))
+                k1 = Float.parseFloat(args[i+1]);
+            else if ("-b".equals(args[i]))
+                b = Float.parseFloat(args[i+1]);
+            else if ("-bits".equals(args[i]))
+                bits = Integer.parseInt(args[i+1]);
+        }
+        if (index == null) {
+            System.err.println("Usage: java ImpactIndex -index INDEX_PATH "+
+                "[-field f] [-k1 K1] [-b B] [-bits BITS]");
+            System.exit(1);
+        }
+
+        Path path = Paths.get(index);
+        long start = System.nanoTime();
+        write(path, field, k1, b, bits);
+        System.out.printf("wrote %s in %.1f s\n", path.resolve(PREFIX + field),
+            (System.nanoTime() - start) / 1e9);
+
+        try (IndexReader reader = ShardedIndexer.openReader(path)) {
+            ImpactIndex impacts = forReader(reader, path, field);
+            long postingsBytes = 0;
+            for (LeafReaderContext leaf : reader.leaves()) {
+                LeafReader unwrapped = FilterLeafReader.unwrap(leaf.reader());
+                if (!(unwrapped instanceof SegmentReader))
+                    continue;
+                SegmentInfo info =
+                    ((SegmentReader) unwrapped).getSegmentInfo().info;
+                Directory dir = info.getUseCompoundFile()
+                    ? info.getCodec().compoundFormat().getCompoundReader(
+                        info.dir, info, IOContext.READ)
+                    : info.dir;
+                for (String file : dir.listAll())
+                    if (file.endsWith(".doc"))
+                        postingsBytes += dir.fileLength(file);
+                if (dir != info.dir)
+                    dir.close();
+            }
+            System.out.printf("%s: %d postings, k1 %s, b %s, %d bits, max"
+                +" score %.4f; impacts %.2f MB, Lucene's postings %.2f MB\n",
+                field, impacts.postings(), impacts.k1, impacts.b,
+                impacts.bits, impacts.maxScore,
+                Files.size(path.resolve(PREFIX + field)) / 1048576.0,
+                postingsBytes / 1048576.0);
+        }
+    }
+}
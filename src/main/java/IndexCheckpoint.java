@@ -0,0 +1,202 @@
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Commits an index every so many files or minutes during a long build, so
+ * that a crashed or killed run can be resumed from the last commit rather
+ * than started over.
+ *
+ * Each commit's user data records the corpus files that were completely
+ * indexed when it was made (deflated and base64 encoded under
+ * "completedFiles"). Documents are tagged with their file in the "source"
+ * field, since a commit may also hold some of the documents of files that
+ * were still being indexed; when a run is resumed, those are deleted and the
+ * files are indexed again.
+ */
+public class IndexCheckpoint {
+    public static final String COMPLETED_FILES = "completedFiles";
+
+    private final IndexWriter writer;
+    private final Path docsPath;
+    private final int  everyFiles;
+    private final long everyNanos;
+    private final TreeSet<String> completed = new TreeSet<String>();
+
+    private int  filesSinceCommit = 0;
+    private long lastCommit = System.nanoTime();
+    private int  commits = 0;
+
+    /**
+     * Starts checkpointing a build.
+     *
+     * @param writer The index being built.
+     * @param docsPath The corpus file or directory.
+     * @param everyFiles Commit once this many more files are completed (0
+     *                   for no limit).
+     * @param everyMinutes Commit once a file is completed this many minutes
+     *                     after the last commit (0 for no limit).
+     * @param resume If true, the writer was opened on an interrupted build,
+     *               and the files completed as of its last commit are
+     *               carried over.
+     */
+    public IndexCheckpoint(IndexWriter writer, Path docsPath, int everyFiles,
+        double everyMinutes, boolean resume) throws IOException {
+        String data = writer.getCommitData().get(COMPLETED_FILES);
+
+        this.writer = writer;
+        this.docsPath = docsPath;
+        this.everyFiles = everyFiles;
+        this.everyNanos = (long) (everyMinutes * 60e9);
+        if(resume && data != null)
+            completed.addAll(decode(data));
+    }
+
+    /**
+     * @param dir An index directory.
+     * @return True if the directory holds an index whose last commit was
+     *         made by a checkpointed build, so that the build can be resumed.
+     */
+    public static boolean canResume(Directory dir) throws IOException {
+        return DirectoryReader.indexExists(dir) && SegmentInfos
+            .readLatestCommit(dir).getUserData().containsKey(COMPLETED_FILES);
+    }
+
+    /**
+     * @return The number of files completed so far.
+     */
+    public synchronized int completedFiles() {
+        return completed.size();
+    }
+
+    /**
+     * Deletes the documents of every file that was not completed as of the
+     * index's last commit, and returns those files to be indexed.
+     *
+     * @param files All of the files in the corpus.
+     * @return The files still to index, in the same order.
+     */
+    public List<File> remainingFiles(List<File> files) throws IOException {
+        List<File> remaining = new ArrayList<File>();
+        for(File file : files){
+            String source = IndexManifest.sourceName(docsPath, file);
+            if(completed.contains(source))
+                continue;
+            new DocumentSink(writer, source).deleteSource();
+            remaining.add(file);
+        }
+        return remaining;
+    }
+
+    /**
+     * @param file A corpus file.
+     * @return The sink to index the file's documents through.
+     */
+    public DocumentSink sink(File file) {
+        return new DocumentSink(writer,
+            IndexManifest.sourceName(docsPath, file), false);
+    }
+
+    /**
+     * Records a file as completely indexed and commits if it is time to.
+     *
+     * @param file The file that was indexed.
+     */
+    public synchronized void completed(File file) throws IOException {
+        completed.add(IndexManifest.sourceName(docsPath, file));
+        filesSinceCommit++;
+        if((everyFiles > 0 && filesSinceCommit >= everyFiles) ||
+           (everyNanos > 0 && System.nanoTime() - lastCommit >= everyNanos))
+            commit();
+    }
+
+    /**
+     * Commits the index along with the list of completed files.
+     */
+    public synchronized void commit() throws IOException {
+        setCommitData();
+        writer.commit();
+        filesSinceCommit = 0;
+        lastCommit = System.nanoTime();
+        commits++;
+        System.out.println("Checkpoint "+ commits +": "+ completed.size() +
+            " files completed.");
+    }
+
+    /**
+     * Sets the list of completed files as the data of the writer's next
+     * commit, e.g., the one made when it is closed.
+     */
+    public synchronized void setCommitData() {
+        Map<String, String> data = new HashMap<String, String>(
+            writer.getCommitData());
+        data.put(COMPLETED_FILES, encode(completed));
+        writer.setCommitData(data);
+    }
+
+    /**
+     * @return The names, one per line, deflated and base64 encoded.
+     */
+    static String encode(Collection<String> names) {
+        byte[] bytes = String.join("\n", names)
+            .getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        byte[] buffer = new byte[1 << 16];
+
+        deflater.setInput(bytes);
+        deflater.finish();
+        while(!deflater.finished())
+            out.write(buffer, 0, deflater.deflate(buffer));
+        deflater.end();
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+
+    /**
+     * @return The names encoded by encode().
+     */
+    static List<String> decode(String data) throws IOException {
+        List<String> names = new ArrayList<String>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Inflater inflater = new Inflater();
+        byte[] buffer = new byte[1 << 16];
+        int n;
+
+        inflater.setInput(Base64.getDecoder().decode(data));
+        try {
+            while(!inflater.finished()){
+                n = inflater.inflate(buffer);
+                if(n == 0 && inflater.needsInput())
+                    throw new IOException("Truncated "+ COMPLETED_FILES);
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt "+ COMPLETED_FILES, e);
+        } finally {
+            inflater.end();
+        }
+
+        String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        if(!text.isEmpty())
+            for(String name : text.split("\n"))
+                names.add(name);
+        return names;
+    }
+}
@@ -0,0 +1,212 @@
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The list of corpus files that an index was built from, kept in the index
+ * directory (as manifest.json) for incremental indexing. Each file is
+ * recorded by its path relative to the corpus directory, with its size,
+ * modification time and SHA-1 hash.
+ *
+ * A file whose size and modification time match the manifest is taken to be
+ * unchanged without reading it; otherwise it is hashed, and it is only
+ * re-indexed if the hash differs (so touching a file costs a read, not a
+ * re-index).
+ */
+public class IndexManifest {
+    public static final String FILE_NAME = "manifest.json";
+
+    /**
+     * What is recorded for one file.
+     */
+    public static class Entry {
+        public long   size;
+        public long   modified;
+        public String sha1;
+    }
+
+    private final Path manifestPath;
+    private final Path docsPath;
+    private final boolean exists;
+    private final Map<String, Entry> previous;
+    private final Map<String, Entry> current = new TreeMap<String, Entry>();
+    private final Map<String, Entry> pending = new HashMap<String, Entry>();
+
+    /**
+     * Loads the manifest of an index, if it has one.
+     *
+     * @param indexPath The index directory.
+     * @param docsPath The corpus file or directory.
+     */
+    public IndexManifest(Path indexPath, Path docsPath) throws IOException {
+        Map<String, Entry> entries = null;
+
+        this.manifestPath = indexPath.resolve(FILE_NAME);
+        this.docsPath = docsPath;
+
+        if(Files.exists(manifestPath)){
+            try(Reader reader = Files.newBufferedReader(
+                    manifestPath, StandardCharsets.UTF_8)){
+                entries = new Gson().fromJson(reader,
+                    new TypeToken<Map<String, Entry>>(){}.getType());
+            }
+        }
+        exists = entries != null;
+        previous = exists ? entries : new HashMap<String, Entry>();
+    }
+
+    /**
+     * @return True if the index has a manifest to update; if not, it has to
+     *         be built from scratch.
+     */
+    public boolean exists() {
+        return exists;
+    }
+
+    /**
+     * @param file A corpus file.
+     * @return The name the file is recorded under: its path relative to the
+     *         corpus directory (or its name, if the corpus is a single file).
+     */
+    public String key(File file) {
+        return sourceName(docsPath, file);
+    }
+
+    /**
+     * @param docsPath The corpus file or directory.
+     * @param file A corpus file.
+     * @return The file's path relative to the corpus directory (or its name,
+     *         if the corpus is a single file), as recorded in the manifest
+     *         and in the "source" field of its documents.
+     */
+    public static String sourceName(Path docsPath, File file) {
+        if(Files.isDirectory(docsPath))
+            return docsPath.relativize(file.toPath()).toString();
+        return file.getName();
+    }
+
+    /**
+     * Compares the corpus files against the manifest. Unchanged files are
+     * carried over to the new manifest; new and changed files are returned
+     * to be indexed, and are added to the new manifest as they are
+     * completed.
+     *
+     * @param files All of the files in the corpus.
+     * @return The files that are new or have changed, in the same order.
+     */
+    public List<File> changedFiles(List<File> files) throws IOException {
+        List<File> changed = new ArrayList<File>();
+
+        for(File file : files){
+            String key = key(file);
+            Entry old = previous.get(key);
+            Entry entry = new Entry();
+            entry.size = file.length();
+            entry.modified = file.lastModified();
+
+            if(old != null && old.size == entry.size &&
+               old.modified == entry.modified){
+                current.put(key, old);
+                continue;
+            }
+
+            entry.sha1 = sha1(file);
+            if(old != null && entry.sha1.equals(old.sha1)){
+                current.put(key, entry);
+                continue;
+            }
+            pending.put(key, entry);
+            changed.add(file);
+        }
+        return changed;
+    }
+
+    /**
+     * @return The names of files in the manifest that are no longer in the
+     *         corpus (only meaningful after changedFiles()).
+     */
+    public List<String> removedFiles() {
+        List<String> removed = new ArrayList<String>();
+        for(String key : previous.keySet())
+            if(!current.containsKey(key) && !pending.containsKey(key))
+                removed.add(key);
+        return removed;
+    }
+
+    /**
+     * Records a file returned by changedFiles() as indexed. Files that are
+     * never completed (e.g., because they could not be read) are left out of
+     * the new manifest, so they are tried again next time.
+     *
+     * @param file The file that was indexed.
+     */
+    public synchronized void completed(File file) {
+        String key = key(file);
+        Entry entry = pending.remove(key);
+        if(entry != null)
+            current.put(key, entry);
+    }
+
+    /**
+     * Writes the new manifest to the index directory, replacing the old
+     * one. This should be done once the index has been committed.
+     */
+    public synchronized void save() throws IOException {
+        Path temp = manifestPath.resolveSibling(FILE_NAME + ".tmp");
+        try(Writer writer = Files.newBufferedWriter(
+                temp, StandardCharsets.UTF_8)){
+            new Gson().toJson(current, writer);
+        }
+        Files.move(temp, manifestPath, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes the manifest of an index, if it has one. A full (not
+     * incremental) build does this, since it does not keep one up to date.
+     *
+     * @param indexPath The index directory.
+     */
+    public static void delete(Path indexPath) throws IOException {
+        Files.deleteIfExists(indexPath.resolve(FILE_NAME));
+    }
+
+    /**
+     * @return The SHA-1 hash of a file's contents, in hex.
+     */
+    public static String sha1(File file) throws IOException {
+        MessageDigest digest;
+        byte[] buffer = new byte[1 << 16];
+        StringBuilder hex = new StringBuilder();
+        int n;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try(InputStream input = Files.newInputStream(file.toPath())){
+            while((n = input.read(buffer)) != -1)
+                digest.update(buffer, 0, n);
+        }
+        for(byte b : digest.digest())
+            hex.append(String.format("%02x", b & 0xff));
+        return hex.toString();
+    }
+}
@@ -0,0 +1,343 @@
+import com.google.gson.GsonBuilder;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.util.InfoStream;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Counters for an indexing run, so that a slow build can be put down to the
+ * stage that is slow. The time spent by indexing threads is split into:
+ *
+ *   read   -- reading (and decompressing) corpus files;
+ *   parse  -- building Lucene documents from the text (Jsoup, the TREC
+ *             scanner, etc.), not counting the reads it triggers;
+ *   index  -- IndexWriter.addDocument()/updateDocument(): analysis, and any
+ *             segment flushes done on the indexing thread.
+ *
+ * Segment flushes and merges are tallied from the writers' InfoStream
+ * messages (merges mostly run on Lucene's own threads). Stage times are
+ * summed over threads, so with several threads they can add up to more than
+ * the wall-clock time.
+ *
+ * Parse time is not measured directly: it is whatever is left of the time
+ * processFile() spends on a file once its reads and addDocument() calls are
+ * taken out.
+ *
+ * Writers are registered with register(), and DocumentSink and FileParser
+ * look up the metrics of the writer they are given with forWriter(); a
+ * writer without metrics gets a shared instance that nobody reports.
+ */
+public class IndexMetrics {
+    private static final int READ  = 0;
+    private static final int PARSE = 1;
+    private static final int INDEX = 2;
+    private static final String[] STAGES = {"read", "parse", "index"};
+
+    private static final Map<IndexWriter, IndexMetrics> metrics =
+        new ConcurrentHashMap<IndexWriter, IndexMetrics>();
+    private static final IndexMetrics UNREPORTED = new IndexMetrics();
+
+    private static final Pattern FLUSH_START =
+        Pattern.compile("^flush postings as segment (\\S+)");
+    private static final Pattern FLUSH_END =
+        Pattern.compile("^flushed: segment=(\\S+)");
+    private static final Pattern MERGE =
+        Pattern.compile("^merge time (\\d+) msec for (\\d+) docs");
+
+    private final long start = System.nanoTime();
+    private final LongAdder[] nanos = new LongAdder[STAGES.length];
+    private final LongAdder files = new LongAdder();
+    private final LongAdder docs = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushNanos = new LongAdder();
+    private final LongAdder merges = new LongAdder();
+    private final LongAdder mergeNanos = new LongAdder();
+    private final LongAdder mergedDocs = new LongAdder();
+    private final List<IndexWriter> writers =
+        new CopyOnWriteArrayList<IndexWriter>();
+
+    // The read and index time of each thread, so that processFile() can
+    // work out the parse time of a file as what is left over.
+    private final ThreadLocal<long[]> threadNanos = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private Thread reporter;
+    private long lastDocs = 0, lastBytes = 0, lastReport = start;
+
+    public IndexMetrics() {
+        for(int i = 0; i < nanos.length; i++)
+            nanos[i] = new LongAdder();
+    }
+
+    /**
+     * @param writer An index writer.
+     * @return The metrics the writer was registered with, or an instance
+     *         that is never reported.
+     */
+    public static IndexMetrics forWriter(IndexWriter writer) {
+        IndexMetrics writerMetrics = metrics.get(writer);
+        return writerMetrics != null ? writerMetrics : UNREPORTED;
+    }
+
+    /**
+     * Records everything indexed by a writer in these metrics, until the
+     * writer is closed (or the run finishes). The writer's config should
+     * have had infoStream() set, so that flushes and merges are counted.
+     *
+     * @param writer The writer.
+     * @return The writer.
+     */
+    public IndexWriter register(IndexWriter writer) {
+        metrics.put(writer, this);
+        writers.add(writer);
+        return writer;
+    }
+
+    /**
+     * @return A new InfoStream to give to the IndexWriterConfig of a writer,
+     *         which tallies the time spent on flushes and merges.
+     */
+    public InfoStream infoStream() {
+        // Segment names are only unique within one writer.
+        final Map<String, Long> flushStarts =
+            new ConcurrentHashMap<String, Long>();
+
+        return new InfoStream() {
+            @Override
+            public boolean isEnabled(String component) {
+                return component.equals("DWPT") || component.equals("IW");
+            }
+
+            @Override
+            public void message(String component, String message) {
+                tally(message, flushStarts);
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+    private void tally(String message, Map<String, Long> flushStarts) {
+        Matcher m;
+        if((m = FLUSH_START.matcher(message)).find()){
+            flushStarts.put(m.group(1), System.nanoTime());
+        } else if((m = FLUSH_END.matcher(message)).find()){
+            Long flushStart = flushStarts.remove(m.group(1));
+            if(flushStart != null){
+                flushes.increment();
+                flushNanos.add(System.nanoTime() - flushStart);
+            }
+        } else if((m = MERGE.matcher(message)).find()){
+            merges.increment();
+            mergeNanos.add(Long.parseLong(m.group(1)) * 1000000L);
+            mergedDocs.add(Long.parseLong(m.group(2)));
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Stages.
+
+    /**
+     * Counts a read from a corpus file.
+     *
+     * @param time The time the read took, in nanoseconds.
+     * @param n The number of bytes read (after decompression).
+     */
+    public void countRead(long time, long n) {
+        nanos[READ].add(time);
+        bytes.add(n);
+        threadNanos.get()[0] += time;
+    }
+
+    /**
+     * Counts a document as indexed.
+     *
+     * @param time The time addDocument() took, in nanoseconds.
+     */
+    public void indexed(long time) {
+        nanos[INDEX].add(time);
+        docs.increment();
+        threadNanos.get()[0] += time;
+    }
+
+    /**
+     * @return The read and index time of this thread so far, in nanoseconds;
+     *         taken before processing a file, for fileDone().
+     */
+    public long threadNanos() {
+        return threadNanos.get()[0];
+    }
+
+    /**
+     * Counts a corpus file as done, putting the time spent on it that was
+     * not reading or indexing down to parsing.
+     *
+     * @param time The time spent on the file, in nanoseconds.
+     * @param before What threadNanos() returned when the file was started.
+     */
+    public void fileDone(long time, long before) {
+        nanos[PARSE].add(Math.max(0, time - (threadNanos() - before)));
+        files.increment();
+    }
+
+    /**
+     * @param in A stream of corpus text.
+     * @return The stream, counting the time and bytes of each read.
+     */
+    public InputStream timed(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                long readStart = System.nanoTime();
+                int b = super.read();
+                countRead(System.nanoTime() - readStart, b >= 0 ? 1 : 0);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                long readStart = System.nanoTime();
+                int n = super.read(b, off, len);
+                countRead(System.nanoTime() - readStart, Math.max(n, 0));
+                return n;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------
+    // Reporting.
+
+    /**
+     * Prints a progress line every so often, on a background thread, until
+     * finish() is called.
+     *
+     * @param seconds The time between lines; 0 for none.
+     */
+    public void startProgress(final double seconds) {
+        if(seconds <= 0)
+            return;
+        reporter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while(true){
+                        Thread.sleep((long) (seconds * 1000));
+                        System.out.println(progress());
+                    }
+                } catch (InterruptedException e) {
+                    // Finished.
+                }
+            }
+        }, "index-progress");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * @return A line giving the documents and bytes indexed so far, the
+     *         rates since the last line, and the RAM used by the writers.
+     */
+    public synchronized String progress() {
+        long now = System.nanoTime(), docCount = docs.sum(),
+            byteCount = bytes.sum(), ram = 0;
+        double seconds = Math.max((now - lastReport) / 1e9, 1e-9);
+
+        for(IndexWriter writer : writers)
+            if(writer.isOpen())
+                ram += writer.ramBytesUsed();
+        String line = String.format("[%7.1f s] %d files, %d docs, %.1f MB; "+
+            "%.1f docs/s, %.2f MB/s; RAM buffer %.1f MB",
+            (now - start) / 1e9, files.sum(), docCount, byteCount / 1048576.0,
+            (docCount - lastDocs) / seconds,
+            (byteCount - lastBytes) / 1048576.0 / seconds, ram / 1048576.0);
+        lastDocs = docCount;
+        lastBytes = byteCount;
+        lastReport = now;
+        return line;
+    }
+
+    /**
+     * @return The totals for the run so far, in the order they are printed.
+     */
+    public Map<String, Object> summary() {
+        Map<String, Object> summary = new LinkedHashMap<String, Object>();
+        Map<String, Double> stages = new LinkedHashMap<String, Double>();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        summary.put("wallSeconds", round(seconds));
+        summary.put("files", files.sum());
+        summary.put("docs", docs.sum());
+        summary.put("megabytes", round(bytes.sum() / 1048576.0));
+        summary.put("docsPerSecond", round(docs.sum() / seconds));
+        summary.put("megabytesPerSecond",
+            round(bytes.sum() / 1048576.0 / seconds));
+        for(int i = 0; i < STAGES.length; i++)
+            stages.put(STAGES[i], round(nanos[i].sum() / 1e9));
+        summary.put("stageSeconds", stages);
+        summary.put("flushes", flushes.sum());
+        summary.put("flushSeconds", round(flushNanos.sum() / 1e9));
+        summary.put("merges", merges.sum());
+        summary.put("mergeSeconds", round(mergeNanos.sum() / 1e9));
+        summary.put("mergedDocs", mergedDocs.sum());
+        return summary;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    /**
+     * Stops the progress lines, prints the summary and, if a file is given,
+     * writes it there as JSON. The registered writers are forgotten.
+     *
+     * @param jsonFile The file to write the summary to, or null.
+     * @param extra Other values to include in the JSON summary (e.g., the
+     *              settings of the run), or null.
+     */
+    public void finish(String jsonFile, Map<String, Object> extra)
+    throws IOException {
+        Map<String, Object> summary = summary();
+
+        if(reporter != null){
+            reporter.interrupt();
+            reporter = null;
+        }
+        for(IndexWriter writer : writers)
+            metrics.remove(writer);
+        writers.clear();
+
+        for(Map.Entry<String, Object> entry : summary.entrySet())
+            System.out.println(String.format("%-20s %s", entry.getKey(),
+                entry.getValue()));
+
+        if(jsonFile == null)
+            return;
+        if(extra != null)
+            summary.putAll(extra);
+        try(Writer out = Files.newBufferedWriter(Paths.get(jsonFile),
+                StandardCharsets.UTF_8)){
+            new GsonBuilder().setPrettyPrinting().create()
+                .toJson(summary, out);
+        }
+    }
+}
@@ -26,7 +26,11 @@ import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.FileVisitOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class IndexTREC {
 
@@ -36,7 +40,13 @@ public class IndexTREC {
         String usage = "java -cp lib/trec.jar:bin IndexTREC\n"
             + "\t[-settings SETTINGS_FILE] [-index INDEX_PATH]\n"
             + "\t[-docs DOCS_PATH] [-stop STOP_FILE] [-stem STEMMER_NAME]\n"
-            + "\t[-m MEMORY_MiB]"
+            + "\t[-m MEMORY_MiB] [-threads NUM_THREADS]"
+            + " [-incremental true|false]\n"
+            + "\t[-commitEveryFiles N] [-commitEveryMinutes M]"
+            + " [-resume true|false]\n"
+            + "\t[-shards NUM_SHARDS] [-keepShards true|false]\n"
+            + "\t[-progressSeconds SECONDS] [-metricsFile JSON_FILE]\n"
+            + "\t[-indexOffsets true|false] [-docLengths true|false]"
             + "\nCommand line options will override values in SETTINGS_FILE\n"
             + "if a settings file is provided. Use 'None' in place of "
             + "STOP_FILE\nor STEMMER_NAME to use no stoplist or stemmer (this "
@@ -91,20 +101,110 @@ public class IndexTREC {
             System.out.println("Indexing to directory '"+ 
                 ltrSettings.indexPath + "'...");
 
-            Directory dir = FSDirectory.open(Paths.get(ltrSettings.indexPath));
+            Path indexPath = Paths.get(ltrSettings.indexPath);
+            IndexMetrics metrics = new IndexMetrics();
+
+            // A sharded build has its own writers; see ShardedIndexer.
+            if (ltrSettings.shards > 1) {
+                if (ltrSettings.incremental || ltrSettings.resume ||
+                    ltrSettings.commitEveryFiles > 0 ||
+                    ltrSettings.commitEveryMinutes > 0) {
+                    System.err.println("Sharded builds cannot be incremental "+
+                        "or checkpointed.");
+                    System.exit(1);
+                }
+                IndexManifest.delete(indexPath);
+                metrics.startProgress(ltrSettings.progressSeconds);
+                new ShardedIndexer(ltrSettings, indexPath, ltrSettings.shards,
+                    metrics).build(collectFiles(docDir));
+                finishDocLengths(ltrSettings, indexPath, true);
+                finishMetrics(ltrSettings, metrics);
+                return;
+            }
+            ShardedIndexer.deleteShards(indexPath);
+
+            Directory dir = FSDirectory.open(indexPath);
             TrecAnalyzer analyzer = new TrecAnalyzer(ltrSettings);
             IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
-            iwc.setOpenMode(OpenMode.CREATE);
+            IndexManifest manifest = null;
+            IndexCheckpoint checkpoint = null;
+            boolean resume = false;
+
+            // An incremental build updates the existing index if it has a
+            // manifest, and a resumed build continues from the last
+            // checkpoint; otherwise the index is built from scratch.
+            if (ltrSettings.incremental) {
+                manifest = new IndexManifest(indexPath, docDir);
+                iwc.setOpenMode(manifest.exists() ?
+                    OpenMode.CREATE_OR_APPEND : OpenMode.CREATE);
+            } else {
+                resume = ltrSettings.resume && IndexCheckpoint.canResume(dir);
+                if (ltrSettings.resume && !resume)
+                    System.out.println("No checkpoint to resume from; "+
+                        "starting from scratch.");
+                iwc.setOpenMode(resume ?
+                    OpenMode.CREATE_OR_APPEND : OpenMode.CREATE);
+                IndexManifest.delete(indexPath);
+            }
             iwc.setRAMBufferSizeMB(ltrSettings.memory);
-            IndexWriter writer = new IndexWriter(dir, iwc);
-            indexDocs(ltrSettings, writer, docDir);
+            iwc.setInfoStream(metrics.infoStream());
+            IndexWriter writer = metrics.register(new IndexWriter(dir, iwc));
+            metrics.startProgress(ltrSettings.progressSeconds);
+            if (ltrSettings.commitEveryFiles > 0 ||
+                ltrSettings.commitEveryMinutes > 0 || resume)
+                checkpoint = new IndexCheckpoint(writer, docDir,
+                    ltrSettings.commitEveryFiles,
+                    ltrSettings.commitEveryMinutes, resume);
+            indexDocs(ltrSettings, writer, docDir, manifest, checkpoint);
+            if (checkpoint != null)
+                checkpoint.setCommitData();
             writer.close();
+            if (manifest != null)
+                manifest.save();
+            finishDocLengths(ltrSettings, indexPath,
+                iwc.getOpenMode() == OpenMode.CREATE);
+            finishMetrics(ltrSettings, metrics);
         } catch (IOException e) {
             System.out.println(" caught a " + e.getClass() +
                                "\n with message: " + e.getMessage());
         }
     }
 
+    /**
+     * Writes the DocLengths store of a build with docLengths, or deletes
+     * the one left by an earlier build of the index from scratch.
+     *
+     * @param settings The global settings.
+     * @param indexPath The index directory.
+     * @param fromScratch Whether the index was built from scratch.
+     */
+    static void finishDocLengths(LTRSettings settings, Path indexPath,
+        boolean fromScratch) throws IOException {
+        if (settings.docLengths)
+            DocLengths.write(indexPath);
+        else if (fromScratch)
+            DocLengths.delete(indexPath);
+    }
+
+    /**
+     * Prints the summary of a build and, if the metricsFile setting is
+     * given, writes it there along with the settings that affect speed.
+     */
+    static void finishMetrics(LTRSettings settings, IndexMetrics metrics)
+    throws IOException {
+        Map<String, Object> run = new LinkedHashMap<String, Object>();
+        run.put("docsPath", settings.docsPath);
+        run.put("indexPath", settings.indexPath);
+        run.put("memory", settings.memory);
+        run.put("threads", settings.threads);
+        run.put("shards", settings.shards);
+        run.put("decompressThreads", settings.decompressThreads);
+        run.put("memoryMapFiles", settings.memoryMapFiles);
+        run.put("trecParser", settings.trecParser);
+        run.put("htmlExtractor", settings.htmlExtractor);
+        metrics.finish(settings.metricsFile, run);
+    }
+
     public static EnumSet<FileVisitOption> visitor_opts = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
     
     public static class DocVisitor extends SimpleFileVisitor<Path> {
@@ -131,6 +231,12 @@ public class IndexTREC {
     static void indexDocs(LTRSettings ltrSettings, final IndexWriter writer, 
         Path path)
     throws IOException {
+        if (ltrSettings.threads > 1) {
+            new ParallelIndexer(ltrSettings, writer, ltrSettings.threads)
+                .index(collectFiles(path));
+            return;
+        }
+
         DocVisitor docVisitor = new DocVisitor(ltrSettings, writer);
         if (Files.isDirectory(path)) {
             Files.walkFileTree(path, visitor_opts, Integer.MAX_VALUE, docVisitor);
@@ -139,4 +245,118 @@ public class IndexTREC {
                 ltrSettings, writer, new File(path.toString()));
         }
     }
+
+    /**
+     * Indexes the corpus incrementally and/or with checkpoints. With a
+     * manifest, only files that are new or have changed since the manifest
+     * was written are (re-)indexed, and the documents of files that have
+     * been removed are deleted. With a checkpoint, files completed as of the
+     * last commit of a resumed build are skipped, and the index is committed
+     * periodically as files are completed.
+     *
+     * @param ltrSettings The global settings.
+     * @param writer The index to update.
+     * @param path The corpus file or directory.
+     * @param manifest The index's manifest, or null.
+     * @param checkpoint The build's checkpoint, or null.
+     */
+    static void indexDocs(LTRSettings ltrSettings, final IndexWriter writer,
+        Path path, IndexManifest manifest, IndexCheckpoint checkpoint)
+    throws IOException {
+        if (manifest == null && checkpoint == null) {
+            indexDocs(ltrSettings, writer, path);
+            return;
+        }
+
+        List<File> files = collectFiles(path);
+        List<File> remaining;
+
+        if (manifest != null) {
+            remaining = manifest.changedFiles(files);
+            List<String> removed = manifest.removedFiles();
+            for (String source : removed)
+                new DocumentSink(writer, source).deleteSource();
+            System.out.println(remaining.size() +" of "+ files.size() +
+                " files new or changed, "+ removed.size() +" removed.");
+        } else {
+            remaining = checkpoint.remainingFiles(files);
+            if (remaining.size() < files.size())
+                System.out.println("Resuming: "+ checkpoint.completedFiles()
+                    +" files already indexed, "+ remaining.size() +" to go.");
+        }
+
+        if (ltrSettings.threads > 1) {
+            new ParallelIndexer(ltrSettings, writer, ltrSettings.threads,
+                manifest, checkpoint).index(remaining);
+            return;
+        }
+        for (File file : remaining) {
+            try {
+                indexFile(ltrSettings, writer, file, manifest, checkpoint);
+            } catch (IOException ignore) {
+                // don't index files that can't be read.
+            }
+        }
+    }
+
+    /**
+     * Indexes one corpus file. With a manifest, the documents the file held
+     * before are replaced and the file is recorded in the manifest; with a
+     * checkpoint, the file is recorded as completed once all of its
+     * documents have been added.
+     *
+     * @param ltrSettings The global settings.
+     * @param writer The index to write to.
+     * @param file The file to index.
+     * @param manifest The index's manifest, or null.
+     * @param checkpoint The build's checkpoint, or null.
+     * @return The number of documents indexed.
+     */
+    static int indexFile(LTRSettings ltrSettings, IndexWriter writer,
+        File file, IndexManifest manifest, IndexCheckpoint checkpoint)
+    throws IOException {
+        DocumentSink sink;
+        int docs;
+
+        if (manifest != null) {
+            sink = new DocumentSink(writer, manifest.key(file));
+            sink.deleteSource();
+        } else if (checkpoint != null) {
+            sink = checkpoint.sink(file);
+        } else {
+            return FileParser.processFile(ltrSettings, writer, file);
+        }
+
+        docs = FileParser.processFile(ltrSettings, sink, file);
+        if (manifest != null)
+            manifest.completed(file);
+        if (checkpoint != null)
+            checkpoint.completed(file);
+        return docs;
+    }
+
+    /**
+     * Lists the files under the given path (following links), or the path
+     * itself if it is a regular file.
+     *
+     * @param path The corpus file or directory.
+     * @return All of the files to index.
+     */
+    static List<File> collectFiles(Path path) throws IOException {
+        final List<File> files = new ArrayList<File>();
+        if (Files.isDirectory(path)) {
+            Files.walkFileTree(path, visitor_opts, Integer.MAX_VALUE,
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file,
+                        BasicFileAttributes attrs) {
+                        files.add(file.toFile());
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+        } else {
+            files.add(path.toFile());
+        }
+        return files;
+    }
 }
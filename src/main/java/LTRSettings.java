@@ -1,6 +1,7 @@
 import com.google.gson.Gson;
 import org.hjson.JsonValue; 
 import java.util.ArrayList;
+import java.util.Map;
 import java.io.FileReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -25,7 +26,44 @@ public class LTRSettings {
     public static final String  DEFAULT_SIMILARITY       = null;
     public static final String  DEFAULT_SEARCH_FIELD     = "contents";
     public static final String  DEFAULT_PARSER           = "auto";
+    public static final String  DEFAULT_TREC_PARSER      = "scanner";
+    public static final String  DEFAULT_HTML_EXTRACTOR   = "jsoup";
+    public static final boolean DEFAULT_VISIBLE_TEXT_ONLY= false;
     public static final double  DEFAULT_MEMORY           = 4096.0; 
+    public static final int     DEFAULT_THREADS          = 1;
+    public static final int     DEFAULT_DECOMPRESS_THREADS = 0;
+    public static final boolean DEFAULT_MEMORY_MAP_FILES = true;
+    public static final boolean DEFAULT_INCREMENTAL      = false;
+    public static final int     DEFAULT_COMMIT_EVERY_FILES   = 0;
+    public static final double  DEFAULT_COMMIT_EVERY_MINUTES = 0.0;
+    public static final boolean DEFAULT_RESUME           = false;
+    public static final int     DEFAULT_SHARDS           = 1;
+    public static final boolean DEFAULT_KEEP_SHARDS      = false;
+    public static final double  DEFAULT_PROGRESS_SECONDS = 30.0;
+    public static final String  DEFAULT_METRICS_FILE     = null;
+    public static final int     DEFAULT_SEGMENT_THREADS  = 0;
+    public static final boolean DEFAULT_REPORT_LATENCY   = false;
+    public static final String  DEFAULT_MODELS_FILE      = null;
+    public static final Map<String, FormulaSimilarity.Definition>
+                                DEFAULT_FORMULAS         = null;
+    public static final String  DEFAULT_RUN_DIRECTORY    = ".";
+    public static final String  DEFAULT_SWEEP_K1         = null;
+    public static final String  DEFAULT_SWEEP_B          = null;
+    public static final String  DEFAULT_RUN_FILE         = null;
+    public static final boolean DEFAULT_GZIP_RUN         = false;
+    public static final boolean DEFAULT_INDEX_OFFSETS    = false;
+    public static final boolean DEFAULT_DOC_LENGTHS      = false;
+    public static final String  DEFAULT_SNIPPET_ENGINE   = "auto";
+    public static final int     DEFAULT_SNIPPET_THREADS  = 1;
+    public static final String  DEFAULT_RESULT_CACHE     = null;
+    public static final double  DEFAULT_RESULT_CACHE_MB  = 1024.0;
+    public static final String  DEFAULT_ENGINE           = "lucene";
+    public static final int     DEFAULT_POSTINGS_BUDGET  = 0;
+    public static final int     DEFAULT_SLOW_TOPICS      = 10;
+    public static final String  DEFAULT_LATENCY_FILE     = null;
+    public static final int     DEFAULT_PORT             = 8765;
+    public static final String  DEFAULT_WATCH_DIRECTORY  = null;
+    public static final double  DEFAULT_REFRESH_SECONDS  = 1.0;
 
     public ArrayList<String> warcFieldsToIndex;
     public ArrayList<String> trecFieldsToIndex;
@@ -42,7 +80,44 @@ public class LTRSettings {
     public String   queryFile;
     public String   searchField; 
     public String   parser;
+    public String   trecParser;
+    public String   htmlExtractor;
+    public boolean  indexVisibleTextOnly;
     public double   memory;
+    public int      threads;
+    public int      decompressThreads;
+    public boolean  memoryMapFiles;
+    public boolean  incremental;
+    public int      commitEveryFiles;
+    public double   commitEveryMinutes;
+    public boolean  resume;
+    public int      shards;
+    public boolean  keepShards;
+    public double   progressSeconds;
+    public String   metricsFile;
+    public int      segmentThreads;
+    public boolean  reportLatency;
+    public String   modelsFile;
+    // Settings files only: there is no command line option.
+    public Map<String, FormulaSimilarity.Definition> formulas;
+    public String   runDirectory;
+    public String   sweepK1;
+    public String   sweepB;
+    public String   runFile;
+    public boolean  gzipRun;
+    public boolean  indexOffsets;
+    public boolean  docLengths;
+    public String   snippetEngine;
+    public int      snippetThreads;
+    public String   resultCache;
+    public double   resultCacheMB;
+    public String   engine;
+    public int      postingsBudget;
+    public int      slowTopics;
+    public String   latencyFile;
+    public int      port;
+    public String   watchDirectory;
+    public double   refreshSeconds;
 
     /**
      * Creates an LTRSettings file from an HJSON file.
@@ -77,7 +152,43 @@ public class LTRSettings {
         searchField         = DEFAULT_SEARCH_FIELD;
         maxSnippetFragments = DEFAULT_SNIPPET_FRAGS;
         parser              = DEFAULT_PARSER;
+        trecParser          = DEFAULT_TREC_PARSER;
+        htmlExtractor       = DEFAULT_HTML_EXTRACTOR;
+        indexVisibleTextOnly= DEFAULT_VISIBLE_TEXT_ONLY;
         memory              = DEFAULT_MEMORY;
+        threads             = DEFAULT_THREADS;
+        decompressThreads   = DEFAULT_DECOMPRESS_THREADS;
+        memoryMapFiles      = DEFAULT_MEMORY_MAP_FILES;
+        incremental         = DEFAULT_INCREMENTAL;
+        commitEveryFiles    = DEFAULT_COMMIT_EVERY_FILES;
+        commitEveryMinutes  = DEFAULT_COMMIT_EVERY_MINUTES;
+        resume              = DEFAULT_RESUME;
+        shards              = DEFAULT_SHARDS;
+        keepShards          = DEFAULT_KEEP_SHARDS;
+        progressSeconds     = DEFAULT_PROGRESS_SECONDS;
+        metricsFile         = DEFAULT_METRICS_FILE;
+        segmentThreads      = DEFAULT_SEGMENT_THREADS;
+        reportLatency       = DEFAULT_REPORT_LATENCY;
+        modelsFile          = DEFAULT_MODELS_FILE;
+        formulas            = DEFAULT_FORMULAS;
+        runDirectory        = DEFAULT_RUN_DIRECTORY;
+        sweepK1             = DEFAULT_SWEEP_K1;
+        sweepB              = DEFAULT_SWEEP_B;
+        runFile             = DEFAULT_RUN_FILE;
+        gzipRun             = DEFAULT_GZIP_RUN;
+        indexOffsets        = DEFAULT_INDEX_OFFSETS;
+        docLengths          = DEFAULT_DOC_LENGTHS;
+        snippetEngine       = DEFAULT_SNIPPET_ENGINE;
+        snippetThreads      = DEFAULT_SNIPPET_THREADS;
+        resultCache         = DEFAULT_RESULT_CACHE;
+        resultCacheMB       = DEFAULT_RESULT_CACHE_MB;
+        engine              = DEFAULT_ENGINE;
+        postingsBudget      = DEFAULT_POSTINGS_BUDGET;
+        slowTopics          = DEFAULT_SLOW_TOPICS;
+        latencyFile         = DEFAULT_LATENCY_FILE;
+        port                = DEFAULT_PORT;
+        watchDirectory      = DEFAULT_WATCH_DIRECTORY;
+        refreshSeconds      = DEFAULT_REFRESH_SECONDS;
     }
 
     /**
@@ -107,6 +218,12 @@ public class LTRSettings {
                 returnedResultCount = Integer.parseInt(args[i+1]);
             else if ("-parser".equals(args[i])) 
                 parser = args[i+1];
+            else if ("-trecParser".equals(args[i])) 
+                trecParser = args[i+1];
+            else if ("-htmlExtractor".equals(args[i])) 
+                htmlExtractor = args[i+1];
+            else if ("-indexVisibleTextOnly".equals(args[i])) 
+                indexVisibleTextOnly = "true".equals(args[i+1]);
             else if ("-includeSnippets".equals(args[i])) 
                 includeSnippets = "true".equals(args[i+1]);
             else if ("-storeFields".equals(args[i])) 
@@ -119,6 +236,70 @@ public class LTRSettings {
                 trecFieldsToIndex = csvToArrayList(args[i+1]);
             else if ("-m".equals(args[i]))
                 memory = Double.parseDouble(args[i+1]);
+            else if ("-threads".equals(args[i]))
+                threads = Integer.parseInt(args[i+1]);
+            else if ("-decompressThreads".equals(args[i]))
+                decompressThreads = Integer.parseInt(args[i+1]);
+            else if ("-memoryMapFiles".equals(args[i]))
+                memoryMapFiles = "true".equals(args[i+1]);
+            else if ("-incremental".equals(args[i]))
+                incremental = "true".equals(args[i+1]);
+            else if ("-commitEveryFiles".equals(args[i]))
+                commitEveryFiles = Integer.parseInt(args[i+1]);
+            else if ("-commitEveryMinutes".equals(args[i]))
+                commitEveryMinutes = Double.parseDouble(args[i+1]);
+            else if ("-resume".equals(args[i]))
+                resume = "true".equals(args[i+1]);
+            else if ("-shards".equals(args[i]))
+                shards = Integer.parseInt(args[i+1]);
+            else if ("-keepShards".equals(args[i]))
+                keepShards = "true".equals(args[i+1]);
+            else if ("-progressSeconds".equals(args[i]))
+                progressSeconds = Double.parseDouble(args[i+1]);
+            else if ("-metricsFile".equals(args[i]))
+                metricsFile = args[i+1];
+            else if ("-segmentThreads".equals(args[i]))
+                segmentThreads = Integer.parseInt(args[i+1]);
+            else if ("-reportLatency".equals(args[i]))
+                reportLatency = "true".equals(args[i+1]);
+            else if ("-modelsFile".equals(args[i]))
+                modelsFile = args[i+1];
+            else if ("-runDirectory".equals(args[i]))
+                runDirectory = args[i+1];
+            else if ("-sweepK1".equals(args[i]))
+                sweepK1 = args[i+1];
+            else if ("-sweepB".equals(args[i]))
+                sweepB = args[i+1];
+            else if ("-run".equals(args[i]))
+                runFile = args[i+1];
+            else if ("-gzipRun".equals(args[i]))
+                gzipRun = "true".equals(args[i+1]);
+            else if ("-indexOffsets".equals(args[i]))
+                indexOffsets = "true".equals(args[i+1]);
+            else if ("-docLengths".equals(args[i]))
+                docLengths = "true".equals(args[i+1]);
+            else if ("-snippetEngine".equals(args[i]))
+                snippetEngine = args[i+1];
+            else if ("-snippetThreads".equals(args[i]))
+                snippetThreads = Integer.parseInt(args[i+1]);
+            else if ("-resultCache".equals(args[i]))
+                resultCache = args[i+1];
+            else if ("-resultCacheMB".equals(args[i]))
+                resultCacheMB = Double.parseDouble(args[i+1]);
+            else if ("-engine".equals(args[i]))
+                engine = args[i+1];
+            else if ("-postingsBudget".equals(args[i]))
+                postingsBudget = Integer.parseInt(args[i+1]);
+            else if ("-slowTopics".equals(args[i]))
+                slowTopics = Integer.parseInt(args[i+1]);
+            else if ("-latencyFile".equals(args[i]))
+                latencyFile = args[i+1];
+            else if ("-port".equals(args[i]))
+                port = Integer.parseInt(args[i+1]);
+            else if ("-watchDirectory".equals(args[i]))
+                watchDirectory = args[i+1];
+            else if ("-refreshSeconds".equals(args[i]))
+                refreshSeconds = Double.parseDouble(args[i+1]);
             else
                 i--; 
         } 
@@ -0,0 +1,106 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records the latency of each query in a batch so that percentiles can be
+ * reported at the end. Every latency is kept (a batch of 50,000 topics takes
+ * 400KB), so the percentiles are exact rather than bucketed. Latencies may be
+ * recorded from several threads at once.
+ */
+public class LatencyRecorder {
+    private long[] nanos = new long[1024];
+    private int count = 0;
+
+    /**
+     * Records one latency.
+     *
+     * @param time The latency, in nanoseconds.
+     */
+    public synchronized void record(long time) {
+        if(count == nanos.length)
+            nanos = Arrays.copyOf(nanos, count * 2);
+        nanos[count++] = time;
+    }
+
+    /**
+     * @return The number of latencies recorded.
+     */
+    public synchronized int count() {
+        return count;
+    }
+
+    /**
+     * @return The latencies recorded so far, in ascending order.
+     */
+    private synchronized long[] sorted() {
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @param sorted Latencies in ascending order.
+     * @param p The percentile, from 0 to 100.
+     * @return The nearest-rank percentile of the latencies, in nanoseconds;
+     *         0 if there are none.
+     */
+    private static long percentile(long[] sorted, double p) {
+        if(sorted.length == 0)
+            return 0;
+        int rank = (int) Math.ceil(p / 100 * sorted.length);
+        return sorted[Math.min(Math.max(rank, 1), sorted.length) - 1];
+    }
+
+    /**
+     * @param p The percentile, from 0 to 100.
+     * @return The nearest-rank percentile of the latencies recorded, in
+     *         milliseconds.
+     */
+    public double percentileMillis(double p) {
+        return percentile(sorted(), p) / 1e6;
+    }
+
+    /**
+     * @return The count, mean, p50, p90, p99 and maximum of the latencies
+     *         recorded (in milliseconds), e.g., to write out as JSON.
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        long[] sorted = sorted();
+        long total = 0;
+
+        for(long time : sorted)
+            total += time;
+        stats.put("count", sorted.length);
+        stats.put("meanMs", round(sorted.length == 0 ? 0.0 :
+            total / 1e6 / sorted.length));
+        stats.put("p50Ms", round(percentile(sorted, 50) / 1e6));
+        stats.put("p90Ms", round(percentile(sorted, 90) / 1e6));
+        stats.put("p99Ms", round(percentile(sorted, 99) / 1e6));
+        stats.put("maxMs", round(percentile(sorted, 100) / 1e6));
+        return stats;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    /**
+     * @param label What was timed (e.g., "search").
+     * @return A line giving the count, mean, p50, p90, p99 and maximum of the
+     *         latencies recorded, in milliseconds.
+     */
+    public String summary(String label) {
+        long[] sorted = sorted();
+        long total = 0;
+
+        for(long time : sorted)
+            total += time;
+        return String.format("%s latency (ms): n=%d mean=%.2f p50=%.2f "+
+            "p90=%.2f p99=%.2f max=%.2f", label, sorted.length,
+            sorted.length == 0 ? 0.0 : total / 1e6 / sorted.length,
+            percentile(sorted, 50) / 1e6, percentile(sorted, 90) / 1e6,
+            percentile(sorted, 99) / 1e6, percentile(sorted, 100) / 1e6);
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the &lt;DOC&gt;s of an uncompressed TREC file through a memory
+ * mapping, without decoding the file line by line. Document boundaries are
+ * found by scanning the mapped bytes for lines that are exactly "&lt;DOC&gt;"
+ * and "&lt;/DOC&gt;", and only the bytes of each document are decoded, into
+ * a char buffer that is reused from one document to the next.
+ *
+ * The text of each document is the same as FileParser.parseTRECFile builds
+ * from a BufferedReader: the lines from &lt;DOC&gt; through &lt;/DOC&gt;,
+ * decoded in the platform's default charset, each line ending in a '\n'
+ * (whatever the file uses) except the last. This only works for charsets in
+ * which line breaks and the DOC tags are encoded as in ASCII; see
+ * isSupported().
+ *
+ * Files larger than the mapping window (256 MiB, grown if a single document
+ * needs it) are mapped a window at a time.
+ */
+public class MappedTrecReader implements Closeable {
+    private static final long   DEFAULT_WINDOW = 1L << 28;
+    private static final byte[] DOC_START = ascii("<DOC>");
+    private static final byte[] DOC_END   = ascii("</DOC>");
+
+    private final FileChannel channel;
+    private final long size;
+    private final CharsetDecoder decoder;
+
+    // The mapped window of the file: [windowStart, windowEnd).
+    private long windowSize = DEFAULT_WINDOW;
+    private MappedByteBuffer window;
+    private long windowStart = 0;
+    private long windowEnd = 0;
+
+    // The start of the next line, and of the current document (or -1).
+    private long position = 0;
+    private long docStart = -1;
+
+    private char[] buffer = new char[1 << 16];
+
+    /**
+     * @return True if the platform's default charset encodes line breaks and
+     *         the DOC tags as ASCII does, so that they can be found in the
+     *         raw bytes of a file.
+     */
+    public static boolean isSupported() {
+        Charset charset = Charset.defaultCharset();
+        if(!charset.canEncode())
+            return false;
+        if(!charset.equals(StandardCharsets.UTF_8) &&
+           charset.newEncoder().maxBytesPerChar() != 1.0f)
+            return false;
+        return Arrays.equals("<DOC>\r\n</DOC>".getBytes(charset),
+            ascii("<DOC>\r\n</DOC>"));
+    }
+
+    /**
+     * @param file The (uncompressed) TREC file to read.
+     */
+    public MappedTrecReader(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        size = channel.size();
+        decoder = Charset.defaultCharset().newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Finds and decodes the next document. A document left open at the end
+     * of the file is dropped, as parseTRECFile does.
+     *
+     * @return The length of the document's text, which is held at the start
+     *         of buffer(); or -1 if there are no more documents.
+     */
+    public int next() throws IOException {
+        long lineEnd;
+        int length;
+
+        while(position < size){
+            lineEnd = lineEnd(position);
+            if(docStart < 0){
+                if(lineEquals(position, lineEnd, DOC_START))
+                    docStart = position;
+            } else if(lineEquals(position, lineEnd, DOC_END)) {
+                length = decode(docStart, lineEnd);
+                position = nextLine(lineEnd);
+                docStart = -1;
+                return length;
+            }
+            position = nextLine(lineEnd);
+        }
+        return -1;
+    }
+
+    /**
+     * @return The number of bytes of the file read so far.
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * @return The buffer holding the text of the last document read. It may
+     *         be replaced by a larger one on the next call to next().
+     */
+    public char[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * Closes the file. The mapped window is released once it is garbage
+     * collected.
+     */
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    // ---------------------------------------------------------------------
+    // Scanning.
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Makes sure the window holds [keep, end), where keep is the start of
+     * the current document (or line), mapping a new window if needed.
+     */
+    private void ensureMapped(long end) throws IOException {
+        long keep = docStart >= 0 ? docStart : position;
+
+        if(keep >= windowStart && end <= windowEnd)
+            return;
+        if(end - keep > windowSize / 2)
+            windowSize = Math.max(windowSize * 2, end - keep);
+        if(windowSize > Integer.MAX_VALUE)
+            throw new IOException("TREC document too large to map ("+
+                (end - keep) +" bytes)");
+
+        windowStart = keep;
+        windowEnd = Math.min(size, keep + windowSize);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+            windowEnd - windowStart);
+    }
+
+    /**
+     * @return The offset of the line break ending the line that starts at
+     *         from, or the end of the file.
+     */
+    private long lineEnd(long from) throws IOException {
+        int i, limit;
+        byte b;
+
+        ensureMapped(from);
+        while(true){
+            limit = (int) (windowEnd - windowStart);
+            for(i = (int) (from - windowStart); i < limit; i++){
+                b = window.get(i);
+                if(b == '\n' || b == '\r')
+                    return windowStart + i;
+            }
+            if(windowEnd == size)
+                return size;
+            from = windowEnd;
+            ensureMapped(windowEnd + 1);
+        }
+    }
+
+    /**
+     * @return The start of the line after the line break at lineEnd, which
+     *         is "\n", "\r" or "\r\n" (as for BufferedReader.readLine()).
+     */
+    private long nextLine(long lineEnd) throws IOException {
+        if(lineEnd >= size)
+            return size;
+        if(window.get((int) (lineEnd - windowStart)) == '\r' &&
+           lineEnd + 1 < size){
+            ensureMapped(lineEnd + 2);
+            if(window.get((int) (lineEnd + 1 - windowStart)) == '\n')
+                return lineEnd + 2;
+        }
+        return lineEnd + 1;
+    }
+
+    private boolean lineEquals(long start, long end, byte[] line) {
+        if(end - start != line.length)
+            return false;
+        for(int i = 0; i < line.length; i++)
+            if(window.get((int) (start - windowStart) + i) != line[i])
+                return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------
+    // Decoding.
+
+    /**
+     * Decodes the bytes [start, end) of the file into buffer, turning each
+     * line break into a '\n'.
+     *
+     * @return The number of characters decoded.
+     */
+    private int decode(long start, long end) {
+        ByteBuffer bytes = window.duplicate();
+        CharBuffer chars = CharBuffer.wrap(buffer);
+        int length, i, j;
+
+        bytes.limit((int) (end - windowStart));
+        bytes.position((int) (start - windowStart));
+        decoder.reset();
+        while(decoder.decode(bytes, chars, true).isOverflow())
+            chars = grow(chars);
+        while(decoder.flush(chars).isOverflow())
+            chars = grow(chars);
+        length = chars.position();
+
+        // "\r\n" and "\r" to "\n".
+        for(i = 0; i < length && buffer[i] != '\r'; i++)
+            ;
+        for(j = i; i < length; i++){
+            if(buffer[i] == '\r'){
+                buffer[j++] = '\n';
+                if(i + 1 < length && buffer[i+1] == '\n')
+                    i++;
+            } else {
+                buffer[j++] = buffer[i];
+            }
+        }
+        return j;
+    }
+
+    private CharBuffer grow(CharBuffer chars) {
+        int position = chars.position();
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        chars = CharBuffer.wrap(buffer);
+        chars.position(position);
+        return chars;
+    }
+}
@@ -0,0 +1,372 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Decompresses a bzip2 stream by decoding its blocks on several threads.
+ *
+ * A bzip2 stream is a 4 byte header ("BZh" and the block size) followed by
+ * blocks that each start with the 48 bit magic number 0x314159265359 and
+ * end with the 48 bit end-of-stream marker 0x177245385090 and the stream's
+ * combined CRC. Blocks are not byte aligned, but each is self-contained, so
+ * the compressed stream is scanned for block magic numbers at every bit and
+ * each block is copied into a stream of its own: the original header, the
+ * block, and an end-of-stream marker whose combined CRC is the block's CRC
+ * (the combined CRC of a single block stream). These are decoded with
+ * BZip2CompressorInputStream on a pool of threads, and their output returned
+ * in order.
+ *
+ * Like BZip2CompressorInputStream (as FileParser uses it), only the first
+ * stream of a file of concatenated streams is read. Should a block magic
+ * number turn up inside compressed data by chance, the two halves of the
+ * block fail to decode and are decoded again as one block; if that fails
+ * too, the stream is corrupt and read() throws an IOException.
+ */
+public class ParallelBZip2InputStream extends InputStream {
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long EOS_MAGIC   = 0x177245385090L;
+
+    // For each 16 bit value, bit s (s = 0..7) is set if a block magic number
+    // starting s bits into a byte has this value in the two bytes after that
+    // one, and bit s + 8 if an end-of-stream marker does.
+    private static final char[] MAGIC_SHIFTS = new char[1 << 16];
+    static {
+        for(int shift = 0; shift < 8; shift++){
+            MAGIC_SHIFTS[(int) ((BLOCK_MAGIC >>> (24 + shift)) & 0xffff)] |=
+                1 << shift;
+            MAGIC_SHIFTS[(int) ((EOS_MAGIC >>> (24 + shift)) & 0xffff)] |=
+                1 << (shift + 8);
+        }
+    }
+
+    /**
+     * One block: its bits (copied out of the compressed stream) and the
+     * result of decoding it.
+     */
+    private static class Block {
+        final byte[] bits;
+        final long   length;
+        Future<byte[]> decoded;
+        boolean joined = false;
+
+        Block(byte[] bits, long length) {
+            this.bits = bits;
+            this.length = length;
+        }
+    }
+
+    private final InputStream in;
+    private final ExecutorService pool;
+    private final int maxPending;
+    private final ArrayDeque<Block> pending = new ArrayDeque<Block>();
+    private final byte level;
+
+    // The compressed bytes from the one holding the start of the current
+    // block; bit positions are relative to data[0].
+    private byte[] data = new byte[1 << 20];
+    private int    dataLength = 0;
+    private long   blockStart = -1;
+    private long   scanned = 0;
+    private boolean endOfStream = false;
+
+    private byte[] out;
+    private int    position;
+    private boolean closed = false;
+
+    /**
+     * @param in The bzip2 stream; it is closed along with this one.
+     * @param threads The number of threads to decode blocks on.
+     */
+    public ParallelBZip2InputStream(InputStream in, int threads)
+    throws IOException {
+        this.in = in;
+        this.maxPending = 2 * threads;
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bzip2-block");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        byte[] header = new byte[4];
+        if(IOUtils.read(in, header) != 4 || header[0] != 'B' ||
+           header[1] != 'Z' || header[2] != 'h' || header[3] < '1' ||
+           header[3] > '9'){
+            close();
+            throw new IOException("Stream is not in the BZip2 format");
+        }
+        level = header[3];
+    }
+
+    // ---------------------------------------------------------------------
+    // Splitting.
+
+    /**
+     * Scans forward to the end of the current block.
+     *
+     * @return The next block, or null at the end of the stream.
+     */
+    private Block nextBlock() throws IOException {
+        long magicStart;
+        int n;
+
+        while(!endOfStream){
+            while((magicStart = findMagic()) >= 0){
+                long magic = readBits(data, magicStart, 48);
+                Block block = null;
+                if(blockStart >= 0)
+                    block = new Block(copyBits(data, blockStart,
+                        magicStart - blockStart), magicStart - blockStart);
+                if(magic == EOS_MAGIC){
+                    endOfStream = true;
+                } else {
+                    // Drop the bytes before the new block.
+                    int drop = (int) (magicStart >>> 3);
+                    System.arraycopy(data, drop, data, 0, dataLength - drop);
+                    dataLength -= drop;
+                    scanned -= 8L * drop;
+                    blockStart = magicStart - 8L * drop;
+                }
+                if(block != null)
+                    return block;
+                if(endOfStream)
+                    return null;
+            }
+
+            if(dataLength == data.length)
+                data = Arrays.copyOf(data, data.length * 2);
+            n = in.read(data, dataLength, data.length - dataLength);
+            if(n == -1)
+                throw new IOException("Unexpected end of bzip2 stream");
+            dataLength += n;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the next block or end-of-stream magic number that starts at or
+     * after bit scanned. Rather than shifting through every bit, this looks
+     * up each pair of bytes in MAGIC_SHIFTS, which gives the bit offsets at
+     * which a magic number starting in the byte before would cover them, and
+     * checks only those offsets.
+     *
+     * @return The bit position of the magic number, or -1 if there is none
+     *         in the data read so far.
+     */
+    private long findMagic() {
+        long bits = 8L * dataLength;
+        int j;
+
+        for(j = (int) (scanned >>> 3); 8L * j + 7 + 48 <= bits; j++){
+            int shifts = MAGIC_SHIFTS[
+                ((data[j+1] & 0xff) << 8) | (data[j+2] & 0xff)];
+            if(shifts == 0)
+                continue;
+            for(int shift = 0; shift < 8; shift++){
+                long start = 8L * j + shift;
+                if((shifts & (0x101 << shift)) == 0 || start < scanned)
+                    continue;
+                long magic = readBits(data, start, 48);
+                if(magic == BLOCK_MAGIC || magic == EOS_MAGIC){
+                    scanned = start + 48;
+                    return start;
+                }
+            }
+        }
+        scanned = Math.max(scanned, 8L * j);
+        return -1;
+    }
+
+    /**
+     * Queues blocks for decoding until maxPending are in flight.
+     */
+    private void submitBlocks() throws IOException {
+        Block block;
+        while(pending.size() < maxPending && (block = nextBlock()) != null){
+            block.decoded = pool.submit(decoder(block.bits, block.length));
+            pending.add(block);
+        }
+    }
+
+    /**
+     * @return A task decoding the given block bits as a single block stream.
+     */
+    private Callable<byte[]> decoder(byte[] bits, long length) {
+        final byte[] stream = singleBlockStream(level, bits, length);
+        return new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return IOUtils.toByteArray(new BZip2CompressorInputStream(
+                    new ByteArrayInputStream(stream)));
+            }
+        };
+    }
+
+    /**
+     * Waits for the next block to be decoded. If it fails, it is joined with
+     * the next block and decoded again, in case the two are really one block
+     * that happens to contain the block magic number.
+     */
+    private byte[] nextDecoded() throws IOException {
+        Block block = pending.poll();
+        try {
+            return block.decoded.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if(!block.joined)
+                submitBlocks();
+            Block next = block.joined ? null : pending.poll();
+            if(next == null)
+                throw new IOException("Corrupt bzip2 block", e.getCause());
+            next.decoded.cancel(true);
+
+            long length = block.length + next.length;
+            byte[] joined = Arrays.copyOf(block.bits, (int) ((length+7)/8));
+            for(long i = 0; i < next.length; i++)
+                if(bit(next.bits, i) == 1)
+                    joined[(int) ((block.length + i) >>> 3)] |=
+                        0x80 >>> ((block.length + i) & 7);
+            Block merged = new Block(joined, length);
+            merged.joined = true;
+            merged.decoded = pool.submit(decoder(joined, length));
+            pending.addFirst(merged);
+            return nextDecoded();
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Bits.
+
+    private static int bit(byte[] bytes, long i) {
+        return (bytes[(int) (i >>> 3)] >>> (7 - (int) (i & 7))) & 1;
+    }
+
+    /**
+     * @return Bits [start, start + n) of bytes, n &lt;= 56; bits past the
+     *         end of the array read as zero.
+     */
+    private static long readBits(byte[] bytes, long start, int n) {
+        int from = (int) (start >>> 3), shift = (int) (start & 7);
+        long value = 0;
+        for(int i = 0; i < 8; i++)
+            value = (value << 8) |
+                (from + i < bytes.length ? bytes[from + i] & 0xff : 0);
+        return (value << shift) >>> (64 - n);
+    }
+
+    /**
+     * @return A copy of bits [start, start + length) of src, starting at the
+     *         first bit of the result; the bits after them are zero.
+     */
+    private static byte[] copyBits(byte[] src, long start, long length) {
+        byte[] dest = new byte[(int) ((length + 7) / 8)];
+        int from = (int) (start >>> 3), shift = (int) (start & 7);
+
+        for(int i = 0; i < dest.length; i++){
+            int b = (src[from + i] << shift) & 0xff;
+            if(shift > 0 && from + i + 1 < src.length)
+                b |= (src[from + i + 1] & 0xff) >>> (8 - shift);
+            dest[i] = (byte) b;
+        }
+        if((length & 7) != 0)
+            dest[dest.length - 1] &= 0xff << (8 - (int) (length & 7));
+        return dest;
+    }
+
+    private static void writeBits(byte[] dest, long at, long value, int n) {
+        for(int i = n - 1; i >= 0; i--, at++)
+            if(((value >>> i) & 1) == 1)
+                dest[(int) (at >>> 3)] |= 0x80 >>> (int) (at & 7);
+    }
+
+    /**
+     * Builds a complete bzip2 stream holding one block: the header, the
+     * block, and an end-of-stream marker carrying the block's CRC (the 32
+     * bits after its magic number).
+     */
+    static byte[] singleBlockStream(byte level, byte[] bits, long length) {
+        long crc = readBits(bits, 48, 32);
+
+        byte[] stream = new byte[(int) (4 + (length + 80 + 7) / 8)];
+        stream[0] = 'B';
+        stream[1] = 'Z';
+        stream[2] = 'h';
+        stream[3] = level;
+        System.arraycopy(bits, 0, stream, 4, bits.length);
+        writeBits(stream, 32 + length, EOS_MAGIC, 48);
+        writeBits(stream, 32 + length + 48, crc, 32);
+        return stream;
+    }
+
+    // ---------------------------------------------------------------------
+    // InputStream.
+
+    /**
+     * Makes out a decoded block with unread bytes, if there is one left.
+     *
+     * @return False at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        if(closed)
+            throw new IOException("Stream closed");
+        while(out == null || position == out.length){
+            submitBlocks();
+            if(pending.isEmpty())
+                return false;
+            out = nextDecoded();
+            position = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(!fill())
+            return -1;
+        return out[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n;
+        if(len == 0)
+            return 0;
+        if(!fill())
+            return -1;
+        n = Math.min(len, out.length - position);
+        System.arraycopy(out, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return out == null || closed ? 0 : out.length - position;
+    }
+
+    /**
+     * Stops the decoding threads and closes the compressed stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed)
+            return;
+        closed = true;
+        pool.shutdownNow();
+        pending.clear();
+        in.close();
+    }
+}
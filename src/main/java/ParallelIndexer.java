@@ -0,0 +1,170 @@
+import org.apache.lucene.index.IndexWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Indexes a list of corpus files on a pool of worker threads that share a
+ * single IndexWriter (which is thread-safe). Files are handed out largest
+ * first, so a handful of big files picked up late in the run do not leave
+ * one worker busy while the others sit idle.
+ */
+public class ParallelIndexer {
+    private final LTRSettings settings;
+    private final IndexWriter writer;
+    private final int threads;
+    private final IndexManifest manifest;
+    private final IndexCheckpoint checkpoint;
+
+    /**
+     * Per-worker throughput counters.
+     */
+    public static class WorkerStats {
+        public final int worker;
+        public int  files;
+        public long docs;
+        public long bytes;
+        public long nanos;
+
+        public WorkerStats(int worker) {
+            this.worker = worker;
+        }
+
+        public String toString() {
+            return toString("worker");
+        }
+
+        /**
+         * @param label What the worker is, e.g., "worker" or "shard".
+         * @return A throughput line for the worker.
+         */
+        public String toString(String label) {
+            double seconds = nanos / 1e9;
+            double rate = seconds > 0 ? 1.0 / seconds : 0.0;
+            return String.format("%s %d: %d files, %d docs, %.1f MB in "+
+                "%.1f s (%.1f docs/s, %.2f MB/s)", label, worker, files, docs,
+                bytes / 1048576.0, seconds, docs * rate,
+                bytes / 1048576.0 * rate);
+        }
+    }
+
+    /**
+     * @param settings The global settings, passed on to FileParser.
+     * @param writer The index to add documents to.
+     * @param threads The number of worker threads to use.
+     */
+    public ParallelIndexer(LTRSettings settings, IndexWriter writer,
+        int threads) {
+        this(settings, writer, threads, null, null);
+    }
+
+    /**
+     * @param settings The global settings, passed on to FileParser.
+     * @param writer The index to add documents to.
+     * @param threads The number of worker threads to use.
+     * @param manifest The manifest to record indexed files in (replacing
+     *                 their old documents), or null.
+     * @param checkpoint The checkpoint to record completed files in, or
+     *                   null.
+     */
+    public ParallelIndexer(LTRSettings settings, IndexWriter writer,
+        int threads, IndexManifest manifest, IndexCheckpoint checkpoint) {
+        this.settings = settings;
+        this.writer = writer;
+        this.threads = Math.max(1, threads);
+        this.manifest = manifest;
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Sorts files by size, largest first. Ties are broken by path so that the
+     * schedule is the same from one run to the next.
+     *
+     * @param files The files to sort (sorted in place).
+     */
+    public static void sortLargestFirst(List<File> files) {
+        // Each file is stat()ed once, not on every comparison.
+        final Map<File, Long> sizes = new HashMap<File, Long>();
+        for (File file : files)
+            sizes.put(file, file.length());
+        Collections.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                int c = Long.compare(sizes.get(b), sizes.get(a));
+                return c != 0 ? c : a.getPath().compareTo(b.getPath());
+            }
+        });
+    }
+
+    /**
+     * Indexes all of the given files and prints a throughput line for each
+     * worker once they are done. Files that cannot be read are skipped, the
+     * same as in the single-threaded walk.
+     *
+     * @param files The files to index.
+     * @return The stats of each worker.
+     */
+    public List<WorkerStats> index(List<File> files) throws IOException {
+        final List<File> queue = new ArrayList<File>(files);
+        final AtomicInteger next = new AtomicInteger(0);
+        List<Future<WorkerStats>> futures =
+            new ArrayList<Future<WorkerStats>>();
+        List<WorkerStats> stats = new ArrayList<WorkerStats>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        sortLargestFirst(queue);
+
+        for(int w = 0; w < threads; w++){
+            final WorkerStats workerStats = new WorkerStats(w);
+            futures.add(pool.submit(new Callable<WorkerStats>() {
+                public WorkerStats call() {
+                    int i;
+                    while((i = next.getAndIncrement()) < queue.size()){
+                        File file = queue.get(i);
+                        long start = System.nanoTime();
+                        try {
+                            workerStats.docs += IndexTREC.indexFile(
+                                settings, writer, file, manifest,
+                                checkpoint);
+                            workerStats.bytes += file.length();
+                            workerStats.files++;
+                        } catch (IOException ignore) {
+                            // don't index files that can't be read.
+                        }
+                        workerStats.nanos += System.nanoTime() - start;
+                    }
+                    return workerStats;
+                }
+            }));
+        }
+        pool.shutdown();
+
+        try {
+            for(Future<WorkerStats> future : futures)
+                stats.add(future.get());
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            throw new IOException("Indexing interrupted", e);
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+
+        for(WorkerStats workerStats : stats)
+            System.out.println(workerStats);
+        return stats;
+    }
+}
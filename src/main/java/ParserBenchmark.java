@@ -0,0 +1,523 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.jwat.common.HeaderLine;
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
+
+/**
+ * Runs the document parsers side by side over a corpus, without indexing.
+ * For TREC files, every document is parsed both with Jsoup and with
+ * TrecDocScanner; any document on which the two disagree is reported, and
+ * the throughput and allocation of each parser is printed. For WARC files,
+ * each response record is parsed with Jsoup and with HtmlTextExtractor, with
+ * and without indexVisibleTextOnly; the agreement between the two extractors,
+ * the throughput and allocation of each configuration, and the size of a
+ * (RAM) index built with each are printed. Uncompressed TREC files are also
+ * split into documents both with a BufferedReader (as a stream) and with
+ * MappedTrecReader, and the cost of each is printed. With -decompressThreads N,
+ * compressed files are also read through once inline, once with a read-ahead
+ * thread and once with N decompression threads, and the throughput of each
+ * is printed.
+ *
+ * Usage: java ParserBenchmark [-settings SETTINGS_FILE] -docs DOCS_PATH
+ *            [-maxDocs N] [-rounds N] [-trecFieldsToIndex f1,f2,...]
+ *            [-decompressThreads N]
+ */
+public class ParserBenchmark {
+    private ParserBenchmark() {}
+
+    public static void main(String[] args) throws Exception {
+        LTRSettings settings = null;
+        int maxDocs = 100000, rounds = 3;
+
+        for(int i = 0; i < args.length; i++){
+            if("-settings".equals(args[i])){
+                try {
+                    settings = LTRSettings.generateFromFile(args[i+1]);
+                } catch (FileNotFoundException e) {
+                    System.err.println("LTR settings file not found ("+
+                        args[i+1] +").");
+                    System.exit(1);
+                }
+            } else if("-maxDocs".equals(args[i])) {
+                maxDocs = Integer.parseInt(args[i+1]);
+            } else if("-rounds".equals(args[i])) {
+                rounds = Integer.parseInt(args[i+1]);
+            }
+        }
+        if(settings == null)
+            settings = new LTRSettings();
+        settings.parseCommandLineArguments(args);
+
+        if(settings.docsPath == null){
+            System.err.println("Usage: java ParserBenchmark "+
+                "[-settings SETTINGS_FILE] -docs DOCS_PATH [-maxDocs N] "+
+                "[-rounds N]");
+            System.exit(1);
+        }
+
+        List<File> files =
+            IndexTREC.collectFiles(Paths.get(settings.docsPath));
+        benchmarkTREC(settings, files, maxDocs, rounds);
+        benchmarkMapping(settings, files, rounds);
+        benchmarkWARC(settings, files, maxDocs, rounds);
+        if(settings.decompressThreads > 0)
+            benchmarkDecompression(files, settings.decompressThreads, rounds);
+    }
+
+    /**
+     * Compares and times the Jsoup and scanner paths of parseTRECDocument.
+     */
+    static void benchmarkTREC(LTRSettings settings, List<File> files,
+        int maxDocs, int rounds) throws IOException {
+        List<String> docs = readTRECDocuments(settings, files, maxDocs);
+        TrecDocScanner scanner = new TrecDocScanner(settings.trecFieldsToIndex);
+        long chars = 0;
+        int mismatches = 0, fallbacks = 0;
+        char[] buffer = new char[1 << 16];
+
+        if(docs.isEmpty())
+            return;
+
+        // Parity: both paths must build the same fields.
+        for(String text : docs){
+            chars += text.length();
+            if(buffer.length < text.length())
+                buffer = new char[text.length()];
+            text.getChars(0, text.length(), buffer, 0);
+            if(!scanner.scan(buffer, 0, text.length()))
+                fallbacks++;
+            String expected = describe(FileParser.parseTRECDocument(
+                settings, text, Field.Store.NO));
+            String actual = describe(FileParser.parseTRECDocument(
+                settings, scanner, buffer, text.length(), Field.Store.NO));
+            if(!expected.equals(actual)){
+                if(mismatches < 5)
+                    System.out.println("MISMATCH\n  jsoup:   "+ expected +
+                        "\n  scanner: "+ actual);
+                mismatches++;
+            }
+        }
+        System.out.printf("%d documents, %.1f MB of text: %d mismatches, "+
+            "%d handed back to Jsoup by the scanner\n", docs.size(),
+            chars / 1048576.0, mismatches, fallbacks);
+
+        for(int round = 0; round < rounds; round++){
+            report("jsoup", docs.size(), chars, time(settings, docs, null));
+            report("scanner", docs.size(), chars,
+                time(settings, docs, scanner));
+        }
+    }
+
+    /**
+     * Compares and times the Jsoup and streaming paths of parseWARCRecord.
+     */
+    static void benchmarkWARC(LTRSettings settings, List<File> files,
+        int maxDocs, int rounds) throws IOException {
+        List<String> docnos = new ArrayList<String>();
+        List<byte[]> payloads = new ArrayList<byte[]>();
+        HtmlTextExtractor extractor =
+            new HtmlTextExtractor(settings.warcFieldsToIndex);
+        LTRSettings[] configs = new LTRSettings[4];
+        String[] names = {"jsoup", "jsoup-visible", "streaming",
+            "streaming-visible"};
+        long bytes = 0;
+        int fieldsAgree = 0, textAgrees = 0;
+
+        readWARCRecords(settings, files, maxDocs, docnos, payloads);
+        if(docnos.isEmpty())
+            return;
+        for(byte[] payload : payloads)
+            bytes += payload.length;
+
+        for(int i = 0; i < configs.length; i++){
+            configs[i] = settings.deepCopy();
+            configs[i].htmlExtractor = i < 2 ? "jsoup" : "streaming";
+            configs[i].indexVisibleTextOnly = i % 2 == 1;
+        }
+
+        // Agreement: the extractors are not meant to match exactly on messy
+        // markup, but should on most pages. Whitespace is ignored, since
+        // Jsoup keeps it in pre elements and HtmlTextExtractor does not.
+        for(int i = 0; i < payloads.size(); i++){
+            Document soup = FileParser.parseWARCRecord(configs[1], null,
+                docnos.get(i), new ByteArrayInputStream(payloads.get(i)),
+                Field.Store.NO);
+            Document streamed = FileParser.parseWARCRecord(configs[3],
+                extractor, docnos.get(i),
+                new ByteArrayInputStream(payloads.get(i)), Field.Store.NO);
+            if(words(soup.get("contents")).equals(
+                   words(streamed.get("contents"))))
+                textAgrees++;
+            soup.removeFields("contents");
+            streamed.removeFields("contents");
+            if(words(describe(soup)).equals(words(describe(streamed))))
+                fieldsAgree++;
+        }
+        System.out.printf("%d WARC records, %.1f MB of payload: same words in "+
+            "fields on %.1f%%, in visible text on %.1f%%\n",
+            docnos.size(), bytes / 1048576.0,
+            100.0 * fieldsAgree / docnos.size(),
+            100.0 * textAgrees / docnos.size());
+
+        for(int round = 0; round < rounds; round++)
+            for(int i = 0; i < configs.length; i++)
+                report(names[i], docnos.size(), bytes,
+                    timeWARC(configs[i], docnos, payloads));
+
+        for(int i = 0; i < configs.length; i++)
+            System.out.printf("%-18s index size %10.2f MB\n", names[i],
+                indexSize(configs[i], docnos, payloads) / 1048576.0);
+    }
+
+    /**
+     * Builds the document for every WARC record once.
+     *
+     * @return {elapsed nanoseconds, bytes allocated}
+     */
+    static long[] timeWARC(LTRSettings settings, List<String> docnos,
+        List<byte[]> payloads) throws IOException {
+        HtmlTextExtractor extractor = null;
+        long allocated, start, sink = 0;
+
+        if(settings.htmlExtractor.equals("streaming"))
+            extractor = new HtmlTextExtractor(settings.warcFieldsToIndex);
+        allocated = allocatedBytes();
+        start = System.nanoTime();
+        for(int i = 0; i < docnos.size(); i++)
+            sink += FileParser.parseWARCRecord(settings, extractor,
+                docnos.get(i), new ByteArrayInputStream(payloads.get(i)),
+                Field.Store.NO).getFields().size();
+
+        long[] result = new long[]{System.nanoTime() - start,
+            allocatedBytes() - allocated};
+        if(sink < 0)
+            System.out.println(sink);
+        return result;
+    }
+
+    /**
+     * @return The size in bytes of an index of the WARC records, built in
+     *         memory with the given settings.
+     */
+    static long indexSize(LTRSettings settings, List<String> docnos,
+        List<byte[]> payloads) throws IOException {
+        Directory dir = new RAMDirectory();
+        IndexWriterConfig iwc =
+            new IndexWriterConfig(new TrecAnalyzer(settings));
+        IndexWriter writer = new IndexWriter(dir, iwc);
+        HtmlTextExtractor extractor = null;
+        Field.Store storeField =
+            settings.storeFields ? Field.Store.YES : Field.Store.NO;
+        long size = 0;
+
+        if(settings.htmlExtractor.equals("streaming"))
+            extractor = new HtmlTextExtractor(settings.warcFieldsToIndex);
+        for(int i = 0; i < docnos.size(); i++)
+            writer.addDocument(FileParser.parseWARCRecord(settings, extractor,
+                docnos.get(i), new ByteArrayInputStream(payloads.get(i)),
+                storeField));
+        writer.forceMerge(1);
+        writer.close();
+
+        for(String file : dir.listAll())
+            size += dir.fileLength(file);
+        dir.close();
+        return size;
+    }
+
+    /**
+     * Splits the uncompressed TREC files into documents with a BufferedReader
+     * (as parseTRECFile does with a stream) and with MappedTrecReader,
+     * checking that both give the same documents.
+     */
+    static void benchmarkMapping(LTRSettings settings, List<File> files,
+        int rounds) throws IOException {
+        List<File> trecFiles = new ArrayList<File>();
+        long bytes = 0;
+
+        for(File file : files){
+            String format = FileParser.documentFormat(settings, file);
+            if(!FileParser.isCompressed(file) && !format.equals("warc") &&
+               !format.equals("simple")){
+                trecFiles.add(file);
+                bytes += file.length();
+            }
+        }
+        if(trecFiles.isEmpty() || !MappedTrecReader.isSupported())
+            return;
+
+        List<Integer> streamed = new ArrayList<Integer>();
+        List<Integer> mapped = new ArrayList<Integer>();
+        splitTRECFiles(trecFiles, false, streamed);
+        splitTRECFiles(trecFiles, true, mapped);
+        System.out.printf("%d TREC documents in %.1f MB of uncompressed "+
+            "files: mapped documents %s\n", streamed.size(),
+            bytes / 1048576.0, streamed.equals(mapped) ? "identical" :
+            "DIFFER ("+ mapped.size() +" documents)");
+
+        for(int round = 0; round < rounds; round++){
+            report("stream", streamed.size(), bytes,
+                splitTRECFiles(trecFiles, false, null));
+            report("mapped", mapped.size(), bytes,
+                splitTRECFiles(trecFiles, true, null));
+        }
+    }
+
+    /**
+     * Splits the TREC files into documents, adding a hash of the text of each
+     * to hashes if it is not null.
+     *
+     * @return {elapsed nanoseconds, bytes allocated}
+     */
+    static long[] splitTRECFiles(List<File> files, boolean map,
+        List<Integer> hashes) throws IOException {
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        long sink = 0;
+
+        for(File file : files){
+            if(map){
+                MappedTrecReader reader = new MappedTrecReader(file);
+                int length;
+                while((length = reader.next()) >= 0){
+                    sink += length;
+                    if(hashes != null)
+                        hashes.add(hash(reader.buffer(), length));
+                }
+                reader.close();
+                continue;
+            }
+
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(FileParser.openInputStream(file)));
+            char[] buffer = new char[1 << 16];
+            int length = -1;
+            String line;
+            while((line = reader.readLine()) != null){
+                if(line.equals("<DOC>") && length < 0){
+                    length = 0;
+                    buffer = FileParser.append(buffer, length, line, true);
+                    length += line.length() + 1;
+                } else if(line.equals("</DOC>") && length >= 0) {
+                    buffer = FileParser.append(buffer, length, line, false);
+                    length += line.length();
+                    sink += length;
+                    if(hashes != null)
+                        hashes.add(hash(buffer, length));
+                    length = -1;
+                } else if(length >= 0) {
+                    buffer = FileParser.append(buffer, length, line, true);
+                    length += line.length() + 1;
+                }
+            }
+            reader.close();
+        }
+
+        long[] result = new long[]{System.nanoTime() - start,
+            allocatedBytes() - allocated};
+        if(sink < 0)
+            System.out.println(sink);
+        return result;
+    }
+
+    static int hash(char[] buffer, int length) {
+        int h = length;
+        for(int i = 0; i < length; i++)
+            h = 31 * h + buffer[i];
+        return h;
+    }
+
+    /**
+     * Reads each compressed file to the end with 0, 1 and the given number
+     * of decompression threads, checking that the output is the same.
+     */
+    static void benchmarkDecompression(List<File> files, int threads,
+        int rounds) throws IOException {
+        int[] modes = threads > 1 ? new int[]{0, 1, threads} : new int[]{0, 1};
+        byte[] buffer = new byte[1 << 16];
+
+        for(File file : files){
+            String extension = FilenameUtils.getExtension(file.getName());
+            if(!extension.matches("gz|gzip|bz2|bzip2"))
+                continue;
+            long expected = -1;
+            for(int round = 0; round < rounds; round++){
+                for(int mode : modes){
+                    CRC32 crc = new CRC32();
+                    long bytes = 0, start = System.nanoTime();
+                    InputStream input = FileParser.openInputStream(file, mode);
+                    int n;
+                    while((n = input.read(buffer)) != -1){
+                        crc.update(buffer, 0, n);
+                        bytes += n;
+                    }
+                    input.close();
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    if(expected == -1)
+                        expected = crc.getValue();
+                    System.out.printf("%s, %d decompression threads: "+
+                        "%8.2f MB/s (%.1f MB in %.2f s)%s\n", file.getName(),
+                        mode, bytes / 1048576.0 / seconds, bytes / 1048576.0,
+                        seconds, crc.getValue() == expected ? "" :
+                        "  OUTPUT DIFFERS");
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses every document once with the given scanner (or Jsoup if null).
+     *
+     * @return {elapsed nanoseconds, bytes allocated}
+     */
+    static long[] time(LTRSettings settings, List<String> docs,
+        TrecDocScanner scanner) {
+        char[] buffer = new char[1 << 16];
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        long sink = 0;
+
+        for(String text : docs){
+            if(scanner == null){
+                sink += FileParser.parseTRECDocument(
+                    settings, text, Field.Store.NO).getFields().size();
+            } else {
+                if(buffer.length < text.length())
+                    buffer = new char[text.length()];
+                text.getChars(0, text.length(), buffer, 0);
+                sink += FileParser.parseTRECDocument(settings, scanner,
+                    buffer, text.length(), Field.Store.NO).getFields().size();
+            }
+        }
+        long[] result = new long[]{System.nanoTime() - start,
+            allocatedBytes() - allocated};
+        if(sink < 0)
+            System.out.println(sink);
+        return result;
+    }
+
+    static void report(String name, int docs, long chars, long[] result) {
+        double seconds = result[0] / 1e9;
+        System.out.printf("%-18s %8.3f s  %10.0f docs/s  %8.2f MB/s  "+
+            "%10.0f bytes allocated/doc\n", name, seconds, docs / seconds,
+            chars / 1048576.0 / seconds, result[1] / (double) docs);
+    }
+
+    /**
+     * @return The number of bytes allocated by this thread so far, or 0 if
+     *         the JVM does not report it.
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean =
+            ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+
+    /**
+     * Reads up to maxDocs &lt;DOC&gt;s from the TREC files in the list, the
+     * same way FileParser.parseTRECFile splits them.
+     */
+    static List<String> readTRECDocuments(LTRSettings settings,
+        List<File> files, int maxDocs) throws IOException {
+        List<String> docs = new ArrayList<String>();
+        StringBuilder documentContent = null;
+        String line, format;
+
+        for(File file : files){
+            format = FileParser.documentFormat(settings, file);
+            if(format.equals("warc") || format.equals("simple"))
+                continue;
+            InputStream input = FileParser.openInputStream(file);
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(input));
+            while((line = reader.readLine()) != null &&
+                  docs.size() < maxDocs){
+                if(line.equals("<DOC>") && documentContent == null){
+                    documentContent = new StringBuilder();
+                    documentContent.append(line).append('\n');
+                } else if(line.equals("</DOC>") && documentContent != null) {
+                    documentContent.append(line);
+                    docs.add(documentContent.toString());
+                    documentContent = null;
+                } else if(documentContent != null) {
+                    documentContent.append(line).append('\n');
+                }
+            }
+            reader.close();
+            documentContent = null;
+        }
+        return docs;
+    }
+
+    /**
+     * Reads up to maxDocs response records (with a WARC-TREC-ID) from the
+     * WARC files in the list, the same way FileParser.parseWARCFile does.
+     */
+    static void readWARCRecords(LTRSettings settings, List<File> files,
+        int maxDocs, List<String> docnos, List<byte[]> payloads)
+    throws IOException {
+        for(File file : files){
+            if(!FileParser.documentFormat(settings, file).equals("warc"))
+                continue;
+            InputStream input = FileParser.openInputStream(file);
+            WarcReader warcReader = WarcReaderFactory.getReader(input);
+            Iterator<WarcRecord> records = warcReader.iterator();
+            while(records.hasNext() && docnos.size() < maxDocs){
+                WarcRecord record = records.next();
+                HeaderLine typeHeader = record.getHeader("WARC-TYPE");
+                HeaderLine trecIDHeader = record.getHeader("WARC-TREC-ID");
+                if(typeHeader == null || !typeHeader.value.equals("response")
+                   || trecIDHeader == null)
+                    continue;
+                docnos.add(trecIDHeader.value);
+                payloads.add(IOUtils.toByteArray(record.getPayloadContent()));
+            }
+            warcReader.close();
+            input.close();
+        }
+    }
+
+    /**
+     * @return The text with runs of whitespace collapsed to one space.
+     */
+    static String words(String text) {
+        return text == null ? "" : text.trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * @return The fields of a document as "name=value" pairs, in order.
+     */
+    static String describe(Document doc) {
+        StringBuilder description = new StringBuilder();
+        for(IndexableField field : doc.getFields())
+            description.append(field.name()).append("=[")
+                .append(field.stringValue()).append("] ");
+        return description.toString();
+    }
+}
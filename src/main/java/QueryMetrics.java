@@ -0,0 +1,270 @@
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Where BatchSearch spends its time, topic by topic. The time of each topic
+ * is split into stages:
+ *
+ *   extract     -- pulling the qid, query text, etc. out of the topic's XML;
+ *   preprocess  -- the query preprocessor, if the topic names one;
+ *   parse       -- parsing the query text into a Query;
+ *   search      -- the search, with either engine (or the result cache);
+ *   postprocess -- the query post processor, if the topic names one;
+ *   docno       -- looking up the docno of each hit (and dropping
+ *                  duplicates);
+ *   snippet     -- building snippets, with includeSnippets;
+ *   output      -- formatting the results into the run.
+ *
+ * Each stage, and the total, keeps a LatencyRecorder, so percentiles are
+ * exact. A stage is only recorded for the topics that went through it (e.g.,
+ * only topics with a preprocessor count towards preprocess). The slowest
+ * topics are kept with their stage times, to find the ones that blow a
+ * batch's time budget.
+ *
+ * A Timer is started for each topic and lap() is called as each stage ends;
+ * done() then records the topic. Timers may be used on several threads at
+ * once, one per topic.
+ */
+public class QueryMetrics {
+    public static final int EXTRACT     = 0;
+    public static final int PREPROCESS  = 1;
+    public static final int PARSE       = 2;
+    public static final int SEARCH      = 3;
+    public static final int POSTPROCESS = 4;
+    public static final int DOCNO       = 5;
+    public static final int SNIPPET     = 6;
+    public static final int OUTPUT      = 7;
+    public static final String[] STAGES = {"extract", "preprocess", "parse",
+        "search", "postprocess", "docno", "snippet", "output"};
+
+    private final LatencyRecorder[] stages =
+        new LatencyRecorder[STAGES.length];
+    private final LatencyRecorder total = new LatencyRecorder();
+    private final int slowest;
+
+    private static final Comparator<Timer> BY_TOTAL = new Comparator<Timer>() {
+        public int compare(Timer a, Timer b) {
+            return Long.compare(a.total, b.total);
+        }
+    };
+
+    // The slowest topics so far, fastest first.
+    private final PriorityQueue<Timer> slow;
+
+    /**
+     * The stage times of one topic.
+     */
+    public static class Timer {
+        private final QueryMetrics metrics;
+        private final long[] nanos = new long[STAGES.length];
+        private final boolean[] ran = new boolean[STAGES.length];
+        private String qid;
+        private long last = System.nanoTime();
+        private long total;
+
+        /**
+         * Starts timing a topic.
+         *
+         * @param metrics Where to record the topic, or null to not record
+         *                it.
+         */
+        public Timer(QueryMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        /**
+         * Starts timing another run of a topic that has already been
+         * extracted, preprocessed and parsed, e.g., against another model.
+         * The new timer starts with the stage times of the first.
+         *
+         * @param metrics Where to record the run, or null.
+         * @param prepared The timer the topic was prepared with.
+         */
+        public Timer(QueryMetrics metrics, Timer prepared) {
+            this(metrics);
+            qid = prepared.qid;
+            System.arraycopy(prepared.nanos, 0, nanos, 0, nanos.length);
+            System.arraycopy(prepared.ran, 0, ran, 0, ran.length);
+        }
+
+        /**
+         * Sets the qid, once it is known.
+         */
+        public void qid(String qid) {
+            this.qid = qid;
+        }
+
+        /**
+         * Starts timing the next stage from now, leaving out whatever was
+         * done since the last lap.
+         */
+        public void mark() {
+            last = System.nanoTime();
+        }
+
+        /**
+         * Ends a stage: the time since the last lap (or mark) is added to
+         * the stage.
+         *
+         * @param stage The stage, e.g., SEARCH.
+         */
+        public void lap(int stage) {
+            long now = System.nanoTime();
+            nanos[stage] += now - last;
+            ran[stage] = true;
+            last = now;
+        }
+
+        /**
+         * Records the topic, if there are metrics to record it in.
+         */
+        public void done() {
+            total = 0;
+            for(long time : nanos)
+                total += time;
+            if(metrics != null)
+                metrics.record(this);
+        }
+
+        /**
+         * @return The time of each stage the topic went through, in
+         *         milliseconds.
+         */
+        Map<String, Double> stageMillis() {
+            Map<String, Double> stages = new LinkedHashMap<String, Double>();
+            for(int i = 0; i < STAGES.length; i++)
+                if(ran[i])
+                    stages.put(STAGES[i], Math.round(nanos[i] / 1e3) / 1e3);
+            return stages;
+        }
+    }
+
+    /**
+     * @param slowest The number of slowest topics to keep.
+     */
+    public QueryMetrics(int slowest) {
+        for(int i = 0; i < stages.length; i++)
+            stages[i] = new LatencyRecorder();
+        this.slowest = slowest;
+        this.slow = new PriorityQueue<Timer>(Math.max(1, slowest), BY_TOTAL);
+    }
+
+    /**
+     * @param settings The global settings.
+     * @return Metrics to record topics in, or null if reportLatency is not
+     *         set.
+     */
+    public static QueryMetrics open(LTRSettings settings) {
+        return settings.reportLatency ?
+            new QueryMetrics(settings.slowTopics) : null;
+    }
+
+    private void record(Timer timer) {
+        for(int i = 0; i < STAGES.length; i++)
+            if(timer.ran[i])
+                stages[i].record(timer.nanos[i]);
+        total.record(timer.total);
+        synchronized(slow) {
+            if(slowest <= 0)
+                return;
+            if(slow.size() < slowest){
+                slow.add(timer);
+            } else if(slow.peek().total < timer.total){
+                slow.poll();
+                slow.add(timer);
+            }
+        }
+    }
+
+    /**
+     * @return The slowest topics, slowest first.
+     */
+    private List<Timer> slowestTopics() {
+        List<Timer> topics;
+        synchronized(slow) {
+            topics = new ArrayList<Timer>(slow);
+        }
+        Collections.sort(topics, Collections.reverseOrder(BY_TOTAL));
+        return topics;
+    }
+
+    /**
+     * @param label What was run (e.g., a model's name), to start each line
+     *              with; or null.
+     * @return Lines giving the latency percentiles of each stage that ran
+     *         and of the total, and then the slowest topics with their
+     *         stage times.
+     */
+    public String summary(String label) {
+        StringBuilder summary = new StringBuilder();
+        String prefix = label == null ? "" : label +" ";
+
+        for(int i = 0; i < STAGES.length; i++)
+            if(stages[i].count() > 0)
+                summary.append(stages[i].summary(prefix + STAGES[i]))
+                    .append('\n');
+        summary.append(total.summary(prefix +"topic"));
+        for(Timer topic : slowestTopics()){
+            summary.append(String.format("\n%sslow topic %s: %.2f ms",
+                prefix, topic.qid, topic.total / 1e6));
+            for(Map.Entry<String, Double> stage :
+                    topic.stageMillis().entrySet())
+                summary.append(String.format(" %s=%.2f", stage.getKey(),
+                    stage.getValue()));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * @return The summary as a map, to write out as JSON.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        Map<String, Object> stageStats = new LinkedHashMap<String, Object>();
+        List<Map<String, Object>> slowTopics =
+            new ArrayList<Map<String, Object>>();
+
+        for(int i = 0; i < STAGES.length; i++)
+            if(stages[i].count() > 0)
+                stageStats.put(STAGES[i], stages[i].stats());
+        map.put("stages", stageStats);
+        map.put("topic", total.stats());
+        for(Timer topic : slowestTopics()){
+            Map<String, Object> slowTopic =
+                new LinkedHashMap<String, Object>();
+            slowTopic.put("qid", topic.qid);
+            slowTopic.put("totalMs", Math.round(topic.total / 1e3) / 1e3);
+            slowTopic.put("stagesMs", topic.stageMillis());
+            slowTopics.add(slowTopic);
+        }
+        map.put("slowest", slowTopics);
+        return map;
+    }
+
+    /**
+     * Writes summaries as JSON.
+     *
+     * @param jsonFile The file to write.
+     * @param summaries The summaries, e.g., toMap() or one per model.
+     */
+    public static void write(String jsonFile, Map<String, Object> summaries)
+    throws IOException {
+        try(Writer out = Files.newBufferedWriter(Paths.get(jsonFile),
+                StandardCharsets.UTF_8)){
+            new GsonBuilder().setPrettyPrinting().create()
+                .toJson(summaries, out);
+        }
+    }
+}
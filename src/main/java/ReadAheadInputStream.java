@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An InputStream that reads its source on a background thread, up to a fixed
+ * number of chunks ahead of the consumer. Wrapped around a decompressing
+ * stream, this moves decompression off the thread that parses and indexes
+ * the documents, so the two overlap.
+ *
+ * Chunks are recycled between the two threads, so reading allocates nothing
+ * once the stream is under way. An IOException thrown by the source is
+ * rethrown to the consumer once it has read everything before it.
+ */
+public class ReadAheadInputStream extends InputStream {
+    private static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+    private static final int DEFAULT_CHUNKS     = 4;
+
+    /**
+     * A chunk of the source; a chunk with a length of -1 marks the end.
+     */
+    private static class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private final InputStream in;
+    private final BlockingQueue<Chunk> full;
+    private final BlockingQueue<Chunk> free;
+    private final Thread reader;
+    private volatile IOException error;
+
+    private Chunk chunk;
+    private int   position;
+    private boolean closed = false;
+
+    /**
+     * Reads ahead by up to four chunks of 1 MiB.
+     *
+     * @param in The stream to read from; it is closed along with this one.
+     */
+    public ReadAheadInputStream(InputStream in) {
+        this(in, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNKS);
+    }
+
+    /**
+     * @param in The stream to read from; it is closed along with this one.
+     * @param chunkSize The size of each chunk, in bytes.
+     * @param chunks The number of chunks the reader may get ahead by.
+     */
+    public ReadAheadInputStream(InputStream in, int chunkSize, int chunks) {
+        this.in = in;
+        full = new ArrayBlockingQueue<Chunk>(chunks + 1);
+        free = new ArrayBlockingQueue<Chunk>(chunks + 1);
+        for(int i = 0; i < chunks; i++)
+            free.add(new Chunk(chunkSize));
+
+        reader = new Thread(new Runnable() {
+            public void run() {
+                readAhead();
+            }
+        }, "read-ahead");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * The body of the reader thread: fills free chunks from the source and
+     * queues them until the source is exhausted.
+     */
+    private void readAhead() {
+        Chunk next = null;
+        int n;
+
+        try {
+            while(true){
+                next = free.take();
+                next.length = 0;
+                while(next.length < next.data.length &&
+                      (n = in.read(next.data, next.length,
+                           next.data.length - next.length)) != -1)
+                    next.length += n;
+                if(next.length == 0)
+                    break;
+                full.put(next);
+                if(next.length < next.data.length)
+                    break;
+            }
+        } catch (IOException e) {
+            // Pass on what was read before the error.
+            if(next != null && next.length > 0)
+                full.offer(next);
+            error = e;
+        } catch (InterruptedException e) {
+            // Closed by the consumer.
+            return;
+        }
+
+        Chunk end = new Chunk(0);
+        end.length = -1;
+        full.offer(end);
+    }
+
+    /**
+     * Makes the current chunk one with unread bytes, if there is one left.
+     *
+     * @return False at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        if(closed)
+            throw new IOException("Stream closed");
+        if(chunk != null && chunk.length == -1)
+            return false;
+        if(chunk != null && position < chunk.length)
+            return true;
+
+        try {
+            if(chunk != null)
+                free.put(chunk);
+            chunk = full.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        position = 0;
+
+        if(chunk.length == -1){
+            if(error != null)
+                throw error;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(!fill())
+            return -1;
+        return chunk.data[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n;
+        if(len == 0)
+            return 0;
+        if(!fill())
+            return -1;
+        n = Math.min(len, chunk.length - position);
+        System.arraycopy(chunk.data, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if(closed || chunk == null || chunk.length == -1)
+            return 0;
+        return chunk.length - position;
+    }
+
+    /**
+     * Stops the reader thread and closes the source.
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed)
+            return;
+        closed = true;
+        reader.interrupt();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        in.close();
+    }
+}
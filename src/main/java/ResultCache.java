@@ -0,0 +1,354 @@
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An on-disk cache of first-stage results, i.e., of the TopDocs that
+ * IndexSearcher.search(query, depth) returns, before any post processing.
+ * Runs of the same topics against the same index (e.g., while working on a
+ * post processor) can then skip the search.
+ *
+ * An entry is keyed on the index (its path, the generation and version of
+ * each of its commits, so that any change to the index misses, and the
+ * checksums of the DocLengths stores beside it, which change scores without
+ * a commit; with the saat engine, also those of the impacts), the
+ * similarity (its class and toString(), which gives the parameters of the
+ * models that have any), the parsed query (Query.toString()) and the depth.
+ * Each entry is a file in the cache directory, named by the SHA-1 of its
+ * key, holding the key (to rule out collisions), the total hits, the maximum
+ * score, and a docid and score per hit: 8 bytes a hit.
+ *
+ * The directory is kept under a maximum size by deleting the least recently
+ * used entries; use is recorded in the files' modification times, so it
+ * carries over from one run to the next. The cache is thread-safe.
+ */
+public class ResultCache {
+    private static final String SUFFIX = ".hits";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final String indexKey;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    // Entry file names and sizes, least recently used first.
+    private final LinkedHashMap<String, Long> entries =
+        new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long bytes = 0;
+
+    /**
+     * @param directory The cache directory; created if need be.
+     * @param maxBytes The size to keep the directory under.
+     * @param indexPath The path of the index the reader was opened on.
+     * @param reader The reader searched; results are only served for this
+     *               exact version of the index.
+     */
+    public ResultCache(Path directory, long maxBytes, Path indexPath,
+        IndexReader reader) throws IOException {
+        List<Path> files = new ArrayList<Path>();
+
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.indexKey = indexPath.toAbsolutePath().normalize() +" "+
+            indexVersion(reader) + sidecarKey(indexPath);
+
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stream =
+                Files.newDirectoryStream(directory, "*"+ SUFFIX)) {
+            for (Path file : stream)
+                files.add(file);
+        }
+        final Map<Path, Long> modified = new LinkedHashMap<Path, Long>();
+        for (Path file : files)
+            modified.put(file, Files.getLastModifiedTime(file).toMillis());
+        Collections.sort(files, new Comparator<Path>() {
+            public int compare(Path a, Path b) {
+                return Long.compare(modified.get(a), modified.get(b));
+            }
+        });
+        for (Path file : files) {
+            long size = Files.size(file);
+            entries.put(file.getFileName().toString(), size);
+            bytes += size;
+        }
+    }
+
+    /**
+     * Opens the cache asked for by the settings.
+     *
+     * @param settings The global settings.
+     * @param reader The reader searched.
+     * @return The cache, or null if the resultCache setting is not set.
+     */
+    public static ResultCache open(LTRSettings settings, IndexReader reader)
+    throws IOException {
+        if (settings.resultCache == null)
+            return null;
+        return new ResultCache(Paths.get(settings.resultCache),
+            (long) (settings.resultCacheMB * 1048576),
+            Paths.get(settings.indexPath), reader);
+    }
+
+    /**
+     * @return The generation and version of each commit a reader is on,
+     *         e.g., "3/12" for a single index, or one per shard.
+     */
+    static String indexVersion(IndexReader reader) throws IOException {
+        StringBuilder version = new StringBuilder();
+        List<IndexReaderContext> readers = new ArrayList<IndexReaderContext>();
+
+        if (reader instanceof DirectoryReader)
+            readers.add(reader.getContext());
+        else if (reader.getContext().children() != null)
+            readers.addAll(reader.getContext().children());
+        for (IndexReaderContext context : readers) {
+            if (!(context.reader() instanceof DirectoryReader))
+                throw new IOException("Cannot cache results of "+ reader);
+            DirectoryReader directoryReader =
+                (DirectoryReader) context.reader();
+            if (version.length() > 0)
+                version.append(',');
+            version.append(directoryReader.getIndexCommit().getGeneration())
+                .append('/').append(directoryReader.getVersion());
+        }
+        return version.toString();
+    }
+
+    /**
+     * @return The state of the DocLengths stores beside an index (or its
+     *         shards), which change scores without a commit: the name and
+     *         footer checksum of each file (the fields of the field list,
+     *         which has no footer), e.g., " /doclengths-_0:1f2e3d4c".
+     */
+    static String sidecarKey(Path indexPath) throws IOException {
+        StringBuilder key = new StringBuilder();
+        List<Path> paths = new ArrayList<Path>();
+
+        paths.add(indexPath);
+        paths.addAll(ShardedIndexer.shardPaths(indexPath));
+        for (Path path : paths) {
+            String shard = indexPath.relativize(path).toString();
+            try (Directory dir = FSDirectory.open(path)) {
+                String[] files = dir.listAll();
+                Arrays.sort(files);
+                for (String file : files) {
+                    if (file.equals(DocLengths.FIELDS_FILE)) {
+                        key.append(' ').append(shard).append('/')
+                            .append(file).append(':')
+                            .append(DocLengths.readFields(dir));
+                    } else if (file.startsWith(DocLengths.PREFIX)) {
+                        try (IndexInput in =
+                                dir.openInput(file, IOContext.READONCE)) {
+                            key.append(' ').append(shard).append('/')
+                                .append(file).append(':').append(
+                                Long.toHexString(
+                                    CodecUtil.retrieveChecksum(in)));
+                        }
+                    }
+                }
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return The part of the key that names a similarity: its class, and
+     *         its toString() if it has one of its own.
+     */
+    static String similarityKey(Similarity similarity) {
+        String name = similarity.getClass().getName();
+        String string = similarity.toString();
+
+        if (string.equals(name +"@"+
+                Integer.toHexString(System.identityHashCode(similarity))))
+            return name;
+        return name +" "+ string;
+    }
+
+    /**
+     * Returns the results of a search, from the cache if they are there;
+     * otherwise the search is run and its results are added.
+     *
+     * @param settings The settings, which choose the engine to search with
+     *                 (see BatchSearch.search()).
+     * @param searcher The searcher, on the reader the cache was opened for.
+     * @param query The query.
+     * @param depth The number of hits to return.
+     * @return The results.
+     */
+    public TopDocs search(LTRSettings settings, IndexSearcher searcher,
+        Query query, int depth)
+    throws IOException {
+        String key = indexKey +"\n"+
+            similarityKey(searcher.getSimilarity(true)) +"\n"+
+            query.toString() +"\n"+ depth;
+        // Score-at-a-time results depend on the impacts (see ImpactIndex)
+        // and the budget, not on the similarity.
+        if ("saat".equals(settings.engine)) {
+            ImpactIndex impacts = BatchSearch.impacts(settings,
+                searcher.getIndexReader(), searcher.getSimilarity(true));
+            key += "\nsaat "+ impacts.k1 +" "+ impacts.b +" "+ impacts.bits
+                +" "+ Long.toHexString(impacts.checksum) +" "+
+                settings.postingsBudget;
+        }
+        String name = fileName(key);
+        TopDocs results = read(name, key);
+
+        if (results != null) {
+            hits.incrementAndGet();
+            return results;
+        }
+        misses.incrementAndGet();
+        results = BatchSearch.search(settings, searcher, query, depth);
+        write(name, key, results);
+        return results;
+    }
+
+    private static String fileName(String key) {
+        try {
+            StringBuilder name = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1")
+                    .digest(key.getBytes(StandardCharsets.UTF_8)))
+                name.append(String.format("%02x", b));
+            return name.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The cached results, or null if there are none for the key.
+     */
+    private TopDocs read(String name, String key) throws IOException {
+        Path file = directory.resolve(name);
+        ByteBuffer buffer;
+
+        synchronized (this) {
+            if (entries.get(name) == null)
+                return null;
+        }
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        } catch (IOException e) {
+            // Deleted by another run sharing the directory.
+            forget(name);
+            return null;
+        }
+
+        byte[] storedKey = new byte[buffer.getInt()];
+        buffer.get(storedKey);
+        if (!key.equals(new String(storedKey, StandardCharsets.UTF_8)))
+            return null;
+        int totalHits = buffer.getInt();
+        float maxScore = buffer.getFloat();
+        ScoreDoc[] scoreDocs = new ScoreDoc[buffer.getInt()];
+        for (int i = 0; i < scoreDocs.length; i++)
+            scoreDocs[i] = new ScoreDoc(buffer.getInt(), buffer.getFloat());
+
+        Files.setLastModifiedTime(file,
+            FileTime.fromMillis(System.currentTimeMillis()));
+        return new TopDocs(totalHits, scoreDocs, maxScore);
+    }
+
+    /**
+     * Adds results to the cache, then evicts the least recently used
+     * entries until the cache is back under its maximum size.
+     */
+    private void write(String name, String key, TopDocs results)
+    throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + keyBytes.length + 12 +
+            8 * results.scoreDocs.length);
+        Path file = directory.resolve(name);
+        Path temp = directory.resolve(name +"."+
+            Thread.currentThread().getId() +".tmp");
+
+        buffer.putInt(keyBytes.length).put(keyBytes)
+            .putInt(results.totalHits).putFloat(results.getMaxScore())
+            .putInt(results.scoreDocs.length);
+        for (ScoreDoc hit : results.scoreDocs)
+            buffer.putInt(hit.doc).putFloat(hit.score);
+        Files.write(temp, buffer.array());
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+
+        List<String> evicted = new ArrayList<String>();
+        synchronized (this) {
+            Long old = entries.put(name, (long) buffer.capacity());
+            bytes += buffer.capacity() - (old == null ? 0 : old);
+            Iterator<Map.Entry<String, Long>> eldest =
+                entries.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                if (entry.getKey().equals(name))
+                    continue;
+                bytes -= entry.getValue();
+                evicted.add(entry.getKey());
+                eldest.remove();
+            }
+        }
+        for (String evictedName : evicted)
+            Files.deleteIfExists(directory.resolve(evictedName));
+        evictions.addAndGet(evicted.size());
+    }
+
+    private synchronized void forget(String name) {
+        Long size = entries.remove(name);
+        if (size != null)
+            bytes -= size;
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return A line giving the hits, misses and evictions so far, and the
+     *         size of the cache.
+     */
+    public synchronized String summary() {
+        return String.format("result cache: %d hits, %d misses, %d evictions;"
+            +" %d entries, %.1f MB in %s", hits(), misses(), evictions(),
+            entries.size(), bytes / 1048576.0, directory);
+    }
+}
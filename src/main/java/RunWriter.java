@@ -0,0 +1,275 @@
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a TREC run. Result lines are formatted into a reused StringBuilder
+ * and copied into large chunks of bytes; full chunks are handed to a
+ * background thread which writes them out, so searching does not wait on the
+ * output (and, with gzip, on the compression). Chunks are recycled once they
+ * have been written.
+ *
+ * The bytes written are the same as printing each line with
+ * System.out.println(): lines end with the platform line separator, and
+ * characters are encoded in the platform charset.
+ *
+ * A RunWriter may also be used without a background thread, e.g., to buffer
+ * the output of one topic in memory. It is not thread-safe.
+ */
+public class RunWriter implements Closeable {
+    public static final int CHUNK_SIZE = 1 << 18;
+    public static final int CHUNKS     = 4;
+
+    private static final byte[] LINE_SEPARATOR =
+        System.lineSeparator().getBytes(Charset.defaultCharset());
+    private static final Chunk END = new Chunk(0);
+
+    /**
+     * A buffer of bytes waiting to be written.
+     */
+    private static class Chunk {
+        final byte[] bytes;
+        int length = 0;
+
+        Chunk(int size) {
+            bytes = new byte[size];
+        }
+    }
+
+    private final OutputStream out;
+    private final StringBuilder line = new StringBuilder(256);
+    private final Thread writer;
+    private final BlockingQueue<Chunk> full;
+    private final BlockingQueue<Chunk> free;
+    private volatile IOException failure;
+    private Chunk chunk;
+    private boolean closed = false;
+
+    /**
+     * @param out Where to write the run; it is closed with the run.
+     * @param background If true, write chunks from a background thread;
+     *                   otherwise they are written as they fill up.
+     */
+    public RunWriter(OutputStream out, boolean background) {
+        this.out = out;
+        if(!background){
+            full = free = null;
+            writer = null;
+            chunk = new Chunk(CHUNK_SIZE);
+            return;
+        }
+
+        full = new ArrayBlockingQueue<Chunk>(CHUNKS + 1);
+        free = new ArrayBlockingQueue<Chunk>(CHUNKS);
+        for(int i = 0; i < CHUNKS; i++)
+            free.add(new Chunk(CHUNK_SIZE));
+        chunk = free.poll();
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeChunks();
+            }
+        }, "run-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Opens the run asked for by the settings: the runFile setting, or
+     * stdout if there is none. The run is gzipped if gzipRun is set or the
+     * file name ends in ".gz".
+     *
+     * @param settings The global settings.
+     * @return The run, written from a background thread.
+     */
+    public static RunWriter open(LTRSettings settings) throws IOException {
+        if(settings.runFile == null)
+            return open(null, settings.gzipRun);
+        return open(Paths.get(settings.runFile),
+            settings.gzipRun || settings.runFile.endsWith(".gz"));
+    }
+
+    /**
+     * @param path The run file, or null for stdout.
+     * @param gzip Whether to gzip the run.
+     * @return The run, written from a background thread.
+     */
+    public static RunWriter open(Path path, boolean gzip) throws IOException {
+        OutputStream out;
+
+        if(path == null)
+            out = new FilterOutputStream(Channels.newOutputStream(
+                new FileOutputStream(FileDescriptor.out).getChannel())) {
+                @Override
+                public void write(byte[] b, int off, int len)
+                throws IOException {
+                    out.write(b, off, len);
+                }
+
+                // Leave stdout open.
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+        else
+            out = Channels.newOutputStream(FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING));
+        if(gzip)
+            out = new GZIPOutputStream(out, 1 << 16);
+        return new RunWriter(out, true);
+    }
+
+    /**
+     * Writes one result line: "QID Q0 DOCNO RANK SCORE RUNTAG".
+     */
+    public void result(String qid, String docno, int rank, float score,
+        String runtag) throws IOException {
+        line.setLength(0);
+        line.append(qid).append(" Q0 ").append(docno).append(' ')
+            .append(rank).append(' ').append(score).append(' ')
+            .append(runtag);
+        appendLine(line);
+    }
+
+    /**
+     * Writes a line of text, e.g., a snippet.
+     */
+    public void println(String text) throws IOException {
+        appendLine(text);
+    }
+
+    /**
+     * Writes bytes as they are, e.g., the output of a topic that was
+     * buffered in memory.
+     */
+    public void write(byte[] bytes, int offset, int length)
+    throws IOException {
+        while(length > 0){
+            int n = Math.min(length, chunk.bytes.length - chunk.length);
+            System.arraycopy(bytes, offset, chunk.bytes, chunk.length, n);
+            chunk.length += n;
+            offset += n;
+            length -= n;
+            if(chunk.length == chunk.bytes.length)
+                handOff();
+        }
+    }
+
+    private void appendLine(CharSequence text) throws IOException {
+        int length = text.length();
+        boolean ascii = true;
+
+        if(chunk.bytes.length - chunk.length <
+           length + LINE_SEPARATOR.length)
+            handOff();
+        if(chunk.bytes.length - chunk.length <
+           length + LINE_SEPARATOR.length){
+            // Longer than a chunk (a long snippet).
+            byte[] bytes = text.toString().getBytes(Charset.defaultCharset());
+            write(bytes, 0, bytes.length);
+            write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+            return;
+        }
+
+        for(int i = 0; i < length; i++){
+            char c = text.charAt(i);
+            if(c >= 0x80){
+                ascii = false;
+                break;
+            }
+            chunk.bytes[chunk.length + i] = (byte) c;
+        }
+        if(ascii){
+            chunk.length += length;
+        } else {
+            byte[] bytes = text.toString().getBytes(Charset.defaultCharset());
+            write(bytes, 0, bytes.length);
+        }
+        write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+    }
+
+    /**
+     * Sends the current chunk to be written and starts a new one.
+     */
+    private void handOff() throws IOException {
+        if(chunk.length == 0)
+            return;
+        if(writer == null){
+            out.write(chunk.bytes, 0, chunk.length);
+            chunk.length = 0;
+            return;
+        }
+        checkFailure();
+        try {
+            full.put(chunk);
+            chunk = free.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted writing run");
+        }
+        chunk.length = 0;
+    }
+
+    private void checkFailure() throws IOException {
+        if(failure != null)
+            throw new IOException("Error writing run", failure);
+    }
+
+    /**
+     * The background thread: writes chunks until the end is reached.
+     */
+    private void writeChunks() {
+        try {
+            while(true){
+                Chunk next = full.take();
+                if(next == END)
+                    break;
+                try {
+                    if(failure == null)
+                        out.write(next.bytes, 0, next.length);
+                } catch (IOException e) {
+                    failure = e;
+                }
+                free.put(next);
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        }
+    }
+
+    /**
+     * Writes everything, stops the background thread and closes the output
+     * (stdout is only flushed).
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed)
+            return;
+        closed = true;
+        try {
+            handOff();
+            if(writer != null){
+                full.put(END);
+                writer.join();
+            }
+            checkFailure();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted writing run");
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,356 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.Bits;
+
+/**
+ * A score-at-a-time, anytime search engine over an ImpactIndex, for the same
+ * bag-of-words queries as TermAtATime. The impact segments of all the query
+ * terms are processed from the highest impact down, whatever term they
+ * belong to, each adding its impact into an accumulator per document; the
+ * matched documents are then run through a priority queue for the top n.
+ *
+ * Since the segments that matter most come first, the search can be cut
+ * short: given a budget of postings, it stops once it has processed that
+ * many (partway through a segment if need be), trading effectiveness for a
+ * bounded latency. With no budget every posting is processed, and the
+ * results differ from BM25's only by quantization (see ImpactIndex).
+ *
+ * Queries are scored with the BM25 parameters the impacts were built with,
+ * whatever the searcher's similarity; scores are sums of impacts scaled
+ * back to BM25's range, ties broken by docid. Query terms of other fields
+ * than the impacts' match nothing. Any query that is not a bag of words is
+ * handed to IndexSearcher.search(). Each thread keeps its accumulators (8
+ * bytes and a bit per document of the index) from one query to the next.
+ *
+ * Run as a program, it reports latency and effectiveness at several budgets
+ * next to exhaustive search. Without relevance judgments at hand,
+ * effectiveness is measured as the overlap of the top k hits with those of
+ * exhaustive BM25 (Lucene's, with the impacts' k1 and b).
+ *
+ * Usage: java ScoreAtATime [-settings SETTINGS_FILE] -index INDEX_PATH
+ *            -queries QUERY_FILE [-field f] [-budgets b1,b2,...] [-rounds N]
+ */
+public class ScoreAtATime {
+    private ScoreAtATime() {}
+
+    private static final ThreadLocal<Accumulators> accumulators =
+        new ThreadLocal<Accumulators>() {
+            @Override
+            protected Accumulators initialValue() {
+                return new Accumulators();
+            }
+        };
+
+    /**
+     * Finds the top n hits for a query.
+     *
+     * @param impacts The impacts of the searcher's index.
+     * @param searcher The searcher.
+     * @param query The query.
+     * @param n The number of hits to return.
+     * @param budget The most postings to process, or 0 for all of them.
+     * @return The hits.
+     */
+    public static TopDocs search(ImpactIndex impacts, IndexSearcher searcher,
+        Query query, int n, long budget)
+    throws IOException {
+        List<Term> terms = TermAtATime.bagOfTerms(searcher.rewrite(query));
+
+        if (terms == null)
+            return searcher.search(query, n);
+        return search(impacts, searcher.getIndexReader(), terms,
+            Math.min(n, Math.max(1, searcher.getIndexReader().maxDoc())),
+            budget > 0 ? budget : Long.MAX_VALUE);
+    }
+
+    private static TopDocs search(ImpactIndex impacts, IndexReader reader,
+        List<Term> terms, int n, long budget)
+    throws IOException {
+        List<ImpactIndex.TermImpacts> lists =
+            new ArrayList<ImpactIndex.TermImpacts>();
+        int segments = 0;
+
+        for (Term term : terms) {
+            if (!term.field().equals(impacts.field))
+                continue;
+            ImpactIndex.TermImpacts list = impacts.impacts(term.bytes());
+            if (list == null)
+                continue;
+            lists.add(list);
+            segments += list.impacts.length;
+        }
+
+        // Order every segment of every term by impact, highest first (and
+        // then by term and segment), in a sort of packed keys.
+        long[] order = new long[segments];
+        int levels = impacts.levels();
+        segments = 0;
+        for (int t = 0; t < lists.size(); t++)
+            for (int s = 0; s < lists.get(t).impacts.length; s++)
+                order[segments++] =
+                    (long) (levels - lists.get(t).impacts[s]) << 40 |
+                    (long) t << 16 | s;
+        Arrays.sort(order);
+
+        Accumulators acc = accumulators.get();
+        acc.grow(reader.maxDoc());
+        int[] sums = acc.sums;
+        long[] matched = acc.matched;
+        long remaining = budget;
+
+        for (long key : order) {
+            ImpactIndex.TermImpacts list = lists.get((int) (key >>> 16 &
+                0xFFFFFF));
+            int s = (int) (key & 0xFFFF);
+            int impact = list.impacts[s];
+            int count = (int) Math.min(list.counts[s], remaining);
+            IndexInput docs = list.docs(s);
+
+            for (int i = 0, doc = 0; i < count; i++) {
+                doc += docs.readVInt();
+                sums[doc] += impact;
+                matched[doc >>> 6] |= 1L << doc;
+            }
+            remaining -= count;
+            if (remaining == 0)
+                break;
+        }
+
+        // As in TermAtATime, only the hits at or above the n-th highest
+        // score are queued.
+        List<LeafReaderContext> leaves = reader.leaves();
+        float scale = impacts.scale();
+        float[] selected = acc.selected;
+        int words = (reader.maxDoc() + 63) >>> 6, count = 0;
+        int leaf = -1, end = 0;
+        Bits liveDocs = null;
+        for (int w = 0; w < words; w++) {
+            for (long word = matched[w]; word != 0; word &= word - 1) {
+                int doc = (w << 6) + Long.numberOfTrailingZeros(word);
+                while (doc >= end) {
+                    LeafReaderContext context = leaves.get(++leaf);
+                    liveDocs = context.reader().getLiveDocs();
+                    end = context.docBase + context.reader().maxDoc();
+                }
+                if (liveDocs == null ||
+                        liveDocs.get(doc - leaves.get(leaf).docBase))
+                    selected[count++] = sums[doc] * scale;
+            }
+        }
+        float threshold = count > n ? TermAtATime.select(selected, count,
+            count - n) : Float.NEGATIVE_INFINITY;
+
+        // Queue them in docid order, clearing the accumulators.
+        TermAtATime.HitQueue queue = new TermAtATime.HitQueue(n);
+        leaf = -1;
+        end = 0;
+        for (int w = 0; w < words; w++) {
+            long word = matched[w];
+            if (word == 0)
+                continue;
+            matched[w] = 0;
+            do {
+                int doc = (w << 6) + Long.numberOfTrailingZeros(word);
+                float score = sums[doc] * scale;
+                word &= word - 1;
+                sums[doc] = 0;
+                while (doc >= end) {
+                    LeafReaderContext context = leaves.get(++leaf);
+                    liveDocs = context.reader().getLiveDocs();
+                    end = context.docBase + context.reader().maxDoc();
+                }
+                if (score >= threshold && score > queue.minScore &&
+                        (liveDocs == null ||
+                         liveDocs.get(doc - leaves.get(leaf).docBase)))
+                    queue.insert(doc, score);
+            } while (word != 0);
+        }
+
+        if (count == 0)
+            return new TopDocs(0, new ScoreDoc[0], Float.NaN);
+        ScoreDoc[] hits = queue.hits(count);
+        return new TopDocs(count, hits, hits[0].score);
+    }
+
+    /**
+     * @return The number of postings a search for a query would process
+     *         with no budget, or -1 if it is not a bag of words.
+     */
+    static long postings(ImpactIndex impacts, IndexSearcher searcher,
+        Query query) throws IOException {
+        List<Term> terms = TermAtATime.bagOfTerms(searcher.rewrite(query));
+        long postings = 0;
+
+        if (terms == null)
+            return -1;
+        for (Term term : terms) {
+            ImpactIndex.TermImpacts list = term.field().equals(impacts.field)
+                ? impacts.impacts(term.bytes()) : null;
+            if (list != null)
+                for (int count : list.counts)
+                    postings += count;
+        }
+        return postings;
+    }
+
+    /**
+     * The per-document arrays of a thread, grown to the largest index it has
+     * searched. Between queries, every entry is zero.
+     */
+    private static class Accumulators {
+        int[] sums = new int[0];
+        long[] matched = new long[0];
+        // The scores of the hits, for select().
+        float[] selected = new float[0];
+
+        void grow(int maxDoc) {
+            if (sums.length < maxDoc) {
+                sums = new int[maxDoc];
+                matched = new long[(maxDoc + 63) >>> 6];
+                selected = new float[maxDoc];
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LTRSettings settings = null;
+        String budgets = "1000,10000,100000,0";
+        int rounds = 5;
+
+        for(int i = 0; i < args.length; i++){
+            if("-settings".equals(args[i])){
+                try {
+                    settings = LTRSettings.generateFromFile(args[i+1]);
+                } catch (FileNotFoundException e) {
+                    System.err.println("LTR settings file not found ("+
+                        args[i+1] +").");
+                    System.exit(1);
+                }
+            } else if("-budgets".equals(args[i])) {
+                budgets = args[i+1];
+            } else if("-rounds".equals(args[i])) {
+                rounds = Integer.parseInt(args[i+1]);
+            }
+        }
+        if(settings == null)
+            settings = new LTRSettings();
+        settings.parseCommandLineArguments(args);
+
+        if(settings.indexPath == null || settings.queryFile == null){
+            System.err.println("Usage: java ScoreAtATime "+
+                "[-settings SETTINGS_FILE] -index INDEX_PATH "+
+                "-queries QUERY_FILE [-field f] [-budgets b1,b2,...] "+
+                "[-rounds N]");
+            System.exit(1);
+        }
+
+        Path indexPath = Paths.get(settings.indexPath);
+        try (IndexReader reader = ShardedIndexer.openReader(indexPath)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            ImpactIndex impacts = ImpactIndex.forReader(reader, indexPath,
+                settings.searchField);
+            List<Query> queries = ScoringBenchmark.readQueries(settings);
+            int n = settings.returnedResultCount;
+            int[] depths = {10, 100, 1000};
+            String[] parts = budgets.split(",");
+            long[] limits = new long[parts.length];
+            String[] engines = new String[parts.length + 2];
+            double[][] times = new double[engines.length][rounds];
+            TopDocs[] exact = new TopDocs[queries.size()];
+            long total = 0;
+
+            searcher.setSimilarity(new BM25(impacts.k1, impacts.b));
+            engines[0] = "lucene";
+            engines[1] = "taat";
+            for(int b = 0; b < parts.length; b++){
+                limits[b] = Long.parseLong(parts[b].trim());
+                engines[b + 2] = "saat";
+            }
+            for(int q = 0; q < queries.size(); q++){
+                exact[q] = searcher.search(queries.get(q), n);
+                total += Math.max(0, postings(impacts, searcher,
+                    queries.get(q)));
+            }
+
+            for(int round = 0; round < rounds; round++){
+                for(int e = 0; e < engines.length; e++){
+                    long start = System.nanoTime();
+                    for(Query query : queries){
+                        if(e == 0)
+                            searcher.search(query, n);
+                        else if(e == 1)
+                            TermAtATime.search(searcher, query, n);
+                        else
+                            search(impacts, searcher, query, n,
+                                limits[e - 2]);
+                    }
+                    times[e][round] = (System.nanoTime() - start) / 1e6 /
+                        queries.size();
+                }
+            }
+
+            System.out.printf("%d topics, %.0f postings per topic; impacts of"
+                +" %d bits, k1 %s, b %s\n", queries.size(),
+                (double) total / queries.size(), impacts.bits, impacts.k1,
+                impacts.b);
+            System.out.printf("%-6s %8s %18s %10s %8s %8s %8s\n", "engine",
+                "budget", "ms/topic best/med", "postings", "ovl@10",
+                "ovl@100", "ovl@1000");
+            for(int e = 0; e < engines.length; e++){
+                long limit = e < 2 ? 0 : limits[e - 2];
+                double processed = 0;
+                double[] overlap = new double[depths.length];
+                for(int q = 0; q < queries.size(); q++){
+                    long all = Math.max(0, postings(impacts, searcher,
+                        queries.get(q)));
+                    processed += limit > 0 ? Math.min(limit, all) : all;
+                    TopDocs hits = e < 2 ? exact[q] : search(impacts, searcher,
+                        queries.get(q), n, limit);
+                    for(int d = 0; d < depths.length; d++)
+                        overlap[d] += overlap(exact[q], hits, depths[d]);
+                }
+                Arrays.sort(times[e]);
+                System.out.printf("%-6s %8s %8.3f/%-8.3f %11.0f %8.4f %8.4f"
+                    +" %8.4f\n", engines[e], limit > 0 ? limit : "all",
+                    times[e][0], times[e][rounds / 2],
+                    processed / queries.size(),
+                    overlap[0] / queries.size(), overlap[1] / queries.size(),
+                    overlap[2] / queries.size());
+            }
+        }
+    }
+
+    /**
+     * @return The fraction of the top k exact hits (or of all of them, if
+     *         fewer) that are among the top k hits; 1 if there are none.
+     */
+    private static double overlap(TopDocs exact, TopDocs hits, int k) {
+        int depth = Math.min(k, exact.scoreDocs.length), found = 0;
+        Set<Integer> top = new HashSet<Integer>();
+
+        if (depth == 0)
+            return 1.0;
+        for(int i = 0; i < Math.min(k, hits.scoreDocs.length); i++)
+            top.add(hits.scoreDocs[i].doc);
+        for(int i = 0; i < depth; i++)
+            if(top.contains(exact.scoreDocs[i].doc))
+                found++;
+        return (double) found / depth;
+    }
+}
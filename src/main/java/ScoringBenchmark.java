@@ -0,0 +1,236 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.queryparser.simple.SimpleQueryParser;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.FSDirectory;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Element;
+
+/**
+ * Times similarities against each other on the terms of a query file. Two
+ * things are timed for each model:
+ *
+ *   score  -- the similarity alone: the postings of every query term are
+ *             decoded up front, then each round builds a weight per term
+ *             (computeWeight) and a scorer per segment, and scores every
+ *             posting; reported per posting;
+ *   search -- the search of every topic, as BatchSearch runs it, with
+ *             each of the engines given (see BatchSearch.search();
+ *             "lucene" by default); reported per topic.
+ *
+ * The models are given as BatchSearch takes them (e.g., BM25 or
+ * BM25Similarity); the default is BM25, BM25e, TMPLe and Lucene's
+ * BM25Similarity. A checksum of the scores is printed so the scoring cannot
+ * be optimized away, and to show that two builds score alike; the search
+ * checksum also covers the docids of the hits.
+ *
+ * Usage: java ScoringBenchmark [-settings SETTINGS_FILE] -index INDEX_PATH
+ *            -queries QUERY_FILE [-field f] [-models m1,m2,...] [-rounds N]
+ *            [-engines lucene,taat]
+ */
+public class ScoringBenchmark {
+    private ScoringBenchmark() {}
+
+    public static void main(String[] args) throws Exception {
+        LTRSettings settings = null;
+        String models = "BM25,BM25e,TMPLe,BM25Similarity";
+        String engines = "lucene";
+        int rounds = 5;
+
+        for(int i = 0; i < args.length; i++){
+            if("-settings".equals(args[i])){
+                try {
+                    settings = LTRSettings.generateFromFile(args[i+1]);
+                } catch (FileNotFoundException e) {
+                    System.err.println("LTR settings file not found ("+
+                        args[i+1] +").");
+                    System.exit(1);
+                }
+            } else if("-models".equals(args[i])) {
+                models = args[i+1];
+            } else if("-rounds".equals(args[i])) {
+                rounds = Integer.parseInt(args[i+1]);
+            } else if("-engines".equals(args[i])) {
+                engines = args[i+1];
+            }
+        }
+        if(settings == null)
+            settings = new LTRSettings();
+        settings.parseCommandLineArguments(args);
+
+        if(settings.indexPath == null || settings.queryFile == null){
+            System.err.println("Usage: java ScoringBenchmark "+
+                "[-settings SETTINGS_FILE] -index INDEX_PATH "+
+                "-queries QUERY_FILE [-field f] [-models m1,m2,...] "+
+                "[-rounds N] [-engines lucene,taat]");
+            System.exit(1);
+        }
+
+        try (IndexReader reader = DirectoryReader.open(
+                FSDirectory.open(Paths.get(settings.indexPath)))) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            List<Query> queries = readQueries(settings);
+            Set<Term> terms = new LinkedHashSet<Term>();
+            for(Query query : queries)
+                searcher.createNormalizedWeight(query, false)
+                    .extractTerms(terms);
+            Postings postings = new Postings(searcher, settings.searchField,
+                new ArrayList<Term>(terms));
+
+            System.out.printf("%d topics, %d distinct terms, %d postings\n",
+                queries.size(), terms.size(), postings.count);
+            for(int round = 0; round < rounds; round++){
+                for(String model : models.split(",")){
+                    Similarity similarity =
+                        BatchSearch.getSimilarityModel(settings, model);
+                    timeScoring(model, similarity, postings);
+                    for(String engine : engines.split(",")){
+                        settings.engine = engine;
+                        timeSearch(model, similarity, settings, searcher,
+                            queries);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The parsed query of each topic in the query file.
+     */
+    static List<Query> readQueries(LTRSettings settings) throws Exception {
+        List<Query> queries = new ArrayList<Query>();
+        TrecAnalyzer analyzer = new TrecAnalyzer(settings);
+        SimpleQueryParser parser = new SimpleQueryParser(analyzer,
+            settings.searchField);
+
+        for(Element elm : Jsoup.parse(FileUtils.readFileToString(
+                new File(settings.queryFile))).select("top"))
+            queries.add(BatchSearch.prepareTopic(settings, elm, analyzer,
+                parser, new QueryMetrics.Timer(null)).query);
+        return queries;
+    }
+
+    /**
+     * The decoded postings of a set of terms, with the statistics needed to
+     * weight them.
+     */
+    static class Postings {
+        final List<LeafReaderContext> leaves;
+        final CollectionStatistics collectionStats;
+        final TermStatistics[] termStats;
+        // docs[term][leaf] and freqs[term][leaf].
+        final int[][][] docs;
+        final int[][][] freqs;
+        long count = 0;
+
+        Postings(IndexSearcher searcher, String field, List<Term> terms)
+        throws IOException {
+            IndexReader reader = searcher.getIndexReader();
+            leaves = reader.leaves();
+            collectionStats = searcher.collectionStatistics(field);
+            termStats = new TermStatistics[terms.size()];
+            docs = new int[terms.size()][leaves.size()][];
+            freqs = new int[terms.size()][leaves.size()][];
+
+            for(int t = 0; t < terms.size(); t++){
+                Term term = terms.get(t);
+                termStats[t] = searcher.termStatistics(term,
+                    TermContext.build(reader.getContext(), term));
+                for(int l = 0; l < leaves.size(); l++){
+                    PostingsEnum postings = leaves.get(l).reader()
+                        .postings(term, PostingsEnum.FREQS);
+                    int[] d = new int[16], f = new int[16];
+                    int n = 0;
+                    if(postings != null){
+                        while(postings.nextDoc() !=
+                                DocIdSetIterator.NO_MORE_DOCS){
+                            if(n == d.length){
+                                d = Arrays.copyOf(d, n * 2);
+                                f = Arrays.copyOf(f, n * 2);
+                            }
+                            d[n] = postings.docID();
+                            f[n++] = postings.freq();
+                        }
+                    }
+                    docs[t][l] = Arrays.copyOf(d, n);
+                    freqs[t][l] = Arrays.copyOf(f, n);
+                    count += n;
+                }
+            }
+        }
+    }
+
+    /**
+     * Weights every term and scores every posting with a similarity.
+     */
+    static void timeScoring(String model, Similarity similarity,
+        Postings postings) throws IOException {
+        double checksum = 0;
+        long start = System.nanoTime();
+
+        for(int t = 0; t < postings.termStats.length; t++){
+            Similarity.SimWeight weight = similarity.computeWeight(
+                postings.collectionStats, postings.termStats[t]);
+            weight.normalize(1.0f, 1.0f);
+            for(int l = 0; l < postings.leaves.size(); l++){
+                Similarity.SimScorer scorer = similarity.simScorer(weight,
+                    postings.leaves.get(l));
+                int[] docs = postings.docs[t][l], freqs = postings.freqs[t][l];
+                float sum = 0;
+                for(int i = 0; i < docs.length; i++)
+                    sum += scorer.score(docs[i], freqs[i]);
+                checksum += sum;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-16s score  %6.2f ns/posting %8.1f M postings/s"
+            +"  (checksum %.6g)\n", model, (double) elapsed / postings.count,
+            postings.count * 1e3 / elapsed, checksum);
+    }
+
+    /**
+     * Runs every query with a similarity, with the engine setting.
+     */
+    static void timeSearch(String model, Similarity similarity,
+        LTRSettings settings, IndexSearcher searcher, List<Query> queries)
+    throws IOException {
+        double checksum = 0;
+        long start;
+
+        searcher.setSimilarity(similarity);
+        start = System.nanoTime();
+        for(Query query : queries){
+            TopDocs results = BatchSearch.search(settings, searcher, query,
+                settings.returnedResultCount);
+            checksum += results.totalHits;
+            for(int i = 0; i < results.scoreDocs.length; i++)
+                checksum += results.scoreDocs[i].score * (i + 1)
+                    + results.scoreDocs[i].doc % 1000 * 1e-6;
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-16s search %6.3f ms/topic %-6s"
+            +"               (checksum %.10g)\n", model,
+            elapsed / 1e6 / queries.size(), settings.engine, checksum);
+    }
+}
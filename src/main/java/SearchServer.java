@@ -0,0 +1,493 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.queryparser.simple.SimpleQueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Element;
+
+/**
+ * Serves BatchSearch over HTTP, so that a warm JVM, reader and searcher can
+ * answer topic after topic without BatchSearch's start-up costs (starting
+ * the JVM, opening the index, loading the similarity and analyzer classes,
+ * and a cold page cache).
+ *
+ *   POST /search  -- the body is one or more &lt;top&gt; elements, as in a
+ *                    query file; the response is their results in TREC
+ *                    format (with snippets, if includeSnippets is set),
+ *                    exactly as BatchSearch would print them.
+ *   POST /reopen  -- reopens the index if it has changed (e.g., after an
+ *                    incremental build), without interrupting searches in
+ *                    progress; the response gives the index version.
+ *   GET  /stats   -- with reportLatency, the latency summary of the topics
+ *                    run so far (as BatchSearch prints it); in NRT mode, also
+ *                    the files ingested and how long they took to become
+ *                    visible to searches.
+ *
+ * The server listens on the loopback interface only, on the port given by
+ * the port setting. Requests are handled concurrently on settings.threads
+ * workers, all sharing the current searcher. Searchers are managed by a
+ * SearcherManager, so a search holds on to the searcher it started with
+ * until it is done, even if the index is reopened meanwhile.
+ *
+ * The index must be a single index; shards left by keepShards cannot be
+ * reopened together, so merge them first.
+ *
+ * With watchDirectory set, the server also keeps an IndexWriter open on the
+ * index (near-real-time mode). Every refreshSeconds, new files in the
+ * directory are indexed with FileParser, as IndexTREC would, and the
+ * searcher is refreshed from the writer, which makes what has been added
+ * searchable without a commit. Files should be moved into the directory once
+ * they are complete; names starting with '.' are ignored. An IndexCheckpoint
+ * tags documents with their file and records the files ingested in each
+ * commit (every commitEveryFiles files or commitEveryMinutes minutes, and on
+ * shutdown), so a restarted server picks up where it left off. The delay
+ * from a file being found to its documents being searchable is recorded for
+ * each file.
+ */
+public class SearchServer {
+    private final LTRSettings settings;
+    private final SearcherManager manager;
+    private final TrecAnalyzer analyzer;
+    private final SimpleQueryParser parser;
+    private final ExecutorService segmentPool;
+    private final QueryMetrics metrics;
+    private HttpServer server;
+
+    // Near-real-time mode only.
+    private IndexWriter writer;
+    private IndexCheckpoint checkpoint;
+    private Thread ingester;
+    // Set by stop(); the ingester is never interrupted, since an interrupt
+    // reaching the IndexWriter's NIO channels would close the writer.
+    private volatile boolean stopped = false;
+    private final Object wakeup = new Object();
+    private final LatencyRecorder visibility = new LatencyRecorder();
+    private final Set<File> failed = new HashSet<File>();
+    private long filesIngested = 0, docsIngested = 0, ingestNanos = 0;
+
+    // Files that have been indexed but may not be visible yet, with the
+    // time each was found.
+    private final Map<File, Long> pending = new LinkedHashMap<File, Long>();
+
+    /**
+     * Opens the index.
+     *
+     * @param settings The settings to search with.
+     */
+    public SearchServer(final LTRSettings settings) throws Exception {
+        Path indexPath = Paths.get(settings.indexPath);
+        final Similarity similarity =
+            BatchSearch.getSimilarityModel(settings,
+                settings.similarity);
+
+        if (!ShardedIndexer.shardPaths(indexPath).isEmpty())
+            throw new IllegalArgumentException("SearchServer needs a single "+
+                "index; "+ indexPath +" has shards");
+        if ("saat".equals(settings.engine) && settings.watchDirectory != null)
+            throw new IllegalArgumentException("The saat engine cannot be"
+                +" used with watchDirectory: its impacts (see ImpactIndex)"
+                +" are built for a fixed index, and every refresh of a"
+                +" watched index changes its segments");
+
+        this.settings = settings;
+        segmentPool = settings.segmentThreads > 1 ?
+            Executors.newFixedThreadPool(settings.segmentThreads) : null;
+        metrics = QueryMetrics.open(settings);
+        SearcherFactory factory = new SearcherFactory() {
+            @Override
+            public IndexSearcher newSearcher(IndexReader reader,
+                IndexReader previousReader) throws IOException {
+                IndexSearcher searcher =
+                    new IndexSearcher(reader, segmentPool);
+                searcher.setSimilarity(similarity);
+                // A new version of the index outdates its impacts; failing
+                // here keeps the manager on the old searcher.
+                if ("saat".equals(settings.engine))
+                    BatchSearch.impacts(settings, reader, similarity);
+                // Build the docno lookup now, rather than in the first
+                // search of the new reader.
+                DocnoLookup.forReader(reader);
+                return searcher;
+            }
+        };
+        if (settings.watchDirectory == null) {
+            manager = new SearcherManager(FSDirectory.open(indexPath),
+                factory);
+        } else {
+            openWriter(indexPath);
+            manager = new SearcherManager(writer, true, factory);
+            manager.addListener(new ReferenceManager.RefreshListener() {
+                private List<Map.Entry<File, Long>> refreshing;
+
+                public void beforeRefresh() {
+                    synchronized (pending) {
+                        refreshing = new ArrayList<Map.Entry<File, Long>>(
+                            pending.entrySet());
+                    }
+                }
+
+                public void afterRefresh(boolean didRefresh) {
+                    long now = System.nanoTime();
+                    synchronized (pending) {
+                        for (Map.Entry<File, Long> file : refreshing) {
+                            // With no refresh, the file added nothing.
+                            if (didRefresh)
+                                visibility.record(now - file.getValue());
+                            pending.remove(file.getKey());
+                        }
+                    }
+                }
+            });
+        }
+        analyzer = new TrecAnalyzer(settings);
+        parser = new SimpleQueryParser(analyzer, settings.searchField);
+    }
+
+    /**
+     * Opens a writer on the index, to add new files to, and the checkpoint
+     * that records which of the watched files have been indexed.
+     */
+    private void openWriter(Path indexPath) throws IOException {
+        Directory dir = FSDirectory.open(indexPath);
+        IndexWriterConfig iwc = new IndexWriterConfig(
+            new TrecAnalyzer(settings));
+        boolean resume = IndexCheckpoint.canResume(dir);
+
+        iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+        iwc.setRAMBufferSizeMB(settings.memory);
+        writer = new IndexWriter(dir, iwc);
+        checkpoint = new IndexCheckpoint(writer,
+            Paths.get(settings.watchDirectory), settings.commitEveryFiles,
+            settings.commitEveryMinutes, resume);
+    }
+
+    /**
+     * Indexes the files in the watched directory that have not been
+     * indexed yet, then refreshes the searcher.
+     */
+    private void ingest() throws IOException {
+        List<File> files = new ArrayList<File>();
+
+        for (File file :
+                IndexTREC.collectFiles(Paths.get(settings.watchDirectory)))
+            if (!file.getName().startsWith(".") && !failed.contains(file))
+                files.add(file);
+        for (File file : checkpoint.remainingFiles(files)) {
+            if (stopped)
+                return;
+            long found = System.nanoTime();
+            int docs;
+            try {
+                docs = FileParser.processFile(settings,
+                    checkpoint.sink(file), file);
+            } catch (Exception e) {
+                // Whatever the parser gives up on, the documents it added
+                // from the file must not become searchable.
+                System.err.println("Could not index "+ file +": "+ e);
+                checkpoint.sink(file).deleteSource();
+                failed.add(file);
+                continue;
+            }
+            checkpoint.completed(file);
+            synchronized (pending) {
+                pending.put(file, found);
+                filesIngested++;
+                docsIngested += docs;
+                ingestNanos += System.nanoTime() - found;
+            }
+        }
+        manager.maybeRefresh();
+    }
+
+    /**
+     * Starts the thread that ingests new files and refreshes the searcher
+     * every refreshSeconds.
+     */
+    private void startIngesting() {
+        ingester = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (!stopped) {
+                        try {
+                            ingest();
+                        } catch (Exception e) {
+                            // The thread must outlive any one bad round.
+                            System.err.println("Error ingesting files: "+ e);
+                        }
+                        long until = System.nanoTime() +
+                            (long) (settings.refreshSeconds * 1e9);
+                        synchronized (wakeup) {
+                            for (long left = until - System.nanoTime();
+                                 !stopped && left > 0;
+                                 left = until - System.nanoTime())
+                                wakeup.wait(Math.max(1, left / 1000000));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped.
+                }
+            }
+        }, "ingester");
+        ingester.setDaemon(true);
+        ingester.start();
+    }
+
+    /**
+     * Starts serving.
+     *
+     * @param port The port to listen on.
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/search", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleSearch(exchange);
+            }
+        });
+        server.createContext("/reopen", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleReopen(exchange);
+            }
+        });
+        server.createContext("/stats", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, stats() +"\n");
+            }
+        });
+        server.setExecutor(
+            Executors.newFixedThreadPool(Math.max(1, settings.threads)));
+        server.start();
+        if (writer != null)
+            startIngesting();
+        System.err.println("SearchServer listening on "+
+            server.getAddress() +", index version "+ version() +
+            (writer == null ? "" : ", watching "+ settings.watchDirectory));
+    }
+
+    /**
+     * Runs the topics in the request body and responds with their results.
+     */
+    private void handleSearch(HttpExchange exchange) throws IOException {
+        String body;
+        List<Element> topics;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        IndexSearcher searcher;
+
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "POST <top> elements to /search\n");
+            return;
+        }
+        try (InputStream in = exchange.getRequestBody()) {
+            body = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        topics = Jsoup.parse(body).select("top");
+        if (topics.isEmpty()) {
+            respond(exchange, 400, "No <top> elements in the request\n");
+            return;
+        }
+
+        searcher = manager.acquire();
+        try {
+            RunWriter out = new RunWriter(buffer, false);
+            for (Element elm : topics)
+                BatchSearch.runTopic(settings, searcher, elm, analyzer,
+                    parser, out, metrics, null);
+            out.close();
+        } catch (Exception e) {
+            respond(exchange, 500, "Error running topics: "+ e +"\n");
+            return;
+        } finally {
+            manager.release(searcher);
+        }
+        respond(exchange, 200, buffer.toByteArray());
+    }
+
+    /**
+     * Reopens the index if it has changed. If the new version cannot be
+     * searched (e.g., with saat, once it has outdated the impacts), the
+     * server stays on the old one.
+     */
+    private void handleReopen(HttpExchange exchange) throws IOException {
+        boolean changed;
+        long before = version();
+
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "POST to /reopen\n");
+            return;
+        }
+        try {
+            manager.maybeRefreshBlocking();
+        } catch (Exception e) {
+            respond(exchange, 500, "Error reopening the index, still on "+
+                "version "+ before +": "+ e +"\n");
+            return;
+        }
+        changed = version() != before;
+        respond(exchange, 200, (changed ? "reopened" : "unchanged") +
+            ": index version "+ version() +"\n");
+    }
+
+    /**
+     * @return The version of the index the current searcher is on.
+     */
+    private long version() throws IOException {
+        IndexSearcher searcher = manager.acquire();
+        try {
+            return ((DirectoryReader) searcher.getIndexReader()).getVersion();
+        } finally {
+            manager.release(searcher);
+        }
+    }
+
+    /**
+     * @return The latency summary (with reportLatency) and, in NRT mode, the
+     *         files ingested and their ingestion-to-visibility delays.
+     */
+    private String stats() {
+        StringBuilder stats = new StringBuilder();
+
+        if (metrics != null)
+            stats.append(metrics.summary(null));
+        if (writer != null) {
+            synchronized (pending) {
+                if (stats.length() > 0)
+                    stats.append('\n');
+                stats.append(String.format("ingested %d files, %d docs, "+
+                    "in %.2f s; %d not yet visible\n", filesIngested,
+                    docsIngested, ingestNanos / 1e9, pending.size()));
+            }
+            stats.append(visibility.summary("visibility"));
+        }
+        return stats.toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status,
+        String text) throws IOException {
+        respond(exchange, status, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void respond(HttpExchange exchange, int status,
+        byte[] bytes) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type",
+            "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Stops serving and closes the index.
+     */
+    public void stop() throws IOException {
+        if (server != null)
+            server.stop(0);
+        if (ingester != null) {
+            // The file being indexed, if any, is finished first.
+            stopped = true;
+            synchronized (wakeup) {
+                wakeup.notifyAll();
+            }
+            try {
+                ingester.join();
+            } catch (InterruptedException e) {
+                // Close anyway.
+            }
+        }
+        if (server != null && stats().length() > 0)
+            System.err.println(stats());
+        manager.close();
+        if (writer != null) {
+            checkpoint.setCommitData();
+            writer.close();
+        }
+        if (segmentPool != null)
+            segmentPool.shutdown();
+    }
+
+    public static void main(String[] args) throws Exception {
+        LTRSettings ltrSettings = null;
+        String usage = "Usage:\tjava SearchServer"
+            + " [-settings SETTINGS_FILE] [-index dir]\n"
+            + "\t[-similarity similarity] [-field f] [-port PORT]\n"
+            + "\t[-stop STOP_FILE] [-stem STEMMER_NAME]"
+            + " [-threads NUM_THREADS]\n"
+            + "\t[-segmentThreads NUM_THREADS] [-reportLatency true|false]\n"
+            + "\t[-watchDirectory dir] [-refreshSeconds SECONDS]\n";
+
+        if (args.length > 0 &&
+                ("-h".equals(args[0]) || "-help".equals(args[0]))) {
+            System.err.println(usage);
+            System.exit(0);
+        }
+
+        // As in BatchSearch, the settings file is read first, and the other
+        // command line settings override it.
+        for (int i = 0; i < args.length; i++) {
+            if ("-settings".equals(args[i])) {
+                try {
+                    ltrSettings = LTRSettings.generateFromFile(args[i+1]);
+                } catch (FileNotFoundException e) {
+                    System.err.println("LTR settings file not found ("+
+                        args[i+1] +").");
+                    System.exit(1);
+                }
+            }
+        }
+        if (ltrSettings == null)
+            ltrSettings = new LTRSettings();
+        ltrSettings.parseCommandLineArguments(args);
+
+        if (ltrSettings.similarity == null) {
+            System.out.println("SearchServer: Similarity not specified\n");
+            System.exit(0);
+        }
+
+        final SearchServer server = new SearchServer(ltrSettings);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    server.stop();
+                } catch (IOException e) {
+                    System.err.println("Error closing the index: "+ e);
+                }
+            }
+        });
+        server.start(ltrSettings.port);
+    }
+}
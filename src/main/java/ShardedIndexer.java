@@ -0,0 +1,300 @@
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds an index as a number of shards, each indexed into its own directory
+ * (shard-0, shard-1, ... under the index directory) by its own IndexWriter
+ * on its own thread, so that the writers do not contend with each other for
+ * flushes and merges. The corpus files are split between the shards by size,
+ * so that each gets about the same amount of text.
+ *
+ * Once the shards are built they are combined into a single index with
+ * IndexWriter.addIndexes() and deleted, unless the keepShards setting is
+ * true, in which case they are left to be searched together (see
+ * openReader()).
+ *
+ * The wall-clock time of each phase (partitioning, indexing, merging) is
+ * printed as the build goes.
+ */
+public class ShardedIndexer {
+    public static final String SHARD_PREFIX = "shard-";
+
+    private final LTRSettings settings;
+    private final Path indexPath;
+    private final int shards;
+    private final IndexMetrics metrics;
+
+    /**
+     * @param settings The global settings.
+     * @param indexPath The index directory; shards are built beneath it.
+     * @param shards The number of shards to build.
+     * @param metrics The metrics to record the build in.
+     */
+    public ShardedIndexer(LTRSettings settings, Path indexPath, int shards,
+        IndexMetrics metrics) {
+        this.settings = settings;
+        this.indexPath = indexPath;
+        this.shards = Math.max(1, shards);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Splits files into partitions of about the same total size: each file,
+     * largest first, goes to the partition with the fewest bytes so far.
+     *
+     * @param files The files to split.
+     * @param partitions The number of partitions.
+     * @return The partitions, each in the order its files were assigned.
+     */
+    public static List<List<File>> partition(List<File> files,
+        int partitions) {
+        final long[] bytes = new long[partitions];
+        List<List<File>> parts = new ArrayList<List<File>>();
+        List<File> sorted = new ArrayList<File>(files);
+        PriorityQueue<Integer> smallest = new PriorityQueue<Integer>(
+            partitions, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    int c = Long.compare(bytes[a], bytes[b]);
+                    return c != 0 ? c : Integer.compare(a, b);
+                }
+            });
+
+        for(int i = 0; i < partitions; i++){
+            parts.add(new ArrayList<File>());
+            smallest.add(i);
+        }
+        ParallelIndexer.sortLargestFirst(sorted);
+        for(File file : sorted){
+            int part = smallest.poll();
+            parts.get(part).add(file);
+            bytes[part] += file.length();
+            smallest.add(part);
+        }
+        return parts;
+    }
+
+    /**
+     * Builds the index from the given files.
+     *
+     * @param files The corpus files.
+     */
+    public void build(List<File> files) throws IOException {
+        long start = System.nanoTime(), phaseStart = start;
+        List<Future<ParallelIndexer.WorkerStats>> futures =
+            new ArrayList<Future<ParallelIndexer.WorkerStats>>();
+        ExecutorService pool = Executors.newFixedThreadPool(shards);
+        List<List<File>> parts;
+
+        deleteShards(indexPath);
+        parts = partition(files, shards);
+        phaseStart = phase("partition", phaseStart);
+
+        for(int s = 0; s < shards; s++){
+            final int shard = s;
+            final List<File> part = parts.get(s);
+            futures.add(pool.submit(
+                new Callable<ParallelIndexer.WorkerStats>() {
+                    public ParallelIndexer.WorkerStats call()
+                    throws IOException {
+                        return indexShard(shard, part);
+                    }
+                }));
+        }
+        pool.shutdown();
+        try {
+            for(Future<ParallelIndexer.WorkerStats> future : futures)
+                System.out.println(future.get().toString("shard"));
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            throw new IOException("Indexing interrupted", e);
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+        phaseStart = phase("index", phaseStart);
+
+        if(settings.keepShards){
+            // Leave an empty index at the top level, so that no documents
+            // from an earlier build are left there.
+            writer(indexPath, settings.memory).close();
+        } else {
+            merge();
+            deleteShards(indexPath);
+            phase("merge", phaseStart);
+        }
+        phase("total", start);
+    }
+
+    /**
+     * Prints the time since a phase started.
+     *
+     * @return The time now, to start the next phase.
+     */
+    private static long phase(String name, long phaseStart) {
+        long now = System.nanoTime();
+        System.out.println(String.format("%-10s %8.1f s", name,
+            (now - phaseStart) / 1e9));
+        return now;
+    }
+
+    /**
+     * Indexes one shard's files into its own directory.
+     */
+    private ParallelIndexer.WorkerStats indexShard(int shard, List<File> files)
+    throws IOException {
+        ParallelIndexer.WorkerStats stats =
+            new ParallelIndexer.WorkerStats(shard);
+        long start = System.nanoTime();
+
+        try(IndexWriter writer = writer(shardPath(indexPath, shard),
+                settings.memory / shards)){
+            for(File file : files){
+                try {
+                    stats.docs += FileParser.processFile(
+                        settings, writer, file);
+                    stats.bytes += file.length();
+                    stats.files++;
+                } catch (IOException ignore) {
+                    // don't index files that can't be read.
+                }
+            }
+        }
+        stats.nanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    /**
+     * Combines the shards into the index at the top level.
+     */
+    private void merge() throws IOException {
+        List<Path> paths = shardPaths(indexPath);
+        Directory[] dirs = new Directory[paths.size()];
+
+        for(int i = 0; i < dirs.length; i++)
+            dirs[i] = FSDirectory.open(paths.get(i));
+        try(IndexWriter writer = writer(indexPath, settings.memory)){
+            writer.addIndexes(dirs);
+        } finally {
+            for(Directory dir : dirs)
+                dir.close();
+        }
+    }
+
+    /**
+     * @return A writer that creates a new index in the given directory.
+     */
+    private IndexWriter writer(Path path, double memory) throws IOException {
+        IndexWriterConfig iwc = new IndexWriterConfig(
+            new TrecAnalyzer(settings));
+        iwc.setOpenMode(OpenMode.CREATE);
+        iwc.setRAMBufferSizeMB(memory);
+        iwc.setInfoStream(metrics.infoStream());
+        return metrics.register(new IndexWriter(FSDirectory.open(path), iwc));
+    }
+
+    /**
+     * @param indexPath The index directory.
+     * @param shard The shard number.
+     * @return The directory of the given shard.
+     */
+    public static Path shardPath(Path indexPath, int shard) {
+        return indexPath.resolve(SHARD_PREFIX + shard);
+    }
+
+    /**
+     * @param indexPath The index directory.
+     * @return The shard directories under it, in shard order; empty if the
+     *         index is not sharded.
+     */
+    public static List<Path> shardPaths(Path indexPath) throws IOException {
+        List<Path> paths = new ArrayList<Path>();
+        if(!Files.isDirectory(indexPath))
+            return paths;
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(
+                indexPath, SHARD_PREFIX + "*")){
+            for(Path path : stream)
+                if(Files.isDirectory(path))
+                    paths.add(path);
+        }
+        Collections.sort(paths, new Comparator<Path>() {
+            public int compare(Path a, Path b) {
+                return Integer.compare(shardNumber(a), shardNumber(b));
+            }
+        });
+        return paths;
+    }
+
+    private static int shardNumber(Path path) {
+        try {
+            return Integer.parseInt(path.getFileName().toString()
+                .substring(SHARD_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Deletes any shard directories under the index directory.
+     *
+     * @param indexPath The index directory.
+     */
+    public static void deleteShards(Path indexPath) throws IOException {
+        for(Path path : shardPaths(indexPath))
+            FileUtils.deleteDirectory(path.toFile());
+    }
+
+    /**
+     * Opens an index for searching: a MultiReader over its shards if it was
+     * built with keepShards, or else the index itself.
+     *
+     * @param indexPath The index directory.
+     * @return A reader over the whole index.
+     */
+    public static IndexReader openReader(Path indexPath) throws IOException {
+        List<Path> paths = shardPaths(indexPath);
+        IndexReader[] readers;
+
+        if(paths.isEmpty())
+            return DirectoryReader.open(FSDirectory.open(indexPath));
+
+        readers = new IndexReader[paths.size()];
+        try {
+            for(int i = 0; i < readers.length; i++)
+                readers[i] = DirectoryReader.open(
+                    FSDirectory.open(paths.get(i)));
+        } catch (IOException e) {
+            for(IndexReader reader : readers)
+                if(reader != null)
+                    reader.close();
+            throw e;
+        }
+        return new MultiReader(readers);
+    }
+}
@@ -0,0 +1,431 @@
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.highlight.Highlighter;
+import org.apache.lucene.search.highlight.QueryScorer;
+import org.apache.lucene.search.highlight.SimpleFragmenter;
+import org.apache.lucene.search.highlight.SimpleHTMLFormatter;
+import org.apache.lucene.search.highlight.TokenSources;
+import org.apache.lucene.search.postingshighlight.Passage;
+import org.apache.lucene.search.postingshighlight.PassageFormatter;
+import org.apache.lucene.search.postingshighlight.PostingsHighlighter;
+
+import java.io.IOException;
+import java.text.BreakIterator;
+import java.text.CharacterIterator;
+import java.text.StringCharacterIterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Builds the snippets that BatchSearch prints under each result when
+ * includeSnippets is set. There are two engines:
+ *
+ *   postings    -- a PostingsHighlighter, which finds the query terms in a
+ *                  document from the offsets recorded in its postings (see
+ *                  the indexOffsets setting) and picks the best fragments,
+ *                  without re-analyzing the stored text;
+ *   highlighter -- the Highlighter that BatchSearch has always used, which
+ *                  re-tokenizes the stored text of each hit.
+ *
+ * The snippetEngine setting picks one; "auto" (the default) uses postings if
+ * the search field was indexed with offsets in every segment, and the
+ * highlighter otherwise. Either way, matches are marked with &lt;B&gt; and
+ * &lt;/B&gt;, fragments are joined with "...", and the snippet is given the
+ * same leading and trailing "..." as before.
+ *
+ * With snippetThreads above 1, the hits of a query are split into that many
+ * slices which are highlighted concurrently (on a pool of that many threads
+ * shared by all queries).
+ */
+public class SnippetGenerator {
+    // The pools that slices are highlighted on, by number of threads.
+    private static final Map<Integer, ExecutorService> pools =
+        new HashMap<Integer, ExecutorService>();
+
+    private final LTRSettings settings;
+    private final IndexSearcher searcher;
+    private final boolean postings;
+
+    /**
+     * @param settings The global settings.
+     * @param searcher The searcher the hits came from.
+     */
+    public SnippetGenerator(LTRSettings settings, IndexSearcher searcher) {
+        this.settings = settings;
+        this.searcher = searcher;
+        if(settings.snippetEngine.equals("postings"))
+            postings = true;
+        else if(settings.snippetEngine.equals("highlighter"))
+            postings = false;
+        else
+            postings = hasOffsets(searcher.getIndexReader(),
+                settings.searchField);
+    }
+
+    /**
+     * @return True if the field was indexed with offsets in every segment.
+     */
+    public static boolean hasOffsets(IndexReader reader, String field) {
+        for(LeafReaderContext leaf : reader.leaves()){
+            FieldInfo info = leaf.reader().getFieldInfos().fieldInfo(field);
+            if(info != null && info.getIndexOptions() != IndexOptions
+                    .DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS)
+                return false;
+        }
+        return !reader.leaves().isEmpty();
+    }
+
+    /**
+     * @return True if snippets are built from the postings.
+     */
+    public boolean usesPostings() {
+        return postings;
+    }
+
+    /**
+     * Builds the snippets of a number of hits.
+     *
+     * @param query The query the hits matched.
+     * @param analyzer The analyzer to re-tokenize text with (only used by
+     *                 the highlighter engine).
+     * @param docids The hits' document ids.
+     * @return The snippet of each hit, in the same order; null for a hit
+     *         whose snippet could not be built (a message is printed).
+     */
+    public String[] snippets(final Query query, final Analyzer analyzer,
+        final int[] docids) throws IOException {
+        final String[] snippets = new String[docids.length];
+        int slices = Math.min(settings.snippetThreads, docids.length);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        if(slices <= 1){
+            snippets(query, analyzer, docids, 0, docids.length, snippets);
+            return snippets;
+        }
+
+        for(int s = 0; s < slices; s++){
+            final int start = (int) ((long) docids.length * s / slices);
+            final int end = (int) ((long) docids.length * (s + 1) / slices);
+            futures.add(pool(settings.snippetThreads).submit(
+                new Callable<Void>() {
+                    public Void call() throws IOException {
+                        snippets(query, analyzer, docids, start, end,
+                            snippets);
+                        return null;
+                    }
+                }));
+        }
+        try {
+            for(Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Snippet generation interrupted", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+        return snippets;
+    }
+
+    /**
+     * Builds the snippets of docids[start] to docids[end - 1].
+     */
+    private void snippets(Query query, Analyzer analyzer, int[] docids,
+        int start, int end, String[] snippets) throws IOException {
+        if(!postings){
+            for(int i = start; i < end; i++)
+                snippets[i] = highlight(query, analyzer, docids[i]);
+            return;
+        }
+
+        try {
+            String[] fragments = highlightPostings(query,
+                Arrays.copyOfRange(docids, start, end));
+            for(int i = start; i < end; i++)
+                snippets[i] = decorate(fragments[i - start] == null ? "" :
+                    fragments[i - start]);
+        } catch(Exception e) {
+            // Find the hits at fault one by one; the others keep theirs.
+            for(int i = start; i < end; i++){
+                try {
+                    String[] fragments = highlightPostings(query,
+                        new int[] {docids[i]});
+                    snippets[i] = decorate(fragments[0] == null ? "" :
+                        fragments[0]);
+                } catch(Exception ex) {
+                    System.err.println("Problem extracting snippet: "+
+                        ex.getMessage());
+                    snippets[i] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Highlights some hits with the postings highlighter.
+     *
+     * @return The fragments of each hit, null for a hit without a match.
+     */
+    private String[] highlightPostings(Query query, int[] docids)
+    throws IOException {
+        String field = settings.searchField;
+        int[] maxPassages = {settings.maxSnippetFragments};
+        return new SnippetHighlighter().highlightFields(new String[] {field},
+            query, searcher, docids, maxPassages).get(field);
+    }
+
+    /**
+     * Builds a snippet with the Highlighter, re-tokenizing the stored text.
+     */
+    private String highlight(Query query, Analyzer analyzer, int docid) {
+        try {
+            Document doc = searcher.doc(docid);
+            String textToHighlight = BatchSearch.concatenateFieldValues(
+                doc, settings.searchField);
+            Highlighter highlighter = new Highlighter(
+                new SimpleHTMLFormatter(), new QueryScorer(query));
+            highlighter.setTextFragmenter(new SimpleFragmenter(
+                BatchSearch.FRAGMENT_SIZE_CHARS));
+
+            TokenStream tokenStream = TokenSources.getTokenStream(
+                settings.searchField, null, textToHighlight, analyzer, -1);
+
+            return decorate(highlighter.getBestFragments(tokenStream,
+                textToHighlight, settings.maxSnippetFragments, "..."));
+        } catch(Exception e) {
+            System.err.println("Problem extracting snippet: "+
+                e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Adds the trailing "..." and, unless the snippet starts with a capital
+     * (likely the start of a sentence), a leading one.
+     */
+    private static String decorate(String fragments) {
+        String snippet = fragments +"...";
+        if(!Character.isUpperCase(snippet.charAt(0)))
+            snippet = "..."+ snippet;
+        return snippet;
+    }
+
+    /**
+     * @return The pool of a number of threads that slices of hits are
+     *         highlighted on.
+     */
+    private static synchronized ExecutorService pool(int threads) {
+        ExecutorService pool = pools.get(threads);
+        if(pool == null){
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "snippets");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            pools.put(threads, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * A PostingsHighlighter that looks at the whole field, cuts it into
+     * fragments with FragmentBreakIterator, returns nothing for a document
+     * without a match (as the Highlighter does) and formats passages with
+     * SnippetFormatter.
+     */
+    private static class SnippetHighlighter extends PostingsHighlighter {
+        private static final PassageFormatter FORMATTER =
+            new SnippetFormatter();
+
+        SnippetHighlighter() {
+            super(Integer.MAX_VALUE - 1);
+        }
+
+        @Override
+        protected PassageFormatter getFormatter(String field) {
+            return FORMATTER;
+        }
+
+        @Override
+        protected BreakIterator getBreakIterator(String field) {
+            return new FragmentBreakIterator(BatchSearch.FRAGMENT_SIZE_CHARS);
+        }
+
+        @Override
+        protected Passage[] getEmptyHighlight(String fieldName,
+            BreakIterator bi, int maxPassages) {
+            return new Passage[0];
+        }
+    }
+
+    /**
+     * Breaks text into fragments of about the size the Highlighter's
+     * SimpleFragmenter uses, rather than into sentences (TREC text often has
+     * no sentence punctuation to speak of, which would make the whole
+     * document one passage). A fragment starts at the start of a word and
+     * ends at the first white space at least fragmentSize characters later.
+     *
+     * Only what PostingsHighlighter needs is implemented faithfully: the
+     * fragment around a match is found with preceding(matchStart + 1)
+     * followed by next().
+     */
+    static class FragmentBreakIterator extends BreakIterator {
+        private final int fragmentSize;
+        private String text = "";
+        private int current = 0;
+
+        FragmentBreakIterator(int fragmentSize) {
+            this.fragmentSize = fragmentSize;
+        }
+
+        private int wordStart(int offset) {
+            while(offset > 0 && !Character.isWhitespace(text.charAt(offset-1)))
+                offset--;
+            return offset;
+        }
+
+        private int fragmentEnd(int offset) {
+            int end = offset + fragmentSize;
+            while(end < text.length() &&
+                  !Character.isWhitespace(text.charAt(end)))
+                end++;
+            return Math.min(end, text.length());
+        }
+
+        @Override
+        public int first() {
+            return current = 0;
+        }
+
+        @Override
+        public int last() {
+            return current = text.length();
+        }
+
+        @Override
+        public int next(int n) {
+            int boundary = current;
+            for(int i = 0; i < n && boundary != DONE; i++)
+                boundary = next();
+            for(int i = 0; i > n && boundary != DONE; i--)
+                boundary = previous();
+            return boundary;
+        }
+
+        @Override
+        public int next() {
+            if(current >= text.length())
+                return DONE;
+            return current = fragmentEnd(current);
+        }
+
+        @Override
+        public int previous() {
+            if(current <= 0)
+                return DONE;
+            return current = wordStart(Math.max(0, current - fragmentSize));
+        }
+
+        @Override
+        public int following(int offset) {
+            if(offset >= text.length()){
+                current = text.length();
+                return DONE;
+            }
+            return current = fragmentEnd(offset);
+        }
+
+        @Override
+        public int preceding(int offset) {
+            if(offset <= 0){
+                current = 0;
+                return DONE;
+            }
+            return current = wordStart(offset - 1);
+        }
+
+        @Override
+        public int current() {
+            return current;
+        }
+
+        @Override
+        public CharacterIterator getText() {
+            return new StringCharacterIterator(text);
+        }
+
+        @Override
+        public void setText(String newText) {
+            text = newText;
+            current = 0;
+        }
+
+        @Override
+        public void setText(CharacterIterator newText) {
+            StringBuilder chars = new StringBuilder();
+            for(char c = newText.first(); c != CharacterIterator.DONE;
+                c = newText.next())
+                chars.append(c);
+            setText(chars.toString());
+        }
+    }
+
+    /**
+     * Formats passages as the Highlighter formats fragments: each match is
+     * wrapped in &lt;B&gt;&lt;/B&gt;, and passages (trimmed of the white
+     * space around them) are joined with "...".
+     */
+    static class SnippetFormatter extends PassageFormatter {
+        @Override
+        public Object format(Passage[] passages, String content) {
+            StringBuilder snippet = new StringBuilder();
+            StringBuilder text = new StringBuilder();
+
+            for(int p = 0; p < passages.length; p++){
+                Passage passage = passages[p];
+                int pos = passage.getStartOffset();
+                int[] starts = passage.getMatchStarts();
+                int[] ends = passage.getMatchEnds();
+
+                text.setLength(0);
+                for(int i = 0; i < passage.getNumMatches(); i++){
+                    if(starts[i] > pos)
+                        text.append(content, pos, starts[i]);
+                    if(ends[i] > pos){
+                        text.append("<B>")
+                            .append(content, Math.max(pos, starts[i]), ends[i])
+                            .append("</B>");
+                        pos = ends[i];
+                    }
+                }
+                text.append(content, pos,
+                    Math.max(pos, passage.getEndOffset()));
+                if(p > 0)
+                    snippet.append("...");
+                snippet.append(text.toString().trim());
+            }
+            return snippet.toString();
+        }
+    }
+}
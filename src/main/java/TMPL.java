@@ -62,19 +62,23 @@ public class TMPL extends Similarity {
 	throws IOException
     {
 	TFIDFWeight tw = (TFIDFWeight) sw;
-	return new TFIDFScorer(tw, context.reader().getNormValues(tw.field));
+	return new TFIDFScorer(tw, context.reader().getNormValues(tw.field),
+			       DocLengths.get(context.reader(), tw.field));
     }
 
     public class TFIDFScorer extends SimScorer
     {
 	private final TFIDFWeight tw;
 	private final NumericDocValues norms;
+	private final DocLengths.Lengths lengths;
     
-	TFIDFScorer(TFIDFWeight tw, NumericDocValues norms)
+	TFIDFScorer(TFIDFWeight tw, NumericDocValues norms,
+		    DocLengths.Lengths lengths)
 	    throws IOException
 	{
-	    this.tw    = tw;
-	    this.norms = norms;
+	    this.tw      = tw;
+	    this.norms   = norms;
+	    this.lengths = lengths;
 	}
 
 	@Override
@@ -83,7 +87,10 @@ public class TMPL extends Similarity {
 	    float idf, dl, adl, K, w;
 	    idf = tw.idf;
 	    adl = tw.adl;
-	    dl = (float)norms.get(doc);
+	    // The exact length (and lengths.uniqueTerms(doc), the number of
+	    // distinct terms), if the index has a DocLengths store.
+	    dl = lengths != null ? (float)lengths.length(doc)
+				 : (float)norms.get(doc);
 	    K = 1.0f;
 	    w = 1.0f;
 	    return w;
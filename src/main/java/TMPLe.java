@@ -44,7 +44,8 @@ public class TMPLe extends Similarity {
     public final SimWeight computeWeight(CollectionStatistics collectionStats,
 					 TermStatistics... termStats)
     {
-	float N, n, idf, adl;
+	float N, n, idf, adl, dl;
+	float[] cache;
 	idf = 1.0f;
 	N   = collectionStats.maxDoc();
 	adl = collectionStats.sumTotalTermFreq() / N;
@@ -59,8 +60,15 @@ public class TMPLe extends Similarity {
 		idf += log(N/n);
 	    }
 	}
+
+	// K = f(dl, adl) for each of the 256 norm bytes.
+	cache = new float[256];
+	for (int i = 0; i < 256; i++) {
+	    dl = decodeNorm((byte)i);
+	    cache[i] = 1.0f;
+	}
 	
-	return new TFIDFWeight(collectionStats.field(), idf, adl);
+	return new TFIDFWeight(collectionStats.field(), idf, adl, cache);
     }
 
     @Override
@@ -86,11 +94,9 @@ public class TMPLe extends Similarity {
 	@Override
 	public float score(int doc, float tf)
 	{
-	    float idf, dl, adl, K, w;
+	    float idf, K, w;
 	    idf = tw.idf;
-	    adl = tw.adl;
-	    dl = decodeNorm((byte)((byte)norms.get(doc) & 0xFF));
-	    K = 1.0f;
+	    K = tw.cache[(int)norms.get(doc) & 0xFF];
 	    w = 1.0f;
 	    return w;
 	}
@@ -113,12 +119,14 @@ public class TMPLe extends Similarity {
 	private final String field;
 	private final float idf;
 	private final float adl;
+	private final float[] cache;
 	
-	public TFIDFWeight(String field, float idf, float adl)
+	public TFIDFWeight(String field, float idf, float adl, float[] cache)
 	{
 	    this.field = field;
 	    this.idf   = idf;
 	    this.adl   = adl;
+	    this.cache = cache;
 	}
 
 	@Override
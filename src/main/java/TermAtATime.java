@@ -0,0 +1,372 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.Bits;
+
+/**
+ * A term-at-a-time search engine for bag-of-words queries, i.e., a single
+ * TermQuery or a BooleanQuery of SHOULD TermQuerys, without boosts, which is
+ * what SimpleQueryParser makes of a TREC topic. Segment by segment, the postings
+ * of one term after another are scored with the searcher's similarity and
+ * added into an accumulator array as large as the segment; the matched
+ * documents are then run through a priority queue for the top n.
+ *
+ * The results are the same as IndexSearcher.search()'s, hit for hit and
+ * score for score: each term is weighted and normalized as TermQuery and
+ * BooleanQuery weight it, a document's term scores are summed as a double
+ * (as BooleanScorer does, so the order they are added in makes no
+ * difference), deleted documents are skipped, and ties are broken by docid
+ * as in TopScoreDocCollector. Any other query is handed to
+ * IndexSearcher.search(), as is any query whose similarity has a coord
+ * factor (e.g., DefaultSimilarity): Lucene 5.4's BooleanScorer applies coord
+ * to some documents and not others (its scores disagree with explain()), so
+ * it cannot be matched. The similarities of this package have none.
+ *
+ * Unlike IndexSearcher, segments are searched one after another even if the
+ * searcher has an executor. Each thread keeps its accumulators (12 bytes
+ * and a bit per document of the largest segment) from one query to the
+ * next.
+ */
+public class TermAtATime {
+    private TermAtATime() {}
+
+    private static final ThreadLocal<Accumulators> accumulators =
+        new ThreadLocal<Accumulators>() {
+            @Override
+            protected Accumulators initialValue() {
+                return new Accumulators();
+            }
+        };
+
+    /**
+     * Finds the top n hits for a query.
+     *
+     * @param searcher The searcher, whose similarity scores the query.
+     * @param query The query.
+     * @param n The number of hits to return.
+     * @return The hits, as IndexSearcher.search(query, n) returns them.
+     */
+    public static TopDocs search(IndexSearcher searcher, Query query, int n)
+    throws IOException {
+        Query rewritten = searcher.rewrite(query);
+        List<Term> terms = bagOfTerms(rewritten);
+
+        if (terms == null)
+            return searcher.search(query, n);
+        if (terms.size() > 1 && rewritten instanceof BooleanQuery &&
+                !((BooleanQuery) rewritten).isCoordDisabled()) {
+            Similarity similarity = searcher.getSimilarity(true);
+            for (int i = 1; i <= terms.size(); i++)
+                if (similarity.coord(i, terms.size()) != 1f)
+                    return searcher.search(query, n);
+        }
+        return search(searcher, terms,
+            Math.min(n, Math.max(1, searcher.getIndexReader().maxDoc())));
+    }
+
+    /**
+     * @param rewritten A rewritten query.
+     * @return The terms of the query if it is a bag of words (a TermQuery,
+     *         or a BooleanQuery of SHOULD TermQuerys, at least one of which
+     *         must match) with no boosts, or else null.
+     */
+    static List<Term> bagOfTerms(Query rewritten) {
+        List<Term> terms = new ArrayList<Term>();
+
+        // Boosts are left to Lucene: rewriting makes a BoostQuery of any
+        // boosted query, which is not a bag of words.
+        if (rewritten instanceof TermQuery) {
+            terms.add(((TermQuery) rewritten).getTerm());
+        } else if (rewritten instanceof BooleanQuery) {
+            BooleanQuery booleanQuery = (BooleanQuery) rewritten;
+            if (booleanQuery.getMinimumNumberShouldMatch() > 1)
+                return null;
+            for (BooleanClause clause : booleanQuery) {
+                if (clause.getOccur() != BooleanClause.Occur.SHOULD ||
+                        clause.getQuery().getClass() != TermQuery.class)
+                    return null;
+                terms.add(((TermQuery) clause.getQuery()).getTerm());
+            }
+        }
+        return terms.isEmpty() ? null : terms;
+    }
+
+    private static TopDocs search(IndexSearcher searcher, List<Term> terms,
+        int n)
+    throws IOException {
+        IndexReaderContext top = searcher.getTopReaderContext();
+        Similarity similarity = searcher.getSimilarity(true);
+        TermContext[] contexts = new TermContext[terms.size()];
+        Similarity.SimWeight[] weights =
+            new Similarity.SimWeight[terms.size()];
+        float sum = 0.0f, norm;
+
+        // Weight the terms as TermWeight does, and normalize them as
+        // IndexSearcher.createNormalizedWeight() and BooleanWeight do.
+        for (int i = 0; i < terms.size(); i++) {
+            Term term = terms.get(i);
+            contexts[i] = TermContext.build(top, term);
+            weights[i] = similarity.computeWeight(
+                searcher.collectionStatistics(term.field()),
+                searcher.termStatistics(term, contexts[i]));
+            sum += weights[i].getValueForNormalization();
+        }
+        norm = similarity.queryNorm(sum);
+        if (Float.isInfinite(norm) || Float.isNaN(norm))
+            norm = 1.0f;
+        for (Similarity.SimWeight weight : weights)
+            weight.normalize(norm, 1.0f);
+
+        Accumulators acc = accumulators.get();
+        HitQueue queue = new HitQueue(n);
+        int totalHits = 0;
+
+        for (LeafReaderContext leaf : top.leaves()) {
+            int maxDoc = leaf.reader().maxDoc();
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            TermsEnum termsEnum = null;
+            String field = null;
+            acc.grow(maxDoc);
+            double[] scores = acc.scores;
+            long[] matched = acc.matched;
+
+            for (int i = 0; i < terms.size(); i++) {
+                Term term = terms.get(i);
+                TermState state = contexts[i].get(leaf.ord);
+                if (state == null)
+                    continue;
+                if (!term.field().equals(field)) {
+                    field = term.field();
+                    termsEnum = leaf.reader().terms(field).iterator();
+                }
+                termsEnum.seekExact(term.bytes(), state);
+                PostingsEnum postings = termsEnum.postings(null,
+                    PostingsEnum.FREQS);
+                Similarity.SimScorer scorer =
+                    similarity.simScorer(weights[i], leaf);
+
+                for (int doc = postings.nextDoc();
+                        doc != DocIdSetIterator.NO_MORE_DOCS;
+                        doc = postings.nextDoc()) {
+                    scores[doc] += scorer.score(doc, postings.freq());
+                    matched[doc >>> 6] |= 1L << doc;
+                }
+            }
+
+            // No hit scoring below the segment's n-th highest score can
+            // make the top n, so only those at or above it are queued.
+            float[] selected = acc.selected;
+            int words = (maxDoc + 63) >>> 6, count = 0;
+            for (int w = 0; w < words; w++) {
+                for (long word = matched[w]; word != 0; word &= word - 1) {
+                    int doc = (w << 6) + Long.numberOfTrailingZeros(word);
+                    if (liveDocs == null || liveDocs.get(doc))
+                        selected[count++] = (float) scores[doc];
+                }
+            }
+            float threshold = count > n ? select(selected, count, count - n) :
+                Float.NEGATIVE_INFINITY;
+            totalHits += count;
+
+            // Queue them in docid order, clearing the accumulators for the
+            // next segment or query.
+            for (int w = 0; w < words; w++) {
+                long word = matched[w];
+                if (word == 0)
+                    continue;
+                matched[w] = 0;
+                do {
+                    int doc = (w << 6) + Long.numberOfTrailingZeros(word);
+                    float score = (float) scores[doc];
+                    word &= word - 1;
+                    scores[doc] = 0;
+                    if (score >= threshold && score > queue.minScore &&
+                            (liveDocs == null || liveDocs.get(doc)))
+                        queue.insert(leaf.docBase + doc, score);
+                } while (word != 0);
+            }
+        }
+
+        if (totalHits == 0)
+            return new TopDocs(0, new ScoreDoc[0], Float.NaN);
+        ScoreDoc[] hits = queue.hits(totalHits);
+        return new TopDocs(totalHits, hits, hits[0].score);
+    }
+
+    /**
+     * Partially sorts an array by quickselect.
+     *
+     * @param values The values; reordered.
+     * @param length The number of values.
+     * @param k An index into the values.
+     * @return The value that would be at index k if the values were sorted
+     *         in ascending order.
+     */
+    static float select(float[] values, int length, int k) {
+        int lo = 0, hi = length - 1;
+
+        while (lo < hi) {
+            // Hoare's partition around the median of three.
+            int mid = (lo + hi) >>> 1;
+            float a = values[lo], b = values[mid], c = values[hi];
+            float pivot = a < b ? (b < c ? b : (a < c ? c : a)) :
+                (a < c ? a : (b < c ? c : b));
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (values[i] < pivot)
+                    i++;
+                while (values[j] > pivot)
+                    j--;
+                if (i <= j) {
+                    float t = values[i];
+                    values[i++] = values[j];
+                    values[j--] = t;
+                }
+            }
+            if (k <= j)
+                hi = j;
+            else if (k >= i)
+                lo = i;
+            else
+                break;
+        }
+        return values[k];
+    }
+
+    /**
+     * The per-document arrays of a thread, grown to the largest segment it
+     * has searched. Between queries, every entry is zero.
+     */
+    private static class Accumulators {
+        double[] scores = new double[0];
+        long[] matched = new long[0];
+        // The scores of a segment's hits, for select().
+        float[] selected = new float[0];
+
+        void grow(int maxDoc) {
+            if (scores.length < maxDoc) {
+                scores = new double[maxDoc];
+                matched = new long[(maxDoc + 63) >>> 6];
+                selected = new float[maxDoc];
+            }
+        }
+    }
+
+    /**
+     * The top hits so far, in a heap of parallel arrays rather than of
+     * ScoreDocs: the lowest score on top, ties broken by the higher docid,
+     * as in Lucene's HitQueue. Hits must be inserted in docid order. Also
+     * used by ScoreAtATime.
+     */
+    static class HitQueue {
+        final int[] docs;
+        final float[] scores;
+        int size = 0;
+        // Until the queue is full, anything above the sentinels'
+        // NEGATIVE_INFINITY gets in, as in TopScoreDocCollector.
+        float minScore = Float.NEGATIVE_INFINITY;
+
+        HitQueue(int capacity) {
+            docs = new int[capacity];
+            scores = new float[capacity];
+        }
+
+        private boolean lessThan(int a, int b) {
+            if (scores[a] == scores[b])
+                return docs[a] > docs[b];
+            return scores[a] < scores[b];
+        }
+
+        private void swap(int a, int b) {
+            int doc = docs[a];
+            float score = scores[a];
+            docs[a] = docs[b];
+            scores[a] = scores[b];
+            docs[b] = doc;
+            scores[b] = score;
+        }
+
+        /**
+         * Adds a hit with a score above minScore; if the queue is full, it
+         * replaces the lowest. A hit tied with the lowest never gets in,
+         * since it comes later in docid order.
+         */
+        void insert(int doc, float score) {
+            if (size < docs.length) {
+                // Sift up.
+                int i = size++;
+                docs[i] = doc;
+                scores[i] = score;
+                while (i > 0 && lessThan(i, (i - 1) >>> 1)) {
+                    swap(i, (i - 1) >>> 1);
+                    i = (i - 1) >>> 1;
+                }
+                if (size == docs.length)
+                    minScore = scores[0];
+                return;
+            }
+            docs[0] = doc;
+            scores[0] = score;
+            downHeap();
+            minScore = scores[0];
+        }
+
+        /**
+         * Sifts the top down to its place.
+         */
+        private void downHeap() {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && lessThan(child + 1, child))
+                    child++;
+                if (!lessThan(child, i))
+                    break;
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        /**
+         * Empties the queue.
+         *
+         * @param totalHits The number of hits collected.
+         * @return The hits from the highest scoring down, as
+         *         TopDocsCollector.topDocs() returns them: if hits were
+         *         collected that never got in (scoring NEGATIVE_INFINITY),
+         *         the sentinels they failed to beat are at the end.
+         */
+        ScoreDoc[] hits(int totalHits) {
+            ScoreDoc[] hits = new ScoreDoc[Math.min(totalHits, docs.length)];
+            for (int i = size; i < hits.length; i++)
+                hits[i] = new ScoreDoc(Integer.MAX_VALUE,
+                    Float.NEGATIVE_INFINITY);
+            while (size > 0) {
+                hits[--size] = new ScoreDoc(docs[0], scores[0]);
+                docs[0] = docs[size];
+                scores[0] = scores[size];
+                downHeap();
+            }
+            return hits;
+        }
+    }
+}
@@ -0,0 +1,635 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jsoup.helper.StringUtil;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.Tag;
+
+/**
+ * A streaming tag scanner for documents in the classic TREC (SGML) format.
+ * It makes one pass over a &lt;DOC&gt; held in a char buffer and pulls out
+ * the text of DOCNO, of the requested fields and of the whole document,
+ * without building a DOM.
+ *
+ * The text produced is the same as what Jsoup's Element.text() gives for the
+ * same input: whitespace is collapsed, entities are decoded, comments are
+ * skipped, and unclosed or mismatched tags are handled the way Jsoup's tree
+ * builder handles them. TREC tags are unknown to HTML, so they are simple
+ * inline elements. Of the HTML tags, only those common in TREC collections
+ * are emulated (HEAD, which Jsoup drops, and P, DD and DT, which close each
+ * other and start a new block); for any other HTML tag, or markup the scanner
+ * does not model (doctypes, CDATA, null characters...), scan() returns false
+ * and the caller should fall back to Jsoup for that document.
+ *
+ * An instance reuses its buffers from one document to the next and is not
+ * thread-safe.
+ */
+public class TrecDocScanner {
+    // How the tree builder treats a tag.
+    private static final int UNKNOWN     = 0;
+    private static final int DROPPED     = 1;
+    private static final int PARAGRAPH   = 2;
+    private static final int DEFINITION  = 3;
+    private static final int UNSUPPORTED = 4;
+
+    // Tokeniser states within a tag.
+    private static final int BEFORE_ATTRIBUTE     = 0;
+    private static final int ATTRIBUTE_NAME       = 1;
+    private static final int AFTER_ATTRIBUTE_NAME = 2;
+    private static final int BEFORE_VALUE         = 3;
+    private static final int UNQUOTED_VALUE       = 4;
+
+    private final boolean enabled;
+    private final boolean headRequested;
+    private final boolean wantContents;
+
+    // Tag names seen so far, interned without allocating a String per tag.
+    private String[]  names = new String[64];
+    private int[]     kinds = new int[64];
+    private boolean[] captured = new boolean[64];
+    private int       nameCount = 0;
+    private final int docnoName;
+
+    // The stack of open elements: the name of each, and the capture (if any)
+    // collecting its text.
+    private int[] stackName = new int[32];
+    private int[] stackCapture = new int[32];
+    private int   depth;
+
+    // Text of the captured elements, in document order.
+    private StringBuilder[] captures = new StringBuilder[16];
+    private int[] captureName = new int[16];
+    private int   captureCount;
+
+    private final StringBuilder contents = new StringBuilder();
+
+    private char[] buf;
+    private int    end;
+
+    /**
+     * @param fields The fields to extract (e.g., trecFieldsToIndex). The
+     *               reserved name "contents" requests the text of the whole
+     *               document.
+     */
+    public TrecDocScanner(List<String> fields) {
+        boolean contentsRequested = fields.size() == 0;
+        boolean head = false;
+        boolean supported = true;
+
+        docnoName = intern("docno");
+        captured[docnoName] = true;
+        for(String field : fields){
+            String name = field.toLowerCase().trim();
+            if(field.equals("contents")){
+                contentsRequested = true;
+                continue;
+            }
+            // Jsoup always creates these elements, whatever the input.
+            if(name.equals("html") || name.equals("body"))
+                supported = false;
+            if(name.equals("head"))
+                head = true;
+            // intern() may grow captured, so it must run before the store.
+            int id = intern(name);
+            captured[id] = true;
+        }
+        enabled = supported;
+        headRequested = head;
+        wantContents = contentsRequested;
+    }
+
+    /**
+     * Scans one document.
+     *
+     * @param buf The buffer holding the document.
+     * @param off The offset of the document in buf.
+     * @param len The length of the document.
+     * @return True if the document was scanned; false if it contains markup
+     *         the scanner does not handle (or has no DOCNO), in which case it
+     *         should be parsed with Jsoup instead.
+     */
+    public boolean scan(char[] buf, int off, int len) {
+        int pos = off, textStart = off;
+        boolean hasEntity = false;
+        char c;
+
+        if(!enabled)
+            return false;
+
+        this.buf = buf;
+        this.end = off + len;
+        depth = 0;
+        captureCount = 0;
+        contents.setLength(0);
+
+        while(pos < end){
+            c = buf[pos];
+            if(c == '&'){
+                hasEntity = true;
+                pos++;
+                continue;
+            }
+            if(c == '\0')
+                return false;
+            if(c != '<' || pos + 1 >= end){
+                pos++;
+                continue;
+            }
+
+            c = buf[pos+1];
+            if(isLetter(c)){
+                appendText(textStart, pos, hasEntity);
+                if((pos = tag(pos + 1, true)) < 0)
+                    return false;
+            } else if(c == '/'){
+                if(pos + 2 >= end){
+                    // A trailing "</" is kept as text.
+                    pos++;
+                    continue;
+                }
+                appendText(textStart, pos, hasEntity);
+                c = buf[pos+2];
+                if(isLetter(c)){
+                    if((pos = tag(pos + 2, false)) < 0)
+                        return false;
+                } else if(c == '>') {
+                    pos += 3;
+                } else {
+                    pos = skipBogusComment(pos + 2);
+                }
+            } else if(c == '!'){
+                appendText(textStart, pos, hasEntity);
+                if(pos + 3 < end && buf[pos+2] == '-' && buf[pos+3] == '-'){
+                    if((pos = skipComment(pos + 4)) < 0)
+                        return false;
+                } else if(startsWithIgnoreCase(pos + 2, "DOCTYPE") ||
+                          startsWithIgnoreCase(pos + 2, "[CDATA[")) {
+                    return false;
+                } else {
+                    pos = skipBogusComment(pos + 2);
+                }
+            } else if(c == '?'){
+                appendText(textStart, pos, hasEntity);
+                pos = skipBogusComment(pos + 1);
+            } else {
+                // Not markup; the '<' is part of the text.
+                pos++;
+                continue;
+            }
+            textStart = pos;
+            hasEntity = false;
+        }
+        appendText(textStart, end, hasEntity);
+
+        this.buf = null;
+        return firstCapture(docnoName) >= 0;
+    }
+
+    /**
+     * @return The DOCNO of the last document scanned.
+     */
+    public String docno() {
+        return trimmed(captures[firstCapture(docnoName)]);
+    }
+
+    /**
+     * @return The text of the last document scanned.
+     */
+    public String contents() {
+        return trimmed(contents);
+    }
+
+    /**
+     * Gets the text of every element with the given name in the last document
+     * scanned, in document order; this is the same list as
+     * soup.getElementsByTag(field) would produce.
+     *
+     * @param field The field (tag) name.
+     * @return The text of each matching element.
+     */
+    public List<String> values(String field) {
+        String name = field.toLowerCase().trim();
+        List<String> values = new ArrayList<String>();
+
+        if(headRequested && name.equals("head"))
+            values.add("");
+        for(int i = 0; i < captureCount; i++)
+            if(names[captureName[i]].equals(name))
+                values.add(trimmed(captures[i]));
+        return values;
+    }
+
+    // ---------------------------------------------------------------------
+    // Tokenizing.
+
+    private static boolean isLetter(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private boolean startsWithIgnoreCase(int pos, String s) {
+        if(pos + s.length() > end)
+            return false;
+        for(int i = 0; i < s.length(); i++)
+            if(Character.toUpperCase(buf[pos+i]) != s.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * Skips a "<!...>" or "<?...>" construct up to and including the next
+     * '>' (or to the end of the document).
+     */
+    private int skipBogusComment(int pos) {
+        while(pos < end && buf[pos] != '>')
+            pos++;
+        return pos < end ? pos + 1 : end;
+    }
+
+    /**
+     * Skips a comment, starting just after "<!--". Returns -1 for comments
+     * ending in "--!", which Jsoup handles in its own way.
+     */
+    private int skipComment(int pos) {
+        while(pos < end && buf[pos] == '-')
+            pos++;
+        if(pos < end && buf[pos] == '>')
+            return pos + 1;
+        while(pos < end){
+            if(buf[pos] == '-' && pos + 1 < end && buf[pos+1] == '-'){
+                pos += 2;
+                while(pos < end && buf[pos] == '-')
+                    pos++;
+                if(pos < end && buf[pos] == '>')
+                    return pos + 1;
+                if(pos < end && buf[pos] == '!')
+                    return -1;
+            } else {
+                pos++;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Reads a start or end tag, from the first letter of its name through
+     * the closing '>', and applies it to the stack of open elements.
+     *
+     * @return The position after the tag, or -1 if the document should be
+     *         handed to Jsoup.
+     */
+    private int tag(int pos, boolean isStart) {
+        int nameStart = pos, name;
+        boolean selfClosing = false;
+        int state = BEFORE_ATTRIBUTE;
+        char c;
+
+        while(pos < end){
+            c = buf[pos];
+            if(isSpace(c) || c == '/' || c == '>')
+                break;
+            if(c == '\0' || c > 127)
+                return -1;
+            pos++;
+        }
+        name = lookup(nameStart, pos);
+
+        // Skip over the attributes, minding quoted values. These are the
+        // states of Jsoup's tokeniser, so the tag ends at the same '>' and
+        // gets the same self-closing flag.
+        while(true){
+            if(pos >= end)
+                return -1;
+            c = buf[pos++];
+            if(c == '\0')
+                return -1;
+            switch(state){
+                case BEFORE_ATTRIBUTE:
+                case AFTER_ATTRIBUTE_NAME:
+                case ATTRIBUTE_NAME:
+                    if(c == '>')
+                        break;
+                    if(c == '/'){
+                        if(pos < end && buf[pos] == '>'){
+                            selfClosing = true;
+                            pos++;
+                            break;
+                        }
+                        state = BEFORE_ATTRIBUTE;
+                    } else if(isSpace(c)) {
+                        if(state == ATTRIBUTE_NAME)
+                            state = AFTER_ATTRIBUTE_NAME;
+                    } else if(c == '=' && state != BEFORE_ATTRIBUTE) {
+                        state = BEFORE_VALUE;
+                    } else {
+                        state = ATTRIBUTE_NAME;
+                    }
+                    continue;
+                case BEFORE_VALUE:
+                    if(c == '>')
+                        break;
+                    if(c == '"' || c == '\''){
+                        while(pos < end && buf[pos] != c)
+                            pos++;
+                        if(pos++ >= end)
+                            return -1;
+                        // Anything but whitespace, '/' or '>' right after
+                        // the quote starts a new attribute.
+                        state = BEFORE_ATTRIBUTE;
+                    } else if(!isSpace(c)) {
+                        state = UNQUOTED_VALUE;
+                    }
+                    continue;
+                default:
+                    if(c == '>')
+                        break;
+                    if(isSpace(c))
+                        state = BEFORE_ATTRIBUTE;
+                    continue;
+            }
+            break;
+        }
+
+        if(isStart ? !startTag(name, selfClosing) : !endTag(name))
+            return -1;
+        return pos;
+    }
+
+    // ---------------------------------------------------------------------
+    // Tree building.
+
+    private boolean startTag(int name, boolean selfClosing) {
+        switch(kinds[name]){
+            case DROPPED:
+                return true;
+            case PARAGRAPH:
+                if(selfClosing)
+                    return false;
+                closeParagraph();
+                blockStart();
+                push(name);
+                return true;
+            case DEFINITION:
+                if(selfClosing)
+                    return false;
+                for(int i = depth - 1; i >= 0; i--)
+                    if(kinds[stackName[i]] == DEFINITION){
+                        generateImpliedEndTags(stackName[i]);
+                        popToClose(stackName[i]);
+                        break;
+                    }
+                closeParagraph();
+                blockStart();
+                push(name);
+                return true;
+            case UNKNOWN:
+                push(name);
+                if(selfClosing)
+                    depth--;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean endTag(int name) {
+        switch(kinds[name]){
+            case DROPPED:
+                return true;
+            case PARAGRAPH:
+                if(!closeParagraph()){
+                    // A stray </p> makes an empty paragraph.
+                    blockStart();
+                    push(name);
+                    depth--;
+                }
+                return true;
+            case DEFINITION:
+                if(indexOf(name) >= 0){
+                    generateImpliedEndTags(name);
+                    popToClose(name);
+                }
+                return true;
+            case UNKNOWN:
+                for(int i = depth - 1; i >= 0; i--){
+                    if(stackName[i] == name){
+                        depth = i;
+                        break;
+                    }
+                    // P, DD and DT are "special"; end tags do not close
+                    // elements that are open below them.
+                    if(kinds[stackName[i]] != UNKNOWN)
+                        break;
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean closeParagraph() {
+        int p = lookupKind(PARAGRAPH);
+        if(p < 0)
+            return false;
+        generateImpliedEndTags(stackName[p]);
+        depth = p;
+        return true;
+    }
+
+    private int lookupKind(int kind) {
+        for(int i = depth - 1; i >= 0; i--)
+            if(kinds[stackName[i]] == kind)
+                return i;
+        return -1;
+    }
+
+    private int indexOf(int name) {
+        for(int i = depth - 1; i >= 0; i--)
+            if(stackName[i] == name)
+                return i;
+        return -1;
+    }
+
+    private void generateImpliedEndTags(int exclude) {
+        while(depth > 0 && stackName[depth-1] != exclude &&
+              kinds[stackName[depth-1]] != UNKNOWN)
+            depth--;
+    }
+
+    private void popToClose(int name) {
+        int i = indexOf(name);
+        if(i >= 0)
+            depth = i;
+    }
+
+    private void push(int name) {
+        int capture = -1;
+        if(depth == stackName.length){
+            stackName = Arrays.copyOf(stackName, depth * 2);
+            stackCapture = Arrays.copyOf(stackCapture, depth * 2);
+        }
+        if(captured[name]){
+            if(captureCount == captures.length){
+                captures = Arrays.copyOf(captures, captureCount * 2);
+                captureName = Arrays.copyOf(
+                    captureName, captureCount * 2);
+            }
+            if(captures[captureCount] == null)
+                captures[captureCount] = new StringBuilder();
+            captures[captureCount].setLength(0);
+            captureName[captureCount] = name;
+            capture = captureCount++;
+        }
+        stackName[depth] = name;
+        stackCapture[depth] = capture;
+        depth++;
+    }
+
+    /**
+     * Element.text() puts a space in front of a block element unless the text
+     * so far ends in whitespace.
+     */
+    private void blockStart() {
+        if(wantContents)
+            separate(contents);
+        for(int i = 0; i < depth; i++)
+            if(stackCapture[i] >= 0)
+                separate(captures[stackCapture[i]]);
+    }
+
+    private static void separate(StringBuilder sb) {
+        if(sb.length() > 0 && sb.charAt(sb.length()-1) != ' ')
+            sb.append(' ');
+    }
+
+    private int firstCapture(int name) {
+        for(int i = 0; i < captureCount; i++)
+            if(captureName[i] == name)
+                return i;
+        return -1;
+    }
+
+    // ---------------------------------------------------------------------
+    // Text.
+
+    private void appendText(int start, int stop, boolean hasEntity) {
+        String decoded = null;
+        if(start >= stop)
+            return;
+        if(hasEntity)
+            decoded = Parser.unescapeEntities(
+                new String(buf, start, stop - start), false);
+
+        if(wantContents)
+            appendNormalised(contents, start, stop, decoded);
+        for(int i = 0; i < depth; i++)
+            if(stackCapture[i] >= 0)
+                appendNormalised(captures[stackCapture[i]], start, stop,
+                    decoded);
+    }
+
+    /**
+     * Same as Jsoup's StringUtil.appendNormalisedWhitespace(), stripping
+     * leading whitespace if the text so far ends in a space. Runs of
+     * non-whitespace are copied in bulk.
+     */
+    private void appendNormalised(StringBuilder sb, int start, int stop,
+        String decoded) {
+        boolean stripLeading = sb.length() != 0 &&
+            sb.charAt(sb.length()-1) == ' ';
+        boolean lastWasWhite = false, reachedNonWhite = false;
+        char[] chars = buf;
+        int i, run;
+
+        if(decoded != null){
+            chars = decoded.toCharArray();
+            start = 0;
+            stop = chars.length;
+        }
+
+        i = start;
+        while(i < stop){
+            if(StringUtil.isWhitespace(chars[i])){
+                if(!((stripLeading && !reachedNonWhite) || lastWasWhite)){
+                    sb.append(' ');
+                    lastWasWhite = true;
+                }
+                i++;
+            } else {
+                run = i;
+                while(i < stop && !StringUtil.isWhitespace(chars[i]))
+                    i++;
+                sb.append(chars, run, i - run);
+                lastWasWhite = false;
+                reachedNonWhite = true;
+            }
+        }
+    }
+
+    private static String trimmed(StringBuilder sb) {
+        int start = 0, stop = sb.length();
+        while(start < stop && sb.charAt(start) <= ' ')
+            start++;
+        while(stop > start && sb.charAt(stop-1) <= ' ')
+            stop--;
+        return sb.substring(start, stop);
+    }
+
+    // ---------------------------------------------------------------------
+    // Tag names.
+
+    private static int kindOf(String name) {
+        if(name.equals("head"))
+            return DROPPED;
+        if(name.equals("p"))
+            return PARAGRAPH;
+        if(name.equals("dd") || name.equals("dt"))
+            return DEFINITION;
+        if(Tag.isKnownTag(name))
+            return UNSUPPORTED;
+        return UNKNOWN;
+    }
+
+    private static int hash(char c, int h) {
+        return 31 * h + Character.toLowerCase(c);
+    }
+
+    /**
+     * Finds (or adds) the lower-cased tag name held in buf[start, stop).
+     */
+    private int lookup(int start, int stop) {
+        int h = 0;
+        for(int i = start; i < stop; i++)
+            h = hash(buf[i], h);
+        for(int i = 0; i < nameCount; i++){
+            String name = names[i];
+            if(name.length() != stop - start || name.hashCode() != h)
+                continue;
+            int j = 0;
+            while(j < name.length() &&
+                  name.charAt(j) == Character.toLowerCase(buf[start+j]))
+                j++;
+            if(j == name.length())
+                return i;
+        }
+        return intern(new String(buf, start, stop - start).toLowerCase());
+    }
+
+    private int intern(String name) {
+        for(int i = 0; i < nameCount; i++)
+            if(names[i].equals(name))
+                return i;
+        if(nameCount == names.length){
+            names = Arrays.copyOf(names, nameCount * 2);
+            kinds = Arrays.copyOf(kinds, nameCount * 2);
+            captured = Arrays.copyOf(captured, nameCount * 2);
+        }
+        names[nameCount] = name;
+        kinds[nameCount] = kindOf(name);
+        return nameCount++;
+    }
+}